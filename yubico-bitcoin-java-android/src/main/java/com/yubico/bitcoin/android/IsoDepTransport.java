@@ -0,0 +1,52 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.android;
+
+import android.nfc.tech.IsoDep;
+import com.yubico.bitcoin.transport.ApduTransport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * ApduTransport for Android using NFC for communication with a YubiKey NEO.
+ * <p/>
+ * IsoDep only transmits byte arrays, so each command is copied once into an array of the exact length, and the
+ * response array returned by IsoDep is copied into the response buffer.
+ */
+public class IsoDepTransport implements ApduTransport {
+    private final IsoDep nfc;
+
+    /**
+     * @param nfc The IsoDep to use, which must already be connected.
+     */
+    public IsoDepTransport(IsoDep nfc) {
+        this.nfc = nfc;
+    }
+
+    public IsoDep getIsoDep() {
+        return nfc;
+    }
+
+    @Override
+    public void transmit(ByteBuffer command, ByteBuffer response) throws IOException {
+        //Commands without data are sent with Lc set to 0.
+        byte[] apdu = new byte[Math.max(command.remaining(), 5)];
+        command.get(apdu, 0, command.remaining());
+        response.put(nfc.transceive(apdu));
+    }
+}
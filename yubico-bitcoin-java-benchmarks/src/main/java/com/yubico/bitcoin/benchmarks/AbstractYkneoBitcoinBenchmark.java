@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.benchmarks;
+
+import com.yubico.bitcoin.util.AbstractYkneoBitcoin;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Host side cost of the APDU client in AbstractYkneoBitcoin: path encoding, payload assembly, response copying and
+ * public key compression. The device is replaced by an in-memory fake which answers each instruction with a
+ * pre-allocated response, so all measured time and allocation is spent in the client itself.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AbstractYkneoBitcoinBenchmark {
+    private final byte[] hash = new byte[32];
+    private final int[] shortPath = new int[]{7};
+    private final int[] longPath = new int[]{0x80000000, 1, 0x80000002, 2, 1000000000};
+
+    private InMemoryYkneoBitcoin neo;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        neo = new InMemoryYkneoBitcoin();
+        neo.unlockUser(YkneoBitcoinSoftBenchmark.USER_PIN);
+    }
+
+    @Benchmark
+    public byte[] getHeader() throws Exception {
+        return neo.getHeader();
+    }
+
+    @Benchmark
+    public byte[] getUncompressedPublicKey() throws Exception {
+        return neo.getPublicKey(false, shortPath);
+    }
+
+    @Benchmark
+    public byte[] getUncompressedPublicKeyDeep() throws Exception {
+        return neo.getPublicKey(false, longPath);
+    }
+
+    @Benchmark
+    public byte[] getCompressedPublicKey() throws Exception {
+        return neo.getPublicKey(true, shortPath);
+    }
+
+    @Benchmark
+    public byte[] sign() throws Exception {
+        return neo.sign(hash, shortPath);
+    }
+
+    @Benchmark
+    public byte[] signDeep() throws Exception {
+        return neo.sign(hash, longPath);
+    }
+
+    /**
+     * Fake device which answers every instruction with a fixed, successful response.
+     */
+    static class InMemoryYkneoBitcoin extends AbstractYkneoBitcoin {
+        private static final byte[] SW_OK = new byte[]{(byte) 0x90, 0x00};
+
+        private final byte[] selectResp = withStatus(new byte[]{0x00, 0x01, 0x00, 0x01});
+        private final byte[] headerResp = withStatus(new byte[13]);
+        private final byte[] pubResp = withStatus(new byte[65]);
+        private final byte[] signResp = withStatus(new byte[71]);
+
+        private static byte[] withStatus(byte[] data) {
+            byte[] resp = new byte[data.length + 2];
+            System.arraycopy(data, 0, resp, 0, data.length);
+            System.arraycopy(SW_OK, 0, resp, data.length, 2);
+            return resp;
+        }
+
+        InMemoryYkneoBitcoin() throws IOException {
+            pubResp[0] = 0x04;
+            pubResp[64] = 0x01;
+            select();
+        }
+
+        @Override
+        protected byte[] send(int cla, int ins, int p1, int p2, byte[] data) throws IOException {
+            switch (ins) {
+                case 0xa4:
+                    return selectResp;
+                case INS_GET_HEADER:
+                    return headerResp;
+                case INS_GET_PUB:
+                    return pubResp;
+                case INS_SIGN:
+                    return signResp;
+                default:
+                    return SW_OK;
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.benchmarks;
+
+import com.yubico.bitcoin.api.YkneoBitcoin;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of a single YkneoBitcoinSoft shared by all available cores. Compare with YkneoBitcoinSoftBenchmark, which
+ * uses one thread, to see how signing and derivation scale.
+ * <p/>
+ * Each thread signs with, and derives, its own range of keys below a shared account, so that the threads exercise the
+ * cache concurrently without always hitting the same entries.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(Threads.MAX)
+@State(Scope.Benchmark)
+public class ConcurrentSoftBenchmark {
+    private YkneoBitcoin neo;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        neo = YkneoBitcoinSoftBenchmark.unlockedSoftToken();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private final byte[] hash = new byte[32];
+        private final int[] path = new int[]{0x80000000, 0, 0};
+        private int next = 0;
+
+        @Setup(Level.Trial)
+        public void setup(ThreadParams params) {
+            path[1] = params.getThreadIndex();
+            hash[0] = (byte) params.getThreadIndex();
+        }
+
+        private int[] nextPath() {
+            path[2] = next++ & 0x0f;
+            return path;
+        }
+    }
+
+    @Benchmark
+    public byte[] sign(ThreadState state) throws Exception {
+        return neo.sign(state.hash, state.nextPath());
+    }
+
+    @Benchmark
+    public byte[] getCompressedPublicKey(ThreadState state) throws Exception {
+        return neo.getPublicKey(true, state.nextPath());
+    }
+}
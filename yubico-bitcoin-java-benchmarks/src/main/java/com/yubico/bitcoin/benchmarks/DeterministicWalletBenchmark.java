@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.benchmarks;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.crypto.DeterministicKey;
+import com.google.bitcoin.crypto.HDKeyDerivation;
+import com.google.bitcoin.params.TestNet3Params;
+import com.google.bitcoin.utils.Threading;
+import com.yubico.bitcoin.examples.DeterministicWallet;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scaling of DeterministicWallet with the number of derived external keys, on a wallet watching an extended public
+ * key.
+ * <p/>
+ * The wallet is grown the way it grows in use: each transaction paying to the last key it scans for makes it derive
+ * LOOKAHEAD_WINDOW - 1 more keys. Wallet events are delivered on the calling thread, so the wallet has caught up with
+ * each transaction as soon as it is received. The bitcoinj Wallet is cleared of transactions once they have been seen,
+ * as it checks every transaction it holds against every key whenever one is received. Setting up the larger wallets
+ * still takes long, as the wallet derives each key using bitcoinj (around 10 ms per key, so hours for 1M keys).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeterministicWalletBenchmark {
+    private static final String EXTENDED_PUBLIC_KEY = "0488b21e000000000000000000873dff81c02f525623fd1fe5167eac3a55a049de3d314bb42ee227ffed37d5080339a36013301597daef41fbe593a02cc513d0b55527ec2df1050e2e8ff49c85c2";
+    private static final int LOOKAHEAD_WINDOW = 10;
+    private static final NetworkParameters PARAMS = TestNet3Params.get();
+    private static final DeterministicKey MASTER = masterKey();
+
+    private static DeterministicKey masterKey() {
+        byte[] extendedPublicKey = YkneoBitcoinSoftBenchmark.fromHex(EXTENDED_PUBLIC_KEY);
+        byte[] chaincode = new byte[32];
+        byte[] pubkey = new byte[33];
+        System.arraycopy(extendedPublicKey, 13, chaincode, 0, 32);
+        System.arraycopy(extendedPublicKey, 45, pubkey, 0, 33);
+        return HDKeyDerivation.createMasterPubKeyFromBytes(pubkey, chaincode);
+    }
+
+    /**
+     * A wallet which has seen transactions paying to the given number of external keys.
+     */
+    @State(Scope.Thread)
+    public static class ScaledWallet {
+        @Param({"1000", "100000", "1000000"})
+        public int keys;
+
+        private Wallet bitcoinWallet;
+        private DeterministicWallet wallet;
+        private Address seenAddress;
+        private long transactions = 0;
+
+        //The last two keys the wallet has derived, which after construction are all external keys.
+        private ECKey previousKey;
+        private ECKey lastKey;
+
+        @Setup(Level.Trial)
+        public void setup() throws VerificationException {
+            Threading.USER_THREAD = Threading.SAME_THREAD;
+            bitcoinWallet = new Wallet(PARAMS);
+            wallet = new DeterministicWallet(bitcoinWallet, MASTER);
+            bitcoinWallet.addEventListener(new AbstractWalletEventListener() {
+                @Override
+                public void onKeysAdded(Wallet wallet, List<ECKey> added) {
+                    for (ECKey key : added) {
+                        previousKey = lastKey;
+                        lastKey = key;
+                    }
+                }
+            });
+
+            //The wallet scans all but the last of its external keys, which are the keys getExternalKeys returns.
+            List<ECKey> externalKeys = wallet.getExternalKeys();
+            int scannedKeys = externalKeys.size();
+            ECKey scannedKey = externalKeys.get(scannedKeys - 1);
+            while (scannedKeys < keys) {
+                receive(scannedKey.toAddress(PARAMS));
+                scannedKeys += LOOKAHEAD_WINDOW - 1;
+                scannedKey = previousKey;
+            }
+            externalKeys = wallet.getExternalKeys();
+            if (externalKeys.size() != scannedKeys || !externalKeys.get(scannedKeys - 1).equals(scannedKey)) {
+                throw new IllegalStateException("The wallet did not derive the expected keys");
+            }
+
+            //A key this far back is found by scanning the whole chain, but doesn't make the wallet derive more keys.
+            seenAddress = externalKeys.get(scannedKeys - LOOKAHEAD_WINDOW).toAddress(PARAMS);
+        }
+
+        /**
+         * Receives a new transaction paying to an address, spending a made up output so that every transaction
+         * differs.
+         */
+        private void receive(Address address) throws VerificationException {
+            Transaction tx = new Transaction(PARAMS);
+            tx.addInput(new TransactionInput(PARAMS, tx, new byte[0], new TransactionOutPoint(PARAMS, transactions++, Sha256Hash.ZERO_HASH)));
+            tx.addOutput(BigInteger.valueOf(100000), address);
+            bitcoinWallet.receivePending(tx, null);
+            bitcoinWallet.clearTransactions(0);
+        }
+    }
+
+    /**
+     * A new wallet for each call, as every change address handed out moves the wallet on to the next one.
+     */
+    @State(Scope.Thread)
+    public static class ChangeWallet {
+        private DeterministicWallet wallet;
+
+        @Setup(Level.Invocation)
+        public void setup() {
+            wallet = new DeterministicWallet(new Wallet(PARAMS), MASTER);
+        }
+    }
+
+    @Benchmark
+    public DeterministicWallet createWallet() {
+        return new DeterministicWallet(new Wallet(PARAMS), MASTER);
+    }
+
+    /**
+     * The wallet finds the key each received output pays to by scanning its chains.
+     */
+    @Benchmark
+    public DeterministicWallet updateExternalLookahead(ScaledWallet state) throws VerificationException {
+        state.receive(state.seenAddress);
+        return state.wallet;
+    }
+
+    @Benchmark
+    public List<ECKey> getExternalKeys(ScaledWallet state) {
+        return state.wallet.getExternalKeys();
+    }
+
+    @Benchmark
+    public String walletToString(ScaledWallet state) {
+        return state.wallet.toString();
+    }
+
+    @Benchmark
+    public Address getChangeAddress(ChangeWallet state) {
+        return state.wallet.getChangeAddress();
+    }
+}
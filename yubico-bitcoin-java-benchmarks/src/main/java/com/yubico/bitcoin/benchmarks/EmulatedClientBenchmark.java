@@ -0,0 +1,68 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.benchmarks;
+
+import com.yubico.bitcoin.api.YkneoBitcoin;
+import com.yubico.bitcoin.soft.YkneoBitcoinEmulator;
+import com.yubico.bitcoin.util.YkneoBitcoinClient;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.yubico.bitcoin.benchmarks.YkneoBitcoinSoftBenchmark.*;
+
+/**
+ * Throughput of the full client code path, YkneoBitcoinClient talking APDUs to YkneoBitcoinEmulator. Compared to
+ * YkneoBitcoinSoftBenchmark, this adds the cost of encoding commands and decoding responses on both sides.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EmulatedClientBenchmark {
+    private final byte[] hash = new byte[32];
+    private final int[] signPath = new int[]{0x80000000, 0, 7};
+    private final int[] pubPath = new int[]{0x80000000, 1, 42};
+
+    private YkneoBitcoin neo;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        neo = new YkneoBitcoinClient(new YkneoBitcoinEmulator(unlockedSoftToken()));
+        neo.unlockUser(USER_PIN);
+        for (int i = 0; i < hash.length; i++) {
+            hash[i] = (byte) i;
+        }
+    }
+
+    @Benchmark
+    public byte[] sign() throws Exception {
+        return neo.sign(hash, signPath);
+    }
+
+    @Benchmark
+    public byte[] getCompressedPublicKey() throws Exception {
+        return neo.getPublicKey(true, pubPath);
+    }
+
+    @Benchmark
+    public byte[] getUncompressedPublicKey() throws Exception {
+        return neo.getPublicKey(false, pubPath);
+    }
+}
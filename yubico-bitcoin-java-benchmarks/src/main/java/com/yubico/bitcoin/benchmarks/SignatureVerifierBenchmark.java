@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.benchmarks;
+
+import com.google.bitcoin.core.ECKey;
+import com.yubico.bitcoin.api.YkneoBitcoin;
+import com.yubico.bitcoin.util.SignatureVerifier;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of checking signatures from YkneoBitcoinSoft against their public keys, per signature.
+ * <p/>
+ * A batch holds signatures made with a number of distinct keys, so that keys=1 is the common case of a transaction
+ * whose inputs all belong to the same address. The bitcoinj benchmark checks the same signatures one at a time with
+ * ECKey.verify, for comparison.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SignatureVerifierBenchmark {
+    private static final int BATCH_SIZE = 16;
+
+    @Param({"1", "16"})
+    public int keys;
+
+    private final byte[][] hashes = new byte[BATCH_SIZE][32];
+    private final byte[][] signatures = new byte[BATCH_SIZE][];
+    private final byte[][] publicKeys = new byte[BATCH_SIZE][];
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        YkneoBitcoin neo = YkneoBitcoinSoftBenchmark.unlockedSoftToken();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            hashes[i][0] = (byte) i;
+            signatures[i] = neo.sign(hashes[i], 0, i % keys);
+            publicKeys[i] = neo.getPublicKey(true, 0, i % keys);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public boolean batch() {
+        //A new verifier for every batch, so that key tables are not reused across invocations.
+        SignatureVerifier verifier = new SignatureVerifier();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            verifier.add(hashes[i], signatures[i], publicKeys[i]);
+        }
+        return verifier.verifyAll();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public boolean bitcoinj() {
+        boolean valid = true;
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            valid &= ECKey.verify(hashes[i], signatures[i], publicKeys[i]);
+        }
+        return valid;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.benchmarks;
+
+import com.yubico.bitcoin.api.YkneoBitcoin;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of deriving sub keys in YkneoBitcoinSoft at path depths 1 to 5.
+ * <p/>
+ * The repeated benchmark asks for the same key over and over, measuring the cost of a key that has already been
+ * derived once. The fresh benchmark increments the last index for every invocation, so that the leaf key always has
+ * to be derived from its (already known) parent. The token is re-imported for every iteration, so that keys derived
+ * in earlier iterations do not accumulate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SoftDerivationBenchmark {
+    @Param({"1", "2", "3", "4", "5"})
+    public int depth;
+
+    private YkneoBitcoin neo;
+    private int[] path;
+
+    @Setup(Level.Iteration)
+    public void setup() throws Exception {
+        neo = YkneoBitcoinSoftBenchmark.unlockedSoftToken();
+        path = new int[depth];
+        for (int i = 0; i < depth - 1; i++) {
+            path[i] = i % 2 == 0 ? 0x80000000 | i : i;
+        }
+    }
+
+    @Benchmark
+    public byte[] repeated() throws Exception {
+        return neo.getPublicKey(true, path);
+    }
+
+    @Benchmark
+    public byte[] fresh() throws Exception {
+        path[depth - 1] = (path[depth - 1] + 1) & 0x7fffffff;
+        return neo.getPublicKey(true, path);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.benchmarks;
+
+import com.yubico.bitcoin.api.YkneoBitcoin;
+import com.yubico.bitcoin.soft.YkneoBitcoinSoft;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the signing, public key and key management operations of YkneoBitcoinSoft.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class YkneoBitcoinSoftBenchmark {
+    static final String USER_PIN = "000000";
+    static final String ADMIN_PIN = "00000000";
+    static final byte[] EXTENDED_PRIVATE_KEY = fromHex("0488ade4000000000000000000873dff81c02f525623fd1fe5167eac3a55a049de3d314bb42ee227ffed37d50800e8f32e723decf4051aefac8e2c93c9c5b214313817cdb01a1494b917c8436b35");
+
+    static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    static YkneoBitcoin unlockedSoftToken() throws Exception {
+        YkneoBitcoin neo = new YkneoBitcoinSoft();
+        neo.unlockAdmin(ADMIN_PIN);
+        neo.importExtendedKeyPair(EXTENDED_PRIVATE_KEY, true);
+        neo.unlockUser(USER_PIN);
+        return neo;
+    }
+
+    private final byte[] hash = new byte[32];
+    private final int[] signPath = new int[]{0x80000000, 0, 7};
+    private final int[] pubPath = new int[]{0x80000000, 1, 42};
+    private final int[] accountPath = new int[]{0x80000000, 1};
+
+    private YkneoBitcoin neo;
+    private File image;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        neo = unlockedSoftToken();
+        for (int i = 0; i < hash.length; i++) {
+            hash[i] = (byte) i;
+        }
+
+        //An image holding the keys of 100 addresses.
+        for (int i = 0; i < 100; i++) {
+            neo.getPublicKey(true, 0x80000000, 0, i);
+        }
+        image = File.createTempFile("softtoken", ".image");
+        image.deleteOnExit();
+        ((YkneoBitcoinSoft) neo).snapshot(image);
+    }
+
+    @Benchmark
+    public byte[] sign() throws Exception {
+        return neo.sign(hash, signPath);
+    }
+
+    @Benchmark
+    public byte[] getCompressedPublicKey() throws Exception {
+        return neo.getPublicKey(true, pubPath);
+    }
+
+    @Benchmark
+    public byte[] getUncompressedPublicKey() throws Exception {
+        return neo.getPublicKey(false, pubPath);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1000)
+    public byte[] getPublicKeys() throws Exception {
+        return neo.getPublicKeys(true, accountPath, 0, 1000);
+    }
+
+    @Benchmark
+    public byte[] generateMasterKeyPair() throws Exception {
+        return neo.generateMasterKeyPair(false, true, false);
+    }
+
+    @Benchmark
+    public YkneoBitcoin restore() throws Exception {
+        return YkneoBitcoinSoft.restore(image);
+    }
+
+    @Benchmark
+    public YkneoBitcoin importExtendedKeyPair() throws Exception {
+        neo.importExtendedKeyPair(EXTENDED_PRIVATE_KEY, true);
+        return neo;
+    }
+}
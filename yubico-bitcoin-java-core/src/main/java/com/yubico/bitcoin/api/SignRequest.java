@@ -0,0 +1,47 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.api;
+
+/**
+ * A single hash to be signed as part of a batch, along with the index of the sub key to sign it with.
+ *
+ * @see YkneoBitcoin#signBatch(java.util.List)
+ */
+public class SignRequest {
+    private final byte[] hash;
+    private final int[] index;
+
+    /**
+     * @param hash  The 32 byte hash to sign.
+     * @param index The index of the derived sub key to sign with.
+     */
+    public SignRequest(byte[] hash, int... index) {
+        if (hash.length != 32) {
+            throw new IllegalArgumentException("Hash must be 32 bytes!");
+        }
+        this.hash = hash;
+        this.index = index;
+    }
+
+    public byte[] getHash() {
+        return hash;
+    }
+
+    public int[] getIndex() {
+        return index;
+    }
+}
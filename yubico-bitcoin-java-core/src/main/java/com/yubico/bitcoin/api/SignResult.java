@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.api;
+
+/**
+ * The outcome of a single SignRequest in a batch: either a signature, or the error that prevented signing.
+ *
+ * @see YkneoBitcoin#signBatch(java.util.List)
+ */
+public class SignResult {
+    private final byte[] signature;
+    private final Exception error;
+
+    private SignResult(byte[] signature, Exception error) {
+        this.signature = signature;
+        this.error = error;
+    }
+
+    public static SignResult success(byte[] signature) {
+        return new SignResult(signature, null);
+    }
+
+    public static SignResult failure(Exception error) {
+        return new SignResult(null, error);
+    }
+
+    /**
+     * @return True if the hash was signed, false if not.
+     */
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /**
+     * @return The digital signature, or null if signing failed.
+     */
+    public byte[] getSignature() {
+        return signature;
+    }
+
+    /**
+     * @return The reason signing failed, or null if it succeeded.
+     */
+    public Exception getError() {
+        return error;
+    }
+}
@@ -17,6 +17,7 @@
 package com.yubico.bitcoin.api;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * Interface to the ykneo-bitcoin applet running on a YubiKey NEO.
@@ -163,6 +164,28 @@ public interface YkneoBitcoin {
      */
     byte[] getPublicKey(boolean compress, int... index) throws PinModeLockedException, UnusableIndexException, IOException, NoKeyLoadedException;
 
+    /**
+     * Gets the public keys of a range of consecutive children of a single parent key, which is obtained by deriving a
+     * sub key from the master key pair using the given parent index.
+     * The children fromChild, fromChild + 1, ..., fromChild + count - 1 are returned, and must all be either hardened
+     * or non-hardened.
+     * Requires user mode to be unlocked.
+     * <p/>
+     * Example:
+     * neo.getPublicKeys(true, new int[]{0}, 0, 100); //This returns the compressed public keys of m/0/0 through m/0/99
+     *
+     * @param compress   True to return compressed public keys, false to return uncompressed public keys.
+     * @param parentPath The index of the derived parent key.
+     * @param fromChild  The child number of the first key to get.
+     * @param count      The number of keys to get.
+     * @return The public keys, back to back, each one being 65 (uncompressed) or 33 (compressed) bytes.
+     * @throws PinModeLockedException
+     * @throws UnusableIndexException
+     * @throws IOException
+     * @throws NoKeyLoadedException
+     */
+    byte[] getPublicKeys(boolean compress, int[] parentPath, int fromChild, int count) throws PinModeLockedException, UnusableIndexException, IOException, NoKeyLoadedException;
+
     /**
      * Signs the given hash using the private key obtained by deriving a sub key from the master key pair using the given index.
      * Requires user mode to be unlocked.
@@ -177,6 +200,21 @@ public interface YkneoBitcoin {
      */
     byte[] sign(byte[] hash, int... index) throws PinModeLockedException, UnusableIndexException, IOException, NoKeyLoadedException;
 
+    /**
+     * Signs several hashes, each using the private key obtained by deriving a sub key from the master key pair using
+     * the index of its request.
+     * Requires user mode to be unlocked.
+     * <p/>
+     * Failing to sign one hash does not prevent the others from being signed, the outcome of each request is given by
+     * its SignResult.
+     *
+     * @param requests The hashes to sign, along with the index of the sub key to sign each of them with.
+     * @return One result for each request, in the same order as the requests.
+     * @throws PinModeLockedException
+     * @throws IOException
+     */
+    List<SignResult> signBatch(List<SignRequest> requests) throws PinModeLockedException, IOException;
+
     /**
      * Generates a new master key pair randomly, overwriting any existing key pair stored on the device.
      * The allowExport flag determines if the extended public key can later be exported or not.
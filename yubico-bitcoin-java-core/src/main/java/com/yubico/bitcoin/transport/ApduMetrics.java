@@ -0,0 +1,374 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.transport;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records per instruction (INS) latency histograms, throughput, bytes transferred and status words of commands.
+ * Commands are normally recorded by a MetricsApduTransport.
+ * <p/>
+ * Recording is lock-free, so the metrics can be left enabled in production. Latencies are kept in log-linear buckets,
+ * each power of two being split into 8 linear sub-buckets, giving percentiles with a relative error of at most 12.5%
+ * over the full range of a long.
+ * <p/>
+ * Example:
+ * ApduMetrics metrics = new ApduMetrics();
+ * YkneoBitcoin neo = new YkneoBitcoinClient(new MetricsApduTransport(new PCSCTransport(channel), metrics));
+ * ...
+ * ApduMetrics.InstructionSnapshot sign = metrics.snapshot().get(YkneoConstants.INS_SIGN);
+ * long p99 = sign.getPercentile(99.0); //Nanoseconds.
+ */
+public class ApduMetrics {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = bucketOf(Long.MAX_VALUE) + 1;
+
+    /**
+     * Categories of status words returned by the device.
+     */
+    public enum Status {
+        /**
+         * 0x9000, success.
+         */
+        OK,
+        /**
+         * 0x6a82, no key loaded.
+         */
+        NO_KEY_LOADED,
+        /**
+         * 0x6986, operation not permitted.
+         */
+        NOT_PERMITTED,
+        /**
+         * 0x63Cx, incorrect PIN.
+         */
+        INCORRECT_PIN,
+        /**
+         * Any other status word.
+         */
+        OTHER,
+        /**
+         * The command failed with an IOException, without a status word.
+         */
+        TRANSPORT_ERROR;
+
+        public static Status of(int statusWord) {
+            if (statusWord == 0x9000) {
+                return OK;
+            } else if (statusWord == 0x6a82) {
+                return NO_KEY_LOADED;
+            } else if (statusWord == 0x6986) {
+                return NOT_PERMITTED;
+            } else if ((statusWord & 0xfff0) == 0x63c0) {
+                return INCORRECT_PIN;
+            }
+            return OTHER;
+        }
+    }
+
+    /**
+     * Receives every recorded command. Listeners are called on the thread sending the command, so they should return
+     * quickly.
+     */
+    public interface Listener {
+        /**
+         * @param ins        The instruction byte of the command.
+         * @param statusWord The status word of the response, or -1 if the command failed with an IOException.
+         * @param nanos      The time taken to transmit the command and receive the response.
+         * @param bytesOut   The length of the command APDU.
+         * @param bytesIn    The length of the response APDU.
+         */
+        void commandCompleted(int ins, int statusWord, long nanos, int bytesOut, int bytesIn);
+    }
+
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(nanos, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return The highest value which falls into the given bucket.
+     */
+    static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    private final AtomicReferenceArray<InstructionMetrics> instructions = new AtomicReferenceArray<InstructionMetrics>(256);
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private volatile long startNanos = System.nanoTime();
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Records a completed command.
+     *
+     * @param ins        The instruction byte of the command.
+     * @param statusWord The status word of the response, or -1 if the command failed with an IOException.
+     * @param nanos      The time taken to transmit the command and receive the response.
+     * @param bytesOut   The length of the command APDU.
+     * @param bytesIn    The length of the response APDU.
+     */
+    public void record(int ins, int statusWord, long nanos, int bytesOut, int bytesIn) {
+        InstructionMetrics metrics = instructions.get(ins & 0xff);
+        if (metrics == null) {
+            instructions.compareAndSet(ins & 0xff, null, new InstructionMetrics());
+            metrics = instructions.get(ins & 0xff);
+        }
+        metrics.count.incrementAndGet();
+        metrics.totalNanos.addAndGet(nanos);
+        metrics.bytesOut.addAndGet(bytesOut);
+        metrics.bytesIn.addAndGet(bytesIn);
+        metrics.histogram.incrementAndGet(bucketOf(nanos));
+        Status status = statusWord < 0 ? Status.TRANSPORT_ERROR : Status.of(statusWord);
+        metrics.statusCounts.incrementAndGet(status.ordinal());
+
+        for (Listener listener : listeners) {
+            listener.commandCompleted(ins & 0xff, statusWord, nanos, bytesOut, bytesIn);
+        }
+    }
+
+    /**
+     * Clears all recorded data. Commands recorded concurrently with a reset may be partially cleared.
+     */
+    public void reset() {
+        for (int i = 0; i < instructions.length(); i++) {
+            instructions.set(i, null);
+        }
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Takes a snapshot of the metrics recorded since creation, or the last reset. The counters are read one at a
+     * time, so commands completing while the snapshot is taken may be only partially included.
+     */
+    public Snapshot snapshot() {
+        long now = System.nanoTime();
+        Map<Integer, InstructionSnapshot> result = new TreeMap<Integer, InstructionSnapshot>();
+        for (int ins = 0; ins < instructions.length(); ins++) {
+            InstructionMetrics metrics = instructions.get(ins);
+            if (metrics != null) {
+                result.put(ins, metrics.snapshot(ins));
+            }
+        }
+        return new Snapshot(now - startNanos, result);
+    }
+
+    private static class InstructionMetrics {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+        private final AtomicLongArray statusCounts = new AtomicLongArray(Status.values().length);
+
+        private InstructionSnapshot snapshot(int ins) {
+            long[] buckets = new long[histogram.length()];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = histogram.get(i);
+            }
+            long[] statuses = new long[statusCounts.length()];
+            for (int i = 0; i < statuses.length; i++) {
+                statuses[i] = statusCounts.get(i);
+            }
+            return new InstructionSnapshot(ins, count.get(), totalNanos.get(), bytesOut.get(), bytesIn.get(), buckets, statuses);
+        }
+    }
+
+    /**
+     * Immutable view of the metrics of all instructions.
+     */
+    public static class Snapshot {
+        private final long elapsedNanos;
+        private final Map<Integer, InstructionSnapshot> instructions;
+
+        private Snapshot(long elapsedNanos, Map<Integer, InstructionSnapshot> instructions) {
+            this.elapsedNanos = elapsedNanos;
+            this.instructions = Collections.unmodifiableMap(instructions);
+        }
+
+        /**
+         * @return The time covered by the snapshot, since creation or the last reset.
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return The metrics of all instructions which have been sent, keyed by instruction.
+         */
+        public Map<Integer, InstructionSnapshot> getInstructions() {
+            return instructions;
+        }
+
+        /**
+         * @param ins The instruction byte.
+         * @return The metrics of the instruction, or null if it hasn't been sent.
+         */
+        public InstructionSnapshot get(int ins) {
+            return instructions.get(ins & 0xff);
+        }
+
+        /**
+         * @return The total number of commands sent per second.
+         */
+        public double getThroughput() {
+            long count = 0;
+            for (InstructionSnapshot instruction : instructions.values()) {
+                count += instruction.getCount();
+            }
+            return perSecond(count, elapsedNanos);
+        }
+
+        public long getStatusCount(Status status) {
+            long count = 0;
+            for (InstructionSnapshot instruction : instructions.values()) {
+                count += instruction.getStatusCount(status);
+            }
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format("%.1f commands/s over %d ms", getThroughput(), TimeUnit.NANOSECONDS.toMillis(elapsedNanos)));
+            for (InstructionSnapshot instruction : instructions.values()) {
+                builder.append('\n').append(instruction);
+            }
+            return builder.toString();
+        }
+
+        private double perSecond(long count, long nanos) {
+            return nanos > 0 ? count * 1e9 / nanos : 0;
+        }
+    }
+
+    /**
+     * Immutable view of the metrics of a single instruction.
+     */
+    public static class InstructionSnapshot {
+        private final int ins;
+        private final long count;
+        private final long totalNanos;
+        private final long bytesOut;
+        private final long bytesIn;
+        private final long[] histogram;
+        private final long[] statusCounts;
+
+        private InstructionSnapshot(int ins, long count, long totalNanos, long bytesOut, long bytesIn, long[] histogram, long[] statusCounts) {
+            this.ins = ins;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.bytesOut = bytesOut;
+            this.bytesIn = bytesIn;
+            this.histogram = histogram;
+            this.statusCounts = statusCounts;
+        }
+
+        public int getIns() {
+            return ins;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getStatusCount(Status status) {
+            return statusCounts[status.ordinal()];
+        }
+
+        public double getMeanNanos() {
+            return count > 0 ? (double) totalNanos / count : 0;
+        }
+
+        /**
+         * @param percentile The percentile to get, between 0 and 100.
+         * @return The latency in nanoseconds at or below which the given percentage of commands completed, rounded up
+         * to the end of its histogram bucket.
+         */
+        public long getPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException(String.format("Percentile must be between 0 and 100, was: %f", percentile));
+            }
+            long total = 0;
+            for (long bucket : histogram) {
+                total += bucket;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= rank) {
+                    return bucketUpperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return The number of commands per latency bucket, along with the highest latency of each bucket in
+         * nanoseconds. Only non-empty buckets are included.
+         */
+        public SortedMap<Long, Long> getHistogram() {
+            SortedMap<Long, Long> result = new TreeMap<Long, Long>();
+            for (int i = 0; i < histogram.length; i++) {
+                if (histogram[i] > 0) {
+                    result.put(bucketUpperBound(i), histogram[i]);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("INS 0x%02x: %d commands, mean %.1f us, p50 %.1f us, p99 %.1f us, %d bytes out, %d bytes in, statuses %s",
+                    ins, count, getMeanNanos() / 1000, getPercentile(50) / 1000.0, getPercentile(99) / 1000.0, bytesOut, bytesIn, Arrays.toString(statusCounts));
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.transport;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Binary format for traces of APDU traffic, written by RecordingApduTransport and read by ReplayApduTransport.
+ * <p/>
+ * A trace starts with the magic bytes "YKTR" and a version byte, followed by one record per command:
+ * a flags byte, the time since the end of the previous command and the duration of the command in nanoseconds, the
+ * command APDU, and then either the response APDU or, for commands which failed with an IOException, the error
+ * message. Numbers are written as unsigned LEB128 variable length integers, and byte arrays are prefixed with their
+ * length.
+ */
+public final class ApduTrace {
+    static final byte[] MAGIC = new byte[]{'Y', 'K', 'T', 'R'};
+    static final int VERSION = 1;
+
+    static final int FLAG_ERROR = 0x01;
+    static final int FLAG_COMMAND_REDACTED = 0x02;
+    static final int FLAG_RESPONSE_REDACTED = 0x04;
+
+    private ApduTrace() {
+    }
+
+    /**
+     * Reads all records of a trace.
+     *
+     * @param in The stream to read from, which is read until the end but not closed.
+     * @return The records of the trace, in order.
+     * @throws IOException
+     */
+    public static List<Record> read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        byte[] magic = new byte[MAGIC.length];
+        data.readFully(magic);
+        for (int i = 0; i < magic.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new IOException("Not an APDU trace");
+            }
+        }
+        int version = data.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException(String.format("Unsupported trace version: %d", version));
+        }
+
+        List<Record> records = new ArrayList<Record>();
+        int flags;
+        while ((flags = data.read()) != -1) {
+            long gapNanos = readVarLong(data);
+            long durationNanos = readVarLong(data);
+            byte[] command = readBytes(data);
+            if ((flags & FLAG_ERROR) != 0) {
+                records.add(new Record(flags, gapNanos, durationNanos, command, null, data.readUTF()));
+            } else {
+                records.add(new Record(flags, gapNanos, durationNanos, command, readBytes(data), null));
+            }
+        }
+        return Collections.unmodifiableList(records);
+    }
+
+    static void writeHeader(DataOutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid variable length integer");
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes, int offset, int length) throws IOException {
+        writeVarLong(out, length);
+        out.write(bytes, offset, length);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        long length = readVarLong(in);
+        if (length > 0xffff) {
+            throw new IOException(String.format("Invalid APDU length: %d", length));
+        }
+        byte[] bytes = new byte[(int) length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * A single command in a trace.
+     */
+    public static final class Record {
+        private final int flags;
+        private final long gapNanos;
+        private final long durationNanos;
+        private final byte[] command;
+        private final byte[] response;
+        private final String error;
+
+        Record(int flags, long gapNanos, long durationNanos, byte[] command, byte[] response, String error) {
+            this.flags = flags;
+            this.gapNanos = gapNanos;
+            this.durationNanos = durationNanos;
+            this.command = command;
+            this.response = response;
+            this.error = error;
+        }
+
+        /**
+         * @return The instruction byte of the command.
+         */
+        public int getIns() {
+            return command[1] & 0xff;
+        }
+
+        /**
+         * @return The time between the end of the previous command, or the start of the trace, and this command.
+         */
+        public long getGapNanos() {
+            return gapNanos;
+        }
+
+        /**
+         * @return The time taken to transmit the command and receive the response.
+         */
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        public byte[] getCommand() {
+            return command.clone();
+        }
+
+        /**
+         * @return The response APDU, including the status word, or null if the command failed.
+         */
+        public byte[] getResponse() {
+            return response == null ? null : response.clone();
+        }
+
+        /**
+         * @return The message of the IOException the command failed with, or null if it succeeded.
+         */
+        public String getError() {
+            return error;
+        }
+
+        public boolean isError() {
+            return (flags & FLAG_ERROR) != 0;
+        }
+
+        /**
+         * @return True if the data of the command has been replaced with zeros, as it contained a PIN or a key.
+         */
+        public boolean isCommandRedacted() {
+            return (flags & FLAG_COMMAND_REDACTED) != 0;
+        }
+
+        /**
+         * @return True if the data of the response has been replaced with zeros, as it contained a private key.
+         */
+        public boolean isResponseRedacted() {
+            return (flags & FLAG_RESPONSE_REDACTED) != 0;
+        }
+
+        int getFlags() {
+            return flags;
+        }
+
+        byte[] command() {
+            return command;
+        }
+
+        byte[] response() {
+            return response;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends command APDUs to a device, and receives the responses.
+ * <p/>
+ * Transports can be layered by wrapping one in another, see ForwardingApduTransport. For example:
+ * ApduTransport transport = new RetryingApduTransport(new PCSCTransport(channel), 3, 100);
+ * YkneoBitcoin neo = new YkneoBitcoinClient(transport);
+ */
+public interface ApduTransport {
+    /**
+     * Sends the command APDU held between the position and limit of command, and writes the response APDU, including
+     * the status word, into response starting at its position. Both buffers are advanced past the bytes read and
+     * written.
+     *
+     * @param command  The encoded command APDU, a header followed by Lc and data, if any.
+     * @param response The buffer to receive the response, which has room for at least 258 bytes.
+     * @throws IOException
+     */
+    void transmit(ByteBuffer command, ByteBuffer response) throws IOException;
+}
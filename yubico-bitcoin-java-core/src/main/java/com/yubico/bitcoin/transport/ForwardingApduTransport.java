@@ -0,0 +1,41 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Base class for transports which add behavior to another transport. Subclasses override transmit, and call
+ * super.transmit to pass the command on.
+ */
+public abstract class ForwardingApduTransport implements ApduTransport {
+    protected final ApduTransport delegate;
+
+    protected ForwardingApduTransport(ApduTransport delegate) {
+        this.delegate = delegate;
+    }
+
+    public ApduTransport getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void transmit(ByteBuffer command, ByteBuffer response) throws IOException {
+        delegate.transmit(command, response);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport which records the latency, size and status word of every command in an ApduMetrics.
+ */
+public class MetricsApduTransport extends ForwardingApduTransport {
+    private final ApduMetrics metrics;
+
+    public MetricsApduTransport(ApduTransport delegate, ApduMetrics metrics) {
+        super(delegate);
+        this.metrics = metrics;
+    }
+
+    public ApduMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void transmit(ByteBuffer command, ByteBuffer response) throws IOException {
+        int ins = command.get(command.position() + 1);
+        int bytesOut = command.remaining();
+        int responseStart = response.position();
+        long start = System.nanoTime();
+        try {
+            super.transmit(command, response);
+        } catch (IOException e) {
+            metrics.record(ins, -1, System.nanoTime() - start, bytesOut, 0);
+            throw e;
+        }
+        long nanos = System.nanoTime() - start;
+        int bytesIn = response.position() - responseStart;
+        int statusWord = bytesIn >= 2 ? response.getShort(response.position() - 2) & 0xffff : -1;
+        metrics.record(ins, statusWord, nanos, bytesOut, bytesIn);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.transport;
+
+import com.yubico.bitcoin.util.YkneoConstants;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport which records all commands, responses and timings into a trace, which can later be replayed by
+ * ReplayApduTransport. See ApduTrace for the format.
+ * <p/>
+ * By default secrets are redacted from the trace: the data of commands setting, verifying or resetting PINs and of
+ * commands importing keys, as well as the data of responses to generating a key pair (which may hold the private
+ * key), are replaced with zeros of the same length.
+ */
+public class RecordingApduTransport extends ForwardingApduTransport implements Closeable, YkneoConstants {
+    private final DataOutputStream out;
+    private final boolean redactSecrets;
+    private long lastEnd;
+
+    /**
+     * Records to a stream, redacting secrets.
+     */
+    public RecordingApduTransport(ApduTransport delegate, OutputStream out) throws IOException {
+        this(delegate, out, true);
+    }
+
+    /**
+     * @param delegate      The transport to record the traffic of.
+     * @param out           The stream to write the trace to. It is closed when this transport is closed.
+     * @param redactSecrets True to remove PINs and keys from the trace.
+     * @throws IOException
+     */
+    public RecordingApduTransport(ApduTransport delegate, OutputStream out, boolean redactSecrets) throws IOException {
+        super(delegate);
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.redactSecrets = redactSecrets;
+        ApduTrace.writeHeader(this.out);
+        lastEnd = System.nanoTime();
+    }
+
+    @Override
+    public synchronized void transmit(ByteBuffer command, ByteBuffer response) throws IOException {
+        byte[] commandBytes = new byte[command.remaining()];
+        command.duplicate().get(commandBytes);
+        int responseStart = response.position();
+
+        long start = System.nanoTime();
+        IOException error = null;
+        try {
+            super.transmit(command, response);
+        } catch (IOException e) {
+            error = e;
+        }
+        long end = System.nanoTime();
+
+        int flags = 0;
+        int ins = commandBytes[1];
+        if (redactSecrets && (ins == INS_VERIFY_PIN || ins == INS_SET_PIN || ins == INS_RESET_USER_PIN || ins == INS_IMPORT_KEY_PAIR)) {
+            for (int i = 5; i < commandBytes.length; i++) {
+                commandBytes[i] = 0;
+            }
+            flags |= ApduTrace.FLAG_COMMAND_REDACTED;
+        }
+        out.writeByte(flags | (error != null ? ApduTrace.FLAG_ERROR : 0) | (redactResponse(ins) ? ApduTrace.FLAG_RESPONSE_REDACTED : 0));
+        ApduTrace.writeVarLong(out, start - lastEnd);
+        ApduTrace.writeVarLong(out, end - start);
+        ApduTrace.writeBytes(out, commandBytes, 0, commandBytes.length);
+        if (error != null) {
+            out.writeUTF(String.valueOf(error.getMessage()));
+        } else {
+            int length = response.position() - responseStart;
+            byte[] responseBytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                responseBytes[i] = redactResponse(ins) && i < length - 2 ? 0 : response.get(responseStart + i);
+            }
+            ApduTrace.writeBytes(out, responseBytes, 0, length);
+        }
+        lastEnd = end;
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private boolean redactResponse(int ins) {
+        return redactSecrets && ins == INS_GENERATE_KEY_PAIR;
+    }
+
+    /**
+     * Writes any buffered records to the underlying stream.
+     */
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
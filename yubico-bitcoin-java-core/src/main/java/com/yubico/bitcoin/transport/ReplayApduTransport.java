@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport which plays back a trace recorded by RecordingApduTransport, without any device.
+ * <p/>
+ * Each command must match the next command of the trace, or an IOException is thrown. For redacted commands only the
+ * header and length are compared. Responses can be delayed to match the recorded duration of each command, scaled by
+ * a speed factor, or returned immediately.
+ */
+public class ReplayApduTransport implements ApduTransport {
+    /**
+     * Speed factor for returning responses without any delay.
+     */
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+    /**
+     * Speed factor for returning responses after the recorded duration.
+     */
+    public static final double RECORDED_SPEED = 1;
+
+    private final List<ApduTrace.Record> records;
+    private final double speed;
+    private int position = 0;
+
+    /**
+     * @param in    The trace to replay, which is read fully but not closed.
+     * @param speed The factor by which recorded durations are scaled, RECORDED_SPEED to wait as long as the recorded
+     *              command took, or AS_FAST_AS_POSSIBLE to not wait at all.
+     * @throws IOException
+     */
+    public ReplayApduTransport(InputStream in, double speed) throws IOException {
+        this(ApduTrace.read(in), speed);
+    }
+
+    public ReplayApduTransport(List<ApduTrace.Record> records, double speed) {
+        if (speed < 0) {
+            throw new IllegalArgumentException(String.format("Speed must not be negative, was: %f", speed));
+        }
+        this.records = records;
+        this.speed = speed;
+    }
+
+    /**
+     * Starts replaying the trace from the beginning.
+     */
+    public synchronized void rewind() {
+        position = 0;
+    }
+
+    /**
+     * @return The number of commands left in the trace.
+     */
+    public synchronized int remaining() {
+        return records.size() - position;
+    }
+
+    @Override
+    public synchronized void transmit(ByteBuffer command, ByteBuffer response) throws IOException {
+        long start = System.nanoTime();
+        if (position >= records.size()) {
+            throw new IOException("End of trace reached");
+        }
+        ApduTrace.Record record = records.get(position);
+        byte[] commandBytes = new byte[command.remaining()];
+        command.get(commandBytes);
+        if (!matches(record, commandBytes)) {
+            throw new IOException(String.format("Command does not match trace at record %d, expected INS 0x%02x", position, record.getIns()));
+        }
+        position++;
+
+        if (speed > 0) {
+            long remaining = (long) (record.getDurationNanos() * speed) - (System.nanoTime() - start);
+            if (remaining > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while replaying");
+                }
+            }
+        }
+
+        if (record.isError()) {
+            throw new IOException(record.getError());
+        }
+        response.put(record.response());
+    }
+
+    private static boolean matches(ApduTrace.Record record, byte[] command) {
+        byte[] expected = record.command();
+        if (record.isCommandRedacted()) {
+            return expected.length == command.length && Arrays.equals(Arrays.copyOf(expected, 5), Arrays.copyOf(command, 5));
+        }
+        return Arrays.equals(expected, command);
+    }
+}
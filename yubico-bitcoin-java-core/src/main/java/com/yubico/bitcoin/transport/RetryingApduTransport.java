@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.transport;
+
+import com.yubico.bitcoin.util.YkneoConstants;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport which retries commands failing with an IOException.
+ * <p/>
+ * A failed command may still have been executed by the device, so by default only commands which can safely be
+ * executed twice are retried: selecting the applet, reading public keys and headers, and signing. Commands which
+ * change PINs or keys, or which count against the PIN retry counter, are never retried. Override isRetryable to
+ * change this.
+ */
+public class RetryingApduTransport extends ForwardingApduTransport implements YkneoConstants {
+    private final int attempts;
+    private final long delayMillis;
+
+    /**
+     * @param delegate    The transport to retry commands on.
+     * @param attempts    The maximum number of times to send a command, including the first attempt.
+     * @param delayMillis The time to wait before each retry.
+     */
+    public RetryingApduTransport(ApduTransport delegate, int attempts, long delayMillis) {
+        super(delegate);
+        if (attempts < 1) {
+            throw new IllegalArgumentException(String.format("Attempts must be at least 1, was: %d", attempts));
+        }
+        this.attempts = attempts;
+        this.delayMillis = delayMillis;
+    }
+
+    @Override
+    public void transmit(ByteBuffer command, ByteBuffer response) throws IOException {
+        int commandPosition = command.position();
+        int responsePosition = response.position();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                super.transmit(command, response);
+                return;
+            } catch (IOException e) {
+                if (attempt >= attempts || !isRetryable(command, commandPosition)) {
+                    throw e;
+                }
+            }
+            command.position(commandPosition);
+            response.position(responsePosition);
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to retry");
+                }
+            }
+        }
+    }
+
+    /**
+     * @param command The command buffer.
+     * @param offset  The offset of the command APDU within the buffer.
+     * @return True if the command may be sent again after failing.
+     */
+    protected boolean isRetryable(ByteBuffer command, int offset) {
+        int ins = command.get(offset + 1);
+        return ins == (byte) 0xa4 || ins == INS_GET_PUB || ins == INS_SIGN || ins == INS_GET_HEADER || ins == INS_EXPORT_EXT_PUB_KEY;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.transport;
+
+import com.yubico.bitcoin.util.YkneoConstants;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport which adds modelled latency and injected faults to another transport, typically a YkneoBitcoinEmulator,
+ * for load testing and capacity planning without real devices.
+ * <p/>
+ * The time taken by each command is modelled as a fixed round trip time for the link, plus a time per byte sent and
+ * received, plus the compute time of the card for the instruction. This is multiplied by a log-normally distributed
+ * jitter factor. The time already spent in the wrapped transport is subtracted before waiting.
+ * <p/>
+ * Faults are injected at random: a command may fail with an IOException after the wrapped transport has executed it,
+ * as if the response was lost (for instance when an NFC tag is removed), or it may be rejected with an error status
+ * word without being executed. The random generator is seeded, so a single threaded run is reproducible.
+ * <p/>
+ * The presets for USB and NFC are rough estimates, and should be calibrated against real devices using ApduMetrics
+ * or a recorded trace. Example:
+ * ApduTransport transport = SimulatedApduTransport.nfc(new YkneoBitcoinEmulator(), 42)
+ * .setIOExceptionProbability(0.01);
+ */
+public class SimulatedApduTransport extends ForwardingApduTransport implements YkneoConstants {
+    private final Random random;
+    private final long[] instructionNanos = new long[256];
+    private volatile long roundTripNanos = 0;
+    private volatile long perByteNanos = 0;
+    private volatile double jitter = 0;
+    private volatile double ioExceptionProbability = 0;
+    private volatile double errorStatusProbability = 0;
+    private volatile int errorStatus = 0x6f00;
+
+    /**
+     * Creates a transport which adds no latency and injects no faults, until configured.
+     *
+     * @param delegate The transport to wrap.
+     * @param seed     The seed of the random generator used for jitter and faults.
+     */
+    public SimulatedApduTransport(ApduTransport delegate, long seed) {
+        super(delegate);
+        random = new Random(seed);
+    }
+
+    /**
+     * Models a YubiKey NEO connected over USB (CCID).
+     */
+    public static SimulatedApduTransport usb(ApduTransport delegate, long seed) {
+        return withCardCosts(new SimulatedApduTransport(delegate, seed))
+                .setRoundTrip(1, TimeUnit.MILLISECONDS)
+                .setPerByte(10, TimeUnit.MICROSECONDS)
+                .setJitter(0.1);
+    }
+
+    /**
+     * Models a YubiKey NEO connected over NFC (ISO 14443-4 at 106 kbit/s).
+     */
+    public static SimulatedApduTransport nfc(ApduTransport delegate, long seed) {
+        return withCardCosts(new SimulatedApduTransport(delegate, seed))
+                .setRoundTrip(5, TimeUnit.MILLISECONDS)
+                .setPerByte(80, TimeUnit.MICROSECONDS)
+                .setJitter(0.3);
+    }
+
+    private static SimulatedApduTransport withCardCosts(SimulatedApduTransport transport) {
+        return transport
+                .setInstructionCost(0xa4, 2, TimeUnit.MILLISECONDS)
+                .setInstructionCost(INS_VERIFY_PIN, 5, TimeUnit.MILLISECONDS)
+                .setInstructionCost(INS_SET_PIN, 10, TimeUnit.MILLISECONDS)
+                .setInstructionCost(INS_GET_HEADER, 2, TimeUnit.MILLISECONDS)
+                .setInstructionCost(INS_GET_PUB, 150, TimeUnit.MILLISECONDS)
+                .setInstructionCost(INS_SIGN, 200, TimeUnit.MILLISECONDS)
+                .setInstructionCost(INS_GENERATE_KEY_PAIR, 300, TimeUnit.MILLISECONDS)
+                .setInstructionCost(INS_IMPORT_KEY_PAIR, 100, TimeUnit.MILLISECONDS)
+                .setInstructionCost(INS_EXPORT_EXT_PUB_KEY, 100, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the fixed time taken to transmit any command and receive its response.
+     */
+    public SimulatedApduTransport setRoundTrip(long time, TimeUnit unit) {
+        roundTripNanos = unit.toNanos(time);
+        return this;
+    }
+
+    /**
+     * Sets the time taken to transfer each byte of the command and the response.
+     */
+    public SimulatedApduTransport setPerByte(long time, TimeUnit unit) {
+        perByteNanos = unit.toNanos(time);
+        return this;
+    }
+
+    /**
+     * Sets the time taken by the card to execute an instruction.
+     */
+    public SimulatedApduTransport setInstructionCost(int ins, long time, TimeUnit unit) {
+        synchronized (instructionNanos) {
+            instructionNanos[ins & 0xff] = unit.toNanos(time);
+        }
+        return this;
+    }
+
+    /**
+     * Sets the amount of jitter. The modelled time is multiplied by exp(jitter * g), where g is a standard normally
+     * distributed random number. 0 disables jitter.
+     */
+    public SimulatedApduTransport setJitter(double jitter) {
+        if (jitter < 0) {
+            throw new IllegalArgumentException(String.format("Jitter must not be negative, was: %f", jitter));
+        }
+        this.jitter = jitter;
+        return this;
+    }
+
+    /**
+     * Sets the probability of a command failing with an IOException after being executed.
+     */
+    public SimulatedApduTransport setIOExceptionProbability(double probability) {
+        ioExceptionProbability = checkProbability(probability);
+        return this;
+    }
+
+    /**
+     * Sets the probability of a command being rejected with the given status word, without being executed.
+     */
+    public SimulatedApduTransport setErrorStatusProbability(double probability, int statusWord) {
+        errorStatusProbability = checkProbability(probability);
+        errorStatus = statusWord;
+        return this;
+    }
+
+    private static double checkProbability(double probability) {
+        if (probability < 0 || probability > 1) {
+            throw new IllegalArgumentException(String.format("Probability must be between 0 and 1, was: %f", probability));
+        }
+        return probability;
+    }
+
+    /**
+     * @return The modelled time for a command, without jitter.
+     */
+    public long getModelledNanos(int ins, int bytesOut, int bytesIn) {
+        long cost;
+        synchronized (instructionNanos) {
+            cost = instructionNanos[ins & 0xff];
+        }
+        return roundTripNanos + perByteNanos * (bytesOut + bytesIn) + cost;
+    }
+
+    @Override
+    public void transmit(ByteBuffer command, ByteBuffer response) throws IOException {
+        long start = System.nanoTime();
+        int ins = command.get(command.position() + 1);
+        int bytesOut = command.remaining();
+        int responseStart = response.position();
+        double faultRoll = random.nextDouble();
+        double jitterFactor = jitter > 0 ? Math.exp(jitter * random.nextGaussian()) : 1;
+
+        boolean rejected = faultRoll < errorStatusProbability;
+        if (rejected) {
+            command.position(command.limit());
+            response.putShort((short) errorStatus);
+        } else {
+            super.transmit(command, response);
+        }
+
+        long modelled = (long) (getModelledNanos(ins, bytesOut, response.position() - responseStart) * jitterFactor);
+        if (rejected) {
+            //The card doesn't compute anything for a rejected command.
+            modelled = (long) ((roundTripNanos + perByteNanos * (bytesOut + 2)) * jitterFactor);
+        }
+        sleep(modelled - (System.nanoTime() - start));
+
+        if (!rejected && faultRoll < errorStatusProbability + ioExceptionProbability) {
+            throw new IOException("Simulated transport failure");
+        }
+    }
+
+    private static void sleep(long nanos) throws InterruptedIOException {
+        if (nanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted during simulated latency");
+            }
+        }
+    }
+}
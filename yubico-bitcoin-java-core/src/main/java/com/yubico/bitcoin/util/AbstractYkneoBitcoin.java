@@ -17,14 +17,33 @@
 package com.yubico.bitcoin.util;
 
 import com.yubico.bitcoin.api.*;
+import com.yubico.bitcoin.transport.ApduTransport;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.*;
 
 /**
  * Abstract class for implementing YkneoBitcoin.
- * Provides full implementation for YkneoBitcoin, the extending class need only implement the send method.
- * Subclasses should call select() before trying to invoke any other methods, but after send has been initialized.
+ * Provides full implementation for YkneoBitcoin, the extending class need only provide an ApduTransport, or
+ * implement the send method. Subclasses should call select() before trying to invoke any other methods, but after
+ * send has been initialized.
+ * <p/>
+ * Commands are encoded into, and responses decoded from, a pair of buffers which are reused for every command, so
+ * the only allocations on the host are the returned results. Subclasses which implement send(int, int, int, int,
+ * byte[]) and can transmit directly from and to ByteBuffers should also override send(ByteBuffer, ByteBuffer),
+ * avoiding the copies made by the default implementation.
+ * <p/>
+ * Host derivation can optionally be enabled, in which case the public keys of non-hardened paths are derived locally
+ * from the extended public key of the device instead of being requested from the device. A persistent
+ * PublicKeyCache can also be attached, to avoid requesting the same public keys again after a restart.
+ * <p/>
+ * If a PinProvider is set, sessions are resumed automatically when the card is reset or the connection drops while
+ * getting a public key or the header, or signing. The applet is reselected (after reconnecting, if the subclass
+ * supports it), user mode is unlocked again using the PinProvider, and the interrupted command is sent again. Other
+ * commands are never repeated, and admin mode is not restored. If host derivation or a PublicKeyCache is in use, the
+ * device is checked to still hold the same key pair; if it doesn't, both are detached and the command fails.
  */
 public abstract class AbstractYkneoBitcoin implements YkneoBitcoin, YkneoConstants {
     public static final Charset ASCII = Charset.forName("US-ASCII");
@@ -34,54 +53,291 @@ public abstract class AbstractYkneoBitcoin implements YkneoBitcoin, YkneoConstan
         return ((apdu[apdu.length - 2] & 0xff) << 8) | (apdu[apdu.length - 1] & 0xff);
     }
 
-    private static byte[] fromInts(int[] ints) {
-        byte[] bytes = new byte[ints.length * 4];
-        int offset = 0;
-        for (int val : ints) {
-            bytes[offset++] = (byte) (val >> 24);
-            bytes[offset++] = (byte) (val >> 16);
-            bytes[offset++] = (byte) (val >> 8);
-            bytes[offset++] = (byte) val;
+    private static final int HOST_DERIVATION_CACHE_SIZE = 256;
+    private static final int MAX_COMMAND_LENGTH = 5 + 255;
+    private static final int MAX_RESPONSE_LENGTH = 256 + 2;
+
+    private static boolean isResumable(int ins) {
+        return ins == INS_GET_PUB || ins == INS_SIGN || ins == INS_GET_HEADER;
+    }
+
+    /**
+     * Status words indicating that the applet has lost the session: either the PIN state is gone, or a different
+     * applet is selected.
+     */
+    private static boolean isSessionLost(int status) {
+        return status == 0x6982 || status == 0x6d00 || status == 0x6e00;
+    }
+
+    private static boolean isHardened(int[] index) {
+        for (int i : index) {
+            if ((i & 0x80000000) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void putIndex(ByteBuffer buf, int[] index) {
+        for (int i : index) {
+            buf.putInt(i);
         }
+    }
 
-        return bytes;
+    private static void checkStatus(int status) throws IOException {
+        if (status != 0x9000) {
+            if (status == 0x6a82) {
+                throw new NoKeyLoadedException();
+            } else if (status == 0x6986) {
+                throw new OperationNotPermittedException();
+            }
+            throw new RuntimeException(String.format("APDU error: 0x%04x", status));
+        }
     }
 
+    private final ApduTransport transport;
     private final Requirements req = new Requirements();
+    private final ByteBuffer command = ByteBuffer.allocate(MAX_COMMAND_LENGTH);
+    private final ByteBuffer response = ByteBuffer.allocate(MAX_RESPONSE_LENGTH);
 
     private final byte[] version = new byte[3];
     private boolean keyLoaded = false;
     private boolean userUnlocked = false;
     private boolean adminUnlocked = false;
 
-    protected abstract byte[] send(int cla, int ins, int p1, int p2, byte[] data) throws IOException;
+    private PinProvider pinProvider;
+    private boolean resuming = false;
+
+    private PublicKeyCache publicKeyCache;
+    private ExtendedPublicKey hostDerivationRoot;
+    private final Map<IndexPath, ExtendedPublicKey> hostDerivationCache = new LinkedHashMap<IndexPath, ExtendedPublicKey>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<IndexPath, ExtendedPublicKey> eldest) {
+            return size() > HOST_DERIVATION_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Creates an instance which sends commands using send(int, int, int, int, byte[]), which must be overridden.
+     */
+    protected AbstractYkneoBitcoin() {
+        this(null);
+    }
+
+    /**
+     * Creates an instance which sends all commands using the given transport.
+     */
+    protected AbstractYkneoBitcoin(ApduTransport transport) {
+        this.transport = transport;
+    }
+
+    protected ApduTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Called before reselecting the applet when resuming a session after a failed command. The default
+     * implementation does nothing, subclasses which are able to reconnect to the device should do so.
+     *
+     * @throws IOException
+     */
+    protected void reconnect() throws IOException {
+    }
+
+    /**
+     * Enables automatic session resumption. When a public key, header or signature request fails because the card
+     * has been reset or the connection dropped, the session is resumed using the PIN from the provider, and the
+     * request is sent again.
+     *
+     * @param pinProvider Supplies the user PIN, or null to disable session resumption.
+     */
+    public void setPinProvider(PinProvider pinProvider) {
+        this.pinProvider = pinProvider;
+    }
+
+    /**
+     * Sends a command APDU, returning the response APDU including the status word.
+     * <p/>
+     * The default implementation uses the ApduTransport given to the constructor. Subclasses not using a transport
+     * must override this.
+     */
+    protected byte[] send(int cla, int ins, int p1, int p2, byte[] data) throws IOException {
+        if (transport == null) {
+            throw new IllegalStateException("No ApduTransport has been given, send must be overridden");
+        }
+        ByteBuffer cmd = ByteBuffer.allocate(5 + data.length);
+        cmd.put((byte) cla).put((byte) ins).put((byte) p1).put((byte) p2);
+        if (data.length > 0) {
+            cmd.put((byte) data.length).put(data);
+        }
+        cmd.flip();
+        ByteBuffer resp = ByteBuffer.allocate(MAX_RESPONSE_LENGTH);
+        transport.transmit(cmd, resp);
+        return Arrays.copyOf(resp.array(), resp.position());
+    }
+
+    /**
+     * Sends the command APDU held between the position and limit of command, and writes the response APDU, including
+     * the status word, into response starting at its position. Both buffers are advanced past the bytes read and
+     * written.
+     * <p/>
+     * The default implementation uses the ApduTransport given to the constructor, if any. Otherwise it decodes the
+     * command and delegates to send(int, int, int, int, byte[]).
+     *
+     * @param command  The encoded command APDU, a header followed by Lc and data, if any.
+     * @param response The buffer to receive the response, which has room for at least 258 bytes.
+     * @throws IOException
+     */
+    protected void send(ByteBuffer command, ByteBuffer response) throws IOException {
+        if (transport != null) {
+            transport.transmit(command, response);
+            return;
+        }
+        int cla = command.get() & 0xff;
+        int ins = command.get() & 0xff;
+        int p1 = command.get() & 0xff;
+        int p2 = command.get() & 0xff;
+        byte[] data = NO_DATA;
+        if (command.hasRemaining()) {
+            data = new byte[command.get() & 0xff];
+            command.get(data);
+        }
+        response.put(send(cla, ins, p1, p2, data));
+    }
+
+    /**
+     * Starts encoding a new command. The data, if any, should be put into the returned buffer before calling transmit.
+     */
+    private ByteBuffer command(int cla, int ins, int p1, int p2) {
+        command.clear();
+        command.put((byte) cla).put((byte) ins).put((byte) p1).put((byte) p2).put((byte) 0);
+        return command;
+    }
+
+    /**
+     * Sends the command being encoded, which ends at the current position of the command buffer. Afterwards, the
+     * response buffer holds the response data, without the status word.
+     *
+     * @return The status word of the response.
+     */
+    private int transmit() throws IOException {
+        int length = command.position() - 5;
+        command.flip();
+        if (length == 0) {
+            command.limit(4);
+        } else {
+            command.put(4, (byte) length);
+        }
+        boolean resumable = pinProvider != null && !resuming && userUnlocked && isResumable(command.get(1) & 0xff);
+        int status;
+        try {
+            status = exchange();
+        } catch (IOException e) {
+            if (!resumable) {
+                throw e;
+            }
+            resume(true);
+            return exchange();
+        }
+        if (resumable && isSessionLost(status)) {
+            resume(false);
+            status = exchange();
+        }
+        return status;
+    }
+
+    private int exchange() throws IOException {
+        command.rewind();
+        response.clear();
+        send(command, response);
+        response.flip();
+        if (response.remaining() < 2) {
+            throw new IOException("Invalid response APDU, missing status word");
+        }
+        int status = response.getShort(response.limit() - 2) & 0xffff;
+        response.limit(response.limit() - 2);
+        return status;
+    }
+
+    /**
+     * Reselects the applet and unlocks user mode, leaving the interrupted command in the command buffer so that it
+     * can be sent again.
+     */
+    private void resume(boolean connectionLost) throws IOException {
+        byte[] interrupted = Arrays.copyOf(command.array(), command.limit());
+        resuming = true;
+        try {
+            if (connectionLost) {
+                reconnect();
+            }
+            select();
+            unlockUser(pinProvider.getUserPin());
+            if (publicKeyCache != null || hostDerivationRoot != null) {
+                checkKey();
+            }
+        } catch (IncorrectPINException e) {
+            throw new IOException("Unable to resume the session, the PIN was rejected", e);
+        } finally {
+            resuming = false;
+        }
+        command.clear();
+        command.put(interrupted);
+        command.flip();
+    }
+
+    /**
+     * Checks that the resumed session is with the same key as before. If it isn't, or the key can't be read, the public
+     * key cache and host derivation are detached, as they would return public keys of the previous key.
+     */
+    private void checkKey() throws IOException {
+        PublicKeyCache cache = publicKeyCache;
+        ExtendedPublicKey root = hostDerivationRoot;
+        //The key must be read from the device, not from the state being checked.
+        publicKeyCache = null;
+        hostDerivationRoot = null;
+        boolean sameKey = false;
+        try {
+            sameKey = (cache == null || Arrays.equals(cache.getFingerprint(), DeviceFingerprint.of(this)))
+                    && (root == null || Arrays.equals(root.deriveChild(0).getPublicKey(true), getPublicKey(true, 0)));
+        } catch (YkneoBitcoinException e) {
+            throw new IOException("Unable to resume the session, the key could not be read", e);
+        } finally {
+            if (sameKey) {
+                publicKeyCache = cache;
+                hostDerivationRoot = root;
+            } else {
+                disableHostDerivation();
+            }
+        }
+        if (!sameKey) {
+            throw new IOException("Unable to resume the session, the device holds a different key");
+        }
+    }
+
+    private byte[] responseData() {
+        byte[] data = new byte[response.remaining()];
+        response.get(data);
+        return data;
+    }
 
     protected void select() throws IOException {
-        byte[] resp = send(0x00, 0xa4, 0x04, 0x00, AID);
-        int status = apduStatus(resp);
+        command(0x00, 0xa4, 0x04, 0x00).put(AID);
+        int status = transmit();
         if (status != 0x9000) {
             throw new IOException(String.format("Unable to select the applet, error code: 0x%04x", status));
         }
-        System.arraycopy(resp, 0, version, 0, 3);
-        if(resp[3] == 1) {
-            keyLoaded = true;
-        }
+        response.get(version);
+        keyLoaded = response.get() == 1;
+        //Selecting the applet resets the PIN state of the channel.
+        userUnlocked = false;
+        adminUnlocked = false;
         require().versionLessThan(1, 0, 0);
     }
 
     protected byte[] sendAndCheck(int cla, int ins, int p1, int p2, byte[] data) throws IOException {
-        byte[] resp = send(cla, ins, p1, p2, data);
-        if (apduStatus(resp) != 0x9000) {
-            if (apduStatus(resp) == 0x6a82) {
-                throw new NoKeyLoadedException();
-            } else if (apduStatus(resp) == 0x6986) {
-                throw new OperationNotPermittedException();
-            }
-            throw new RuntimeException(String.format("APDU error: 0x%02x%02x", resp[resp.length - 2], resp[resp.length - 1]));
-        }
-        byte[] respData = new byte[resp.length - 2];
-        System.arraycopy(resp, 0, respData, 0, respData.length);
-        return respData;
+        command(cla, ins, p1, p2).put(data);
+        checkStatus(transmit());
+        return responseData();
     }
 
     protected Requirements require() {
@@ -107,9 +363,8 @@ public abstract class AbstractYkneoBitcoin implements YkneoBitcoin, YkneoConstan
 
     @Override
     public void unlockUser(String pin) throws IncorrectPINException, IOException {
-        byte[] pinBytes = pin.getBytes(ASCII);
-        byte[] resp = send(0x00, INS_VERIFY_PIN, 0x00, 0x00, pinBytes);
-        int status = apduStatus(resp);
+        command(0x00, INS_VERIFY_PIN, 0x00, 0x00).put(pin.getBytes(ASCII));
+        int status = transmit();
         if (status == 0x9000) {
             userUnlocked = true;
         } else if ((status & 0xfff0) == 0x63C0) {
@@ -122,9 +377,8 @@ public abstract class AbstractYkneoBitcoin implements YkneoBitcoin, YkneoConstan
 
     @Override
     public void unlockAdmin(String pin) throws IncorrectPINException, IOException {
-        byte[] pinBytes = pin.getBytes(ASCII);
-        byte[] resp = send(0x00, INS_VERIFY_PIN, 0x00, 0x01, pinBytes);
-        int status = apduStatus(resp);
+        command(0x00, INS_VERIFY_PIN, 0x00, 0x01).put(pin.getBytes(ASCII));
+        int status = transmit();
         if (status == 0x9000) {
             adminUnlocked = true;
         } else if ((status & 0xfff0) == 0x63C0) {
@@ -177,13 +431,11 @@ public abstract class AbstractYkneoBitcoin implements YkneoBitcoin, YkneoConstan
         if (newPinBytes.length < 1 || newPinBytes.length > PIN_MAX_LENGTH) {
             throw new IllegalArgumentException(String.format("PIN length must be between 1 and %d", PIN_MAX_LENGTH));
         }
-        byte[] data = new byte[oldPinBytes.length + newPinBytes.length + 2];
-        data[0] = (byte) oldPinBytes.length;
-        System.arraycopy(oldPinBytes, 0, data, 1, oldPinBytes.length);
-        data[oldPinBytes.length + 1] = (byte) newPinBytes.length;
-        System.arraycopy(newPinBytes, 0, data, oldPinBytes.length + 2, newPinBytes.length);
+        command(0x00, INS_SET_PIN, 0x00, p2)
+                .put((byte) oldPinBytes.length).put(oldPinBytes)
+                .put((byte) newPinBytes.length).put(newPinBytes);
 
-        return apduStatus(send(0x00, INS_SET_PIN, 0x00, p2, data));
+        return transmit();
     }
 
     @Override
@@ -222,18 +474,205 @@ public abstract class AbstractYkneoBitcoin implements YkneoBitcoin, YkneoConstan
         return sendAndCheck(0x00, INS_GET_HEADER, 0x00, 0x00, NO_DATA);
     }
 
+    /**
+     * Enables host derivation, using the extended public key exported from the device.
+     * Requires admin mode to be unlocked, and the stored key to have the allowExport flag set.
+     *
+     * @throws PinModeLockedException
+     * @throws IOException
+     * @throws OperationNotPermittedException
+     */
+    public void enableHostDerivation() throws PinModeLockedException, IOException {
+        ExtendedPublicKey root = ExtendedPublicKey.fromBytes(exportExtendedPublicKey());
+        disableHostDerivation();
+        hostDerivationRoot = root;
+    }
+
+    /**
+     * Enables host derivation, using a previously exported extended public key, which makes it possible to use host
+     * derivation without unlocking admin mode. The given key is checked against the device by comparing the public
+     * key of m/0.
+     * Requires user mode to be unlocked.
+     *
+     * @param extendedPublicKey The BIP 32 formatted extended public key of the stored master key.
+     * @throws PinModeLockedException
+     * @throws UnusableIndexException
+     * @throws IOException
+     */
+    public void enableHostDerivation(byte[] extendedPublicKey) throws PinModeLockedException, UnusableIndexException, IOException {
+        ExtendedPublicKey root = ExtendedPublicKey.fromBytes(extendedPublicKey);
+        disableHostDerivation();
+        if (!Arrays.equals(getPublicKey(true, 0), root.deriveChild(0).getPublicKey(true))) {
+            throw new IllegalArgumentException("The extended public key does not belong to the key stored on the device");
+        }
+        hostDerivationRoot = root;
+    }
+
+    /**
+     * Disables host derivation, so that all public keys are requested from the device.
+     * This happens automatically when a new key pair is generated or imported.
+     */
+    public void disableHostDerivation() {
+        hostDerivationRoot = null;
+        hostDerivationCache.clear();
+    }
+
+    public boolean isHostDerivationEnabled() {
+        return hostDerivationRoot != null;
+    }
+
+    /**
+     * Gets the extended public key for a non-hardened path, deriving and caching any missing ancestors.
+     */
+    private ExtendedPublicKey hostDerive(int[] index) throws UnusableIndexException {
+        if (index.length == 0) {
+            return hostDerivationRoot;
+        }
+        IndexPath path = new IndexPath(index);
+        ExtendedPublicKey key = hostDerivationCache.get(path);
+        if (key == null) {
+            key = hostDerive(Arrays.copyOf(index, index.length - 1)).deriveChild(index[index.length - 1]);
+            hostDerivationCache.put(new IndexPath(index.clone()), key);
+        }
+        return key;
+    }
+
+    /**
+     * Attaches a persistent public key cache, which is consulted before deriving any public key, and which is filled
+     * with every public key that is derived. The cache must have been opened with the fingerprint of the key stored on
+     * this device, which is verified. When a new key pair is generated or imported, the cache is invalidated and
+     * detached.
+     * Requires user mode to be unlocked.
+     *
+     * @param cache The cache to use, or null to stop using a cache.
+     * @throws PinModeLockedException
+     * @throws UnusableIndexException
+     * @throws IOException
+     */
+    public void setPublicKeyCache(PublicKeyCache cache) throws PinModeLockedException, UnusableIndexException, IOException {
+        publicKeyCache = null;
+        if (cache != null && !Arrays.equals(cache.getFingerprint(), DeviceFingerprint.of(this))) {
+            throw new IllegalArgumentException("The public key cache belongs to a different key");
+        }
+        publicKeyCache = cache;
+    }
+
+    private void keyReplaced() {
+        keyLoaded = true;
+        disableHostDerivation();
+        if (publicKeyCache != null) {
+            publicKeyCache.invalidate();
+            publicKeyCache = null;
+        }
+    }
+
     @Override
-    public byte[] getPublicKey(boolean compress, int... index) throws PinModeLockedException, IOException {
+    public byte[] getPublicKey(boolean compress, int... index) throws PinModeLockedException, UnusableIndexException, IOException {
         require().userMode();
 
-        byte[] pub = sendAndCheck(0x00, INS_GET_PUB, 0x00, 0x00, fromInts(index));
+        if (publicKeyCache != null) {
+            byte[] cached = publicKeyCache.getPublicKey(compress, index);
+            if (cached != null) {
+                return cached;
+            }
+            byte[] pub = readPublicKey(compress, index);
+            publicKeyCache.put(index, pub);
+            return pub;
+        }
+        return readPublicKey(compress, index);
+    }
+
+    private byte[] readPublicKey(boolean compress, int[] index) throws UnusableIndexException, IOException {
+        if (hostDerivationRoot != null && !isHardened(index)) {
+            if (index.length == 0) {
+                return hostDerivationRoot.getPublicKey(compress);
+            }
+            return hostDerive(Arrays.copyOf(index, index.length - 1)).deriveChild(index[index.length - 1]).getPublicKey(compress);
+        }
+
+        putIndex(command(0x00, INS_GET_PUB, 0x00, 0x00), index);
+        checkStatus(transmit());
         if (compress) {
             byte[] compressed = new byte[33];
-            pub[0] = (byte) ((pub[pub.length - 1] & 1) == 0 ? 0x02 : 0x03);
-            System.arraycopy(pub, 0, compressed, 0, compressed.length);
+            response.get(compressed);
+            compressed[0] = (byte) ((response.get(response.limit() - 1) & 1) == 0 ? 0x02 : 0x03);
             return compressed;
         }
-        return pub;
+        return responseData();
+    }
+
+    @Override
+    public byte[] getPublicKeys(boolean compress, int[] parentPath, int fromChild, int count) throws PinModeLockedException, UnusableIndexException, IOException {
+        require().userMode();
+
+        int keyLength = compress ? 33 : 65;
+        if (count < 0 || count > Integer.MAX_VALUE / keyLength) {
+            throw new IllegalArgumentException(String.format("Count must be between 0 and %d, was: %d", Integer.MAX_VALUE / keyLength, count));
+        }
+        if (count > 0 && (fromChild & 0xffffffffL) + count - 1 > 0xffffffffL) {
+            throw new IllegalArgumentException("Child range must not wrap around");
+        }
+        if (count > 0 && (fromChild & 0x80000000) != ((fromChild + count - 1) & 0x80000000)) {
+            throw new IllegalArgumentException("Child range must not mix hardened and non-hardened children");
+        }
+
+        byte[] keys = new byte[count * keyLength];
+        int[] index = Arrays.copyOf(parentPath, parentPath.length + 1);
+
+        if (hostDerivationRoot != null && !isHardened(parentPath) && (fromChild & 0x80000000) == 0) {
+            ExtendedPublicKey parent = hostDerive(parentPath);
+            for (int i = 0; i < count; i++) {
+                index[parentPath.length] = fromChild + i;
+                if (!getCachedPublicKey(compress, index, keys, i * keyLength)) {
+                    byte[] pub = parent.deriveChild(fromChild + i).getPublicKey(compress);
+                    System.arraycopy(pub, 0, keys, i * keyLength, keyLength);
+                    if (publicKeyCache != null) {
+                        publicKeyCache.put(index, pub);
+                    }
+                }
+            }
+            return keys;
+        }
+
+        //The parent path is only encoded once, each command just updates the last child index in place.
+        putIndex(command(0x00, INS_GET_PUB, 0x00, 0x00), parentPath);
+        int childOffset = command.position();
+        for (int i = 0; i < count; i++) {
+            index[parentPath.length] = fromChild + i;
+            if (getCachedPublicKey(compress, index, keys, i * keyLength)) {
+                continue;
+            }
+            command.clear();
+            command.position(childOffset);
+            command.putInt(fromChild + i);
+
+            checkStatus(transmit());
+            response.get(keys, i * keyLength, keyLength);
+            if (compress) {
+                keys[i * keyLength] = (byte) ((response.get(64) & 1) == 0 ? 0x02 : 0x03);
+            }
+            if (publicKeyCache != null) {
+                publicKeyCache.put(index, Arrays.copyOfRange(keys, i * keyLength, (i + 1) * keyLength));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Copies a public key from the attached cache, if there is one and it holds the key.
+     *
+     * @return True if the key was copied to keys at offset.
+     */
+    private boolean getCachedPublicKey(boolean compress, int[] index, byte[] keys, int offset) {
+        if (publicKeyCache == null) {
+            return false;
+        }
+        byte[] cached = publicKeyCache.getPublicKey(compress, index);
+        if (cached == null) {
+            return false;
+        }
+        System.arraycopy(cached, 0, keys, offset, cached.length);
+        return true;
     }
 
     @Override
@@ -243,11 +682,58 @@ public abstract class AbstractYkneoBitcoin implements YkneoBitcoin, YkneoConstan
         if (hash.length != 32) {
             throw new IllegalArgumentException("Hash must be 32 bytes!");
         }
-        byte[] indexBytes = fromInts(index);
-        byte[] data = new byte[indexBytes.length + hash.length];
-        System.arraycopy(indexBytes, 0, data, 0, indexBytes.length);
-        System.arraycopy(hash, 0, data, indexBytes.length, hash.length);
-        return sendAndCheck(0x00, INS_SIGN, 0x00, 0x00, data);
+        putIndex(command(0x00, INS_SIGN, 0x00, 0x00), index);
+        command.put(hash);
+        checkStatus(transmit());
+        return responseData();
+    }
+
+    /**
+     * Signs the given hash, without allocating any arrays for the command or the signature. Neither the position of
+     * hash nor its contents are changed.
+     * Requires user mode to be unlocked.
+     *
+     * @param hash      The 32 bytes to sign, between the position and limit of the buffer.
+     * @param signature The buffer to write the DER encoded signature to, which is advanced past it.
+     * @param index     The derivation path of the key to sign with.
+     * @return The length of the signature.
+     * @throws PinModeLockedException
+     * @throws IOException
+     */
+    public int sign(ByteBuffer hash, ByteBuffer signature, int... index) throws PinModeLockedException, IOException {
+        require().userMode();
+
+        if (hash.remaining() != 32) {
+            throw new IllegalArgumentException("Hash must be 32 bytes!");
+        }
+        putIndex(command(0x00, INS_SIGN, 0x00, 0x00), index);
+        for (int i = hash.position(); i < hash.limit(); i++) {
+            command.put(hash.get(i));
+        }
+        checkStatus(transmit());
+        int length = response.remaining();
+        signature.put(response);
+        return length;
+    }
+
+    @Override
+    public List<SignResult> signBatch(List<SignRequest> requests) throws PinModeLockedException, IOException {
+        require().userMode();
+
+        List<SignResult> results = new ArrayList<SignResult>(requests.size());
+        for (SignRequest request : requests) {
+            try {
+                putIndex(command(0x00, INS_SIGN, 0x00, 0x00), request.getIndex());
+                command.put(request.getHash());
+                checkStatus(transmit());
+                results.add(SignResult.success(responseData()));
+            } catch (IOException e) {
+                results.add(SignResult.failure(e));
+            } catch (RuntimeException e) {
+                results.add(SignResult.failure(e));
+            }
+        }
+        return results;
     }
 
     @Override
@@ -265,7 +751,7 @@ public abstract class AbstractYkneoBitcoin implements YkneoBitcoin, YkneoConstan
             p2 |= FLAG_TESTNET;
         }
         byte[] resp = sendAndCheck(0x00, INS_GENERATE_KEY_PAIR, 0x00, p2, NO_DATA);
-        keyLoaded = true;
+        keyReplaced();
 
         return resp;
     }
@@ -276,7 +762,7 @@ public abstract class AbstractYkneoBitcoin implements YkneoBitcoin, YkneoConstan
 
         byte p2 = allowExport ? FLAG_CAN_EXPORT : 0x00;
         sendAndCheck(0x00, INS_IMPORT_KEY_PAIR, 0x00, p2, extendedPrivateKey);
-        keyLoaded = true;
+        keyReplaced();
     }
 
     /**
@@ -334,4 +820,22 @@ public abstract class AbstractYkneoBitcoin implements YkneoBitcoin, YkneoConstan
             return this;
         }
     }
+
+    private static class IndexPath {
+        private final int[] index;
+
+        private IndexPath(int[] index) {
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof IndexPath && Arrays.equals(index, ((IndexPath) o).index);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(index);
+        }
+    }
 }
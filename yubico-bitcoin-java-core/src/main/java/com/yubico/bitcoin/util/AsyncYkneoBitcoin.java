@@ -0,0 +1,256 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.util;
+
+import com.yubico.bitcoin.api.SignRequest;
+import com.yubico.bitcoin.api.SignResult;
+import com.yubico.bitcoin.api.YkneoBitcoin;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Thread safe, asynchronous facade for a YkneoBitcoin device.
+ * <p/>
+ * The wrapped device is owned by a single dispatcher thread, which executes all operations in the order they were
+ * submitted. Each operation returns immediately with a Future for its result, and any exception thrown by the device
+ * is given as the cause of the ExecutionException thrown by Future.get(). Once wrapped, the device must not be used
+ * directly.
+ * <p/>
+ * The state of the device (applet version, key loaded and unlocked modes) is published as an immutable DeviceState
+ * after each operation, and can be read from any thread without blocking.
+ * <p/>
+ * Example:
+ * AsyncYkneoBitcoin neo = new AsyncYkneoBitcoin(new YkneoBitcoinPCSC(channel));
+ * neo.unlockUser(pin);
+ * Future&lt;byte[]&gt; signature = neo.sign(hash, 0, 7); //Operations are queued behind the unlock.
+ */
+public class AsyncYkneoBitcoin implements Closeable {
+    private final YkneoBitcoin neo;
+    private final ExecutorService dispatcher;
+    private volatile DeviceState state;
+
+    /**
+     * Operation to be run on the dispatcher thread, with exclusive access to the device.
+     */
+    public interface DeviceTask<T> {
+        T run(YkneoBitcoin neo) throws Exception;
+    }
+
+    /**
+     * @param neo The device to wrap, which will be owned by a newly created dispatcher thread.
+     */
+    public AsyncYkneoBitcoin(YkneoBitcoin neo) {
+        this.neo = neo;
+        state = DeviceState.of(neo);
+        dispatcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ykneo-bitcoin-dispatcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return The state of the device after the most recently completed operation.
+     */
+    public DeviceState getState() {
+        return state;
+    }
+
+    /**
+     * Runs an arbitrary operation on the dispatcher thread. No other operation will be run on the device until it
+     * completes, so this can be used to perform several operations as one, such as unlocking and then signing.
+     */
+    public <T> Future<T> submit(final DeviceTask<T> task) {
+        return dispatcher.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                try {
+                    return task.run(neo);
+                } finally {
+                    state = DeviceState.of(neo);
+                }
+            }
+        });
+    }
+
+    public Future<Void> unlockUser(final String pin) {
+        return submit(new DeviceTask<Void>() {
+            @Override
+            public Void run(YkneoBitcoin neo) throws Exception {
+                neo.unlockUser(pin);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> unlockAdmin(final String pin) {
+        return submit(new DeviceTask<Void>() {
+            @Override
+            public Void run(YkneoBitcoin neo) throws Exception {
+                neo.unlockAdmin(pin);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> setUserPin(final String oldPin, final String newPin) {
+        return submit(new DeviceTask<Void>() {
+            @Override
+            public Void run(YkneoBitcoin neo) throws Exception {
+                neo.setUserPin(oldPin, newPin);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> setAdminPin(final String oldPin, final String newPin) {
+        return submit(new DeviceTask<Void>() {
+            @Override
+            public Void run(YkneoBitcoin neo) throws Exception {
+                neo.setAdminPin(oldPin, newPin);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> resetUserPin(final String newPin) {
+        return submit(new DeviceTask<Void>() {
+            @Override
+            public Void run(YkneoBitcoin neo) throws Exception {
+                neo.resetUserPin(newPin);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> setUserRetryCount(final int attempts) {
+        return submit(new DeviceTask<Void>() {
+            @Override
+            public Void run(YkneoBitcoin neo) throws Exception {
+                neo.setUserRetryCount(attempts);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> setAdminRetryCount(final int attempts) {
+        return submit(new DeviceTask<Void>() {
+            @Override
+            public Void run(YkneoBitcoin neo) throws Exception {
+                neo.setAdminRetryCount(attempts);
+                return null;
+            }
+        });
+    }
+
+    public Future<byte[]> getHeader() {
+        return submit(new DeviceTask<byte[]>() {
+            @Override
+            public byte[] run(YkneoBitcoin neo) throws Exception {
+                return neo.getHeader();
+            }
+        });
+    }
+
+    public Future<byte[]> getPublicKey(final boolean compress, int... index) {
+        final int[] indexCopy = index.clone();
+        return submit(new DeviceTask<byte[]>() {
+            @Override
+            public byte[] run(YkneoBitcoin neo) throws Exception {
+                return neo.getPublicKey(compress, indexCopy);
+            }
+        });
+    }
+
+    public Future<byte[]> getPublicKeys(final boolean compress, int[] parentPath, final int fromChild, final int count) {
+        final int[] parentCopy = parentPath.clone();
+        return submit(new DeviceTask<byte[]>() {
+            @Override
+            public byte[] run(YkneoBitcoin neo) throws Exception {
+                return neo.getPublicKeys(compress, parentCopy, fromChild, count);
+            }
+        });
+    }
+
+    public Future<byte[]> sign(byte[] hash, int... index) {
+        final byte[] hashCopy = hash.clone();
+        final int[] indexCopy = index.clone();
+        return submit(new DeviceTask<byte[]>() {
+            @Override
+            public byte[] run(YkneoBitcoin neo) throws Exception {
+                return neo.sign(hashCopy, indexCopy);
+            }
+        });
+    }
+
+    public Future<List<SignResult>> signBatch(List<SignRequest> requests) {
+        //SignRequest doesn't copy its arrays, so the requests are copied along with the list.
+        final List<SignRequest> requestsCopy = new ArrayList<SignRequest>(requests.size());
+        for (SignRequest request : requests) {
+            requestsCopy.add(new SignRequest(request.getHash().clone(), request.getIndex().clone()));
+        }
+        return submit(new DeviceTask<List<SignResult>>() {
+            @Override
+            public List<SignResult> run(YkneoBitcoin neo) throws Exception {
+                return neo.signBatch(requestsCopy);
+            }
+        });
+    }
+
+    public Future<byte[]> generateMasterKeyPair(final boolean allowExport, final boolean returnPrivateKey, final boolean testnetKey) {
+        return submit(new DeviceTask<byte[]>() {
+            @Override
+            public byte[] run(YkneoBitcoin neo) throws Exception {
+                return neo.generateMasterKeyPair(allowExport, returnPrivateKey, testnetKey);
+            }
+        });
+    }
+
+    public Future<Void> importExtendedKeyPair(byte[] extendedPrivateKey, final boolean allowExport) {
+        final byte[] keyCopy = extendedPrivateKey.clone();
+        return submit(new DeviceTask<Void>() {
+            @Override
+            public Void run(YkneoBitcoin neo) throws Exception {
+                neo.importExtendedKeyPair(keyCopy, allowExport);
+                return null;
+            }
+        });
+    }
+
+    public Future<byte[]> exportExtendedPublicKey() {
+        return submit(new DeviceTask<byte[]>() {
+            @Override
+            public byte[] run(YkneoBitcoin neo) throws Exception {
+                return neo.exportExtendedPublicKey();
+            }
+        });
+    }
+
+    /**
+     * Stops accepting new operations. Operations which have already been submitted are still completed.
+     */
+    @Override
+    public void close() {
+        dispatcher.shutdown();
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.util;
+
+import com.yubico.bitcoin.api.NoKeyLoadedException;
+import com.yubico.bitcoin.api.PinModeLockedException;
+import com.yubico.bitcoin.api.UnusableIndexException;
+import com.yubico.bitcoin.api.YkneoBitcoin;
+
+import java.io.IOException;
+
+/**
+ * Identifies the extended key pair stored on a device, so that data derived from it can be matched to the right key.
+ * <p/>
+ * The fingerprint is the 13 byte BIP 32 header from getHeader, followed by the HASH160 of the compressed public key
+ * of m/0. The header alone doesn't identify the key (it is the same for all master keys), but the public key changes
+ * whenever a new key pair is generated or imported.
+ */
+public final class DeviceFingerprint {
+    public static final int LENGTH = 33;
+
+    private DeviceFingerprint() {
+    }
+
+    /**
+     * Computes the fingerprint of the key currently stored on a device.
+     * Requires user mode to be unlocked.
+     *
+     * @param neo The device to fingerprint.
+     * @return The 33 byte fingerprint.
+     * @throws PinModeLockedException
+     * @throws UnusableIndexException
+     * @throws IOException
+     * @throws NoKeyLoadedException
+     */
+    public static byte[] of(YkneoBitcoin neo) throws PinModeLockedException, UnusableIndexException, IOException, NoKeyLoadedException {
+        byte[] header = neo.getHeader();
+        byte[] hash = Ripemd160.hash160(neo.getPublicKey(true, 0));
+        byte[] fingerprint = new byte[LENGTH];
+        System.arraycopy(header, 0, fingerprint, 0, 13);
+        System.arraycopy(hash, 0, fingerprint, 13, 20);
+        return fingerprint;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.util;
+
+import com.yubico.bitcoin.api.YkneoBitcoin;
+
+/**
+ * Immutable snapshot of the state of a YkneoBitcoin device.
+ */
+public final class DeviceState {
+    private final String appletVersion;
+    private final boolean keyLoaded;
+    private final boolean userUnlocked;
+    private final boolean adminUnlocked;
+
+    public DeviceState(String appletVersion, boolean keyLoaded, boolean userUnlocked, boolean adminUnlocked) {
+        this.appletVersion = appletVersion;
+        this.keyLoaded = keyLoaded;
+        this.userUnlocked = userUnlocked;
+        this.adminUnlocked = adminUnlocked;
+    }
+
+    /**
+     * Takes a snapshot of the current state of a device. This must be called from the thread that owns the device.
+     */
+    public static DeviceState of(YkneoBitcoin neo) {
+        return new DeviceState(neo.getAppletVersion(), neo.isKeyLoaded(), neo.isUserUnlocked(), neo.isAdminUnlocked());
+    }
+
+    public String getAppletVersion() {
+        return appletVersion;
+    }
+
+    public boolean isKeyLoaded() {
+        return keyLoaded;
+    }
+
+    public boolean isUserUnlocked() {
+        return userUnlocked;
+    }
+
+    public boolean isAdminUnlocked() {
+        return adminUnlocked;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DeviceState{version=%s, keyLoaded=%b, userUnlocked=%b, adminUnlocked=%b}", appletVersion, keyLoaded, userUnlocked, adminUnlocked);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.util;
+
+import com.yubico.bitcoin.api.UnusableIndexException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+
+/**
+ * A BIP 32 extended public key, which can be used to derive the public keys of its non-hardened descendants without
+ * involving the device holding the private key.
+ */
+public class ExtendedPublicKey {
+    private static final int HARDENED = 0x80000000;
+
+    private final byte[] chainCode;
+    private final BigInteger[] point;
+    private final byte[] compressed;
+
+    private ExtendedPublicKey(byte[] chainCode, BigInteger[] point) {
+        this.chainCode = chainCode;
+        this.point = point;
+        compressed = Secp256k1.encodePoint(point, true);
+    }
+
+    /**
+     * Parses a BIP 32 formatted extended public key, such as the one returned by
+     * {@link com.yubico.bitcoin.api.YkneoBitcoin#exportExtendedPublicKey()}.
+     *
+     * @param extendedPublicKey The 78 byte serialized key.
+     * @return The parsed key.
+     */
+    public static ExtendedPublicKey fromBytes(byte[] extendedPublicKey) {
+        if (extendedPublicKey.length != 78) {
+            throw new IllegalArgumentException(String.format("Extended public key must be 78 bytes, was: %d", extendedPublicKey.length));
+        }
+        byte[] chainCode = new byte[32];
+        System.arraycopy(extendedPublicKey, 13, chainCode, 0, 32);
+        return new ExtendedPublicKey(chainCode, Secp256k1.decodePoint(extendedPublicKey, 45, 33));
+    }
+
+    /**
+     * Derives a non-hardened child key.
+     *
+     * @param child The child number, which must not have the hardened bit set.
+     * @return The child extended public key.
+     * @throws UnusableIndexException If the child number results in an invalid key.
+     */
+    public ExtendedPublicKey deriveChild(int child) throws UnusableIndexException {
+        if ((child & HARDENED) != 0) {
+            throw new IllegalArgumentException("Hardened keys cannot be derived from a public key");
+        }
+
+        byte[] data = new byte[37];
+        System.arraycopy(compressed, 0, data, 0, 33);
+        data[33] = (byte) (child >> 24);
+        data[34] = (byte) (child >> 16);
+        data[35] = (byte) (child >> 8);
+        data[36] = (byte) child;
+
+        byte[] i;
+        try {
+            Mac mac = Mac.getInstance("HmacSHA512");
+            mac.init(new SecretKeySpec(chainCode, "HmacSHA512"));
+            i = mac.doFinal(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA512 is not available", e);
+        }
+
+        byte[] il = new byte[32];
+        byte[] ir = new byte[32];
+        System.arraycopy(i, 0, il, 0, 32);
+        System.arraycopy(i, 32, ir, 0, 32);
+        BigInteger tweak = new BigInteger(1, il);
+        if (tweak.compareTo(Secp256k1.N) >= 0) {
+            throw new UnusableIndexException(child);
+        }
+        BigInteger[] childPoint = Secp256k1.toAffine(Secp256k1.add(Secp256k1.multiplyG(tweak), Secp256k1.toJacobian(point)));
+        if (childPoint == null) {
+            throw new UnusableIndexException(child);
+        }
+        return new ExtendedPublicKey(ir, childPoint);
+    }
+
+    /**
+     * Derives a non-hardened descendant key.
+     *
+     * @param index The path to the descendant, relative to this key.
+     * @return The descendant extended public key.
+     * @throws UnusableIndexException If one of the child numbers results in an invalid key.
+     */
+    public ExtendedPublicKey derive(int... index) throws UnusableIndexException {
+        ExtendedPublicKey key = this;
+        for (int child : index) {
+            key = key.deriveChild(child);
+        }
+        return key;
+    }
+
+    /**
+     * @param compress True to return a compressed public key, false to return the uncompressed public key.
+     * @return A 65 (uncompressed) or 33 (compressed) byte public key.
+     */
+    public byte[] getPublicKey(boolean compress) {
+        return compress ? compressed.clone() : Secp256k1.encodePoint(point, false);
+    }
+
+    public byte[] getChainCode() {
+        return chainCode.clone();
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.util;
+
+import java.io.IOException;
+
+/**
+ * Supplies the user PIN when a session with the device needs to be resumed, for instance after the card has been
+ * reset. See AbstractYkneoBitcoin.setPinProvider.
+ */
+public interface PinProvider {
+    /**
+     * @return The user PIN of the device.
+     * @throws IOException If the PIN can't be provided, which aborts the resumption.
+     */
+    String getUserPin() throws IOException;
+}
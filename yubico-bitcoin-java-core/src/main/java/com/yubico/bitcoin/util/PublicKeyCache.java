@@ -0,0 +1,337 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+
+/**
+ * Persistent cache of derived public keys, stored in a memory mapped file so that it survives process restarts.
+ * <p/>
+ * Each record holds an index path, the compressed public key for that path, and its HASH160. The file is tied to a
+ * single device key by its {@link DeviceFingerprint}: when a cache file is opened with a different fingerprint (for
+ * instance because a new key has been generated or imported), its contents are discarded.
+ * <p/>
+ * Records are kept in a fixed size open addressing hash table. Lookups are lock-free and can be done from any number
+ * of threads, while additions are serialized. Each record carries a checksum which is written last, so a reader never
+ * mistakes a partially written record for a valid one. Once the table is three quarters full, new keys are no longer
+ * added. A cache file can only be open in one process at a time.
+ */
+public class PublicKeyCache implements Closeable {
+    public static final int MAX_DEPTH = 8;
+    /**
+     * The largest supported capacity, for which the table of 2^24 slots still fits in a single memory mapping.
+     */
+    public static final int MAX_CAPACITY = 3 << 22;
+
+    private static final int MAGIC = 0x594b504b; //"YKPK"
+    private static final int FORMAT_VERSION = 1;
+
+    //File header: magic(4) | version(4) | slots(4) | count(4) | fingerprint(33)
+    private static final int HEADER_SIZE = 64;
+    private static final int OFFSET_SLOTS = 8;
+    private static final int OFFSET_COUNT = 12;
+    private static final int OFFSET_FINGERPRINT = 16;
+
+    //Record: checksum(4) | depth(4) | path(4 * MAX_DEPTH) | public key(33) | hash160(20)
+    private static final int RECORD_SIZE = 96;
+    private static final int RECORD_DEPTH = 4;
+    private static final int RECORD_PATH = 8;
+    private static final int RECORD_PUBKEY = RECORD_PATH + 4 * MAX_DEPTH;
+    private static final int RECORD_HASH160 = RECORD_PUBKEY + 33;
+    private static final int RECORD_END = RECORD_HASH160 + 20;
+
+    private final RandomAccessFile file;
+    private final FileLock lock;
+    private final MappedByteBuffer buffer;
+    private final int slots;
+    private final byte[] fingerprint;
+    private int count;
+    private volatile boolean invalidated = false;
+
+    private PublicKeyCache(RandomAccessFile file, FileLock lock, MappedByteBuffer buffer, int slots, byte[] fingerprint) {
+        this.file = file;
+        this.lock = lock;
+        this.buffer = buffer;
+        this.slots = slots;
+        this.fingerprint = fingerprint;
+        count = buffer.getInt(OFFSET_COUNT);
+    }
+
+    /**
+     * Opens a cache file, creating it if needed. If the existing file is for a different key, or has a different
+     * capacity, it is cleared.
+     *
+     * @param cacheFile   The file to store the cache in.
+     * @param fingerprint The fingerprint of the device key, as given by {@link DeviceFingerprint#of}.
+     * @param capacity    The maximum number of public keys to store.
+     * @return The opened cache.
+     * @throws IOException If the file can't be opened, or is in use by another process.
+     */
+    public static PublicKeyCache open(File cacheFile, byte[] fingerprint, int capacity) throws IOException {
+        if (fingerprint.length != DeviceFingerprint.LENGTH) {
+            throw new IllegalArgumentException(String.format("Fingerprint must be %d bytes", DeviceFingerprint.LENGTH));
+        }
+        if (capacity < 1 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException(String.format("Capacity must be between 1 and %d, was: %d", MAX_CAPACITY, capacity));
+        }
+        int slots = Integer.highestOneBit(capacity) << 1;
+        if (slots * 3 / 4 < capacity) {
+            slots <<= 1;
+        }
+        long size = HEADER_SIZE + (long) slots * RECORD_SIZE;
+
+        RandomAccessFile file = new RandomAccessFile(cacheFile, "rw");
+        boolean opened = false;
+        try {
+            FileChannel channel = file.getChannel();
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                throw new IOException(String.format("The public key cache %s is in use by another process", cacheFile));
+            }
+
+            boolean valid = file.length() == size;
+            if (file.length() != size) {
+                file.setLength(size);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (valid) {
+                byte[] stored = new byte[DeviceFingerprint.LENGTH];
+                for (int i = 0; i < stored.length; i++) {
+                    stored[i] = buffer.get(OFFSET_FINGERPRINT + i);
+                }
+                valid = buffer.getInt(0) == MAGIC
+                        && buffer.getInt(4) == FORMAT_VERSION
+                        && buffer.getInt(OFFSET_SLOTS) == slots
+                        && Arrays.equals(stored, fingerprint);
+            }
+            if (!valid) {
+                reset(buffer, slots, fingerprint);
+            }
+
+            PublicKeyCache cache = new PublicKeyCache(file, lock, buffer, slots, fingerprint.clone());
+            opened = true;
+            return cache;
+        } finally {
+            if (!opened) {
+                file.close();
+            }
+        }
+    }
+
+    private static void reset(MappedByteBuffer buffer, int slots, byte[] fingerprint) {
+        for (int i = 0; i < buffer.capacity(); i += 8) {
+            buffer.putLong(i, 0);
+        }
+        buffer.putInt(4, FORMAT_VERSION);
+        buffer.putInt(OFFSET_SLOTS, slots);
+        buffer.putInt(OFFSET_COUNT, 0);
+        for (int i = 0; i < fingerprint.length; i++) {
+            buffer.put(OFFSET_FINGERPRINT + i, fingerprint[i]);
+        }
+        //The magic is written last, so that an interrupted reset leaves an invalid file.
+        buffer.putInt(0, MAGIC);
+        buffer.force();
+    }
+
+    private static int hash(int[] index) {
+        int h = index.length;
+        for (int i : index) {
+            h = 31 * h + i;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private int checksum(int record) {
+        int h = 0x811c9dc5;
+        for (int i = record + RECORD_DEPTH; i < record + RECORD_END; i++) {
+            h = (h ^ (buffer.get(i) & 0xff)) * 0x01000193;
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Offsets fit in an int, as the capacity limits the table to 2^24 slots.
+     */
+    private static int recordOffset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    private boolean pathEquals(int record, int[] index) {
+        if (buffer.getInt(record + RECORD_DEPTH) != index.length) {
+            return false;
+        }
+        for (int i = 0; i < index.length; i++) {
+            if (buffer.getInt(record + RECORD_PATH + i * 4) != index[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The offset of the valid record for index, or -1 if there is none.
+     */
+    private int find(int[] index) {
+        if (invalidated || index.length > MAX_DEPTH) {
+            return -1;
+        }
+        int mask = slots - 1;
+        for (int slot = hash(index) & mask, i = 0; i < slots; slot = (slot + 1) & mask, i++) {
+            int record = recordOffset(slot);
+            int storedChecksum = buffer.getInt(record);
+            if (storedChecksum == 0) {
+                return -1;
+            }
+            if (pathEquals(record, index) && checksum(record) == storedChecksum) {
+                return record;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets a cached public key.
+     *
+     * @param compress True to return a compressed public key, false to return the uncompressed public key.
+     * @param index    The index of the derived sub key.
+     * @return A 65 (uncompressed) or 33 (compressed) byte public key, or null if the key isn't cached.
+     */
+    public byte[] getPublicKey(boolean compress, int[] index) {
+        int record = find(index);
+        if (record == -1) {
+            return null;
+        }
+        byte[] pubkey = read(record + RECORD_PUBKEY, 33);
+        if (compress) {
+            return pubkey;
+        }
+        return Secp256k1.encodePoint(Secp256k1.decodePoint(pubkey, 0, 33), false);
+    }
+
+    /**
+     * Gets the HASH160 of a cached public key, which is what a pay-to-pubkey-hash address is made from.
+     *
+     * @param index The index of the derived sub key.
+     * @return The 20 byte hash, or null if the key isn't cached.
+     */
+    public byte[] getHash160(int[] index) {
+        int record = find(index);
+        return record == -1 ? null : read(record + RECORD_HASH160, 20);
+    }
+
+    private byte[] read(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Adds a public key to the cache.
+     *
+     * @param index     The index of the derived sub key.
+     * @param publicKey The compressed or uncompressed public key.
+     * @return True if the key was added, false if it was already present, too deep, or the cache is full.
+     */
+    public synchronized boolean put(int[] index, byte[] publicKey) {
+        if (invalidated || index.length > MAX_DEPTH || count >= slots * 3 / 4) {
+            return false;
+        }
+
+        byte[] compressed = new byte[33];
+        System.arraycopy(publicKey, 0, compressed, 0, 33);
+        if (publicKey.length == 65) {
+            compressed[0] = (byte) ((publicKey[64] & 1) == 0 ? 0x02 : 0x03);
+        }
+        byte[] hash160 = Ripemd160.hash160(compressed);
+
+        int mask = slots - 1;
+        int slot = hash(index) & mask;
+        while (buffer.getInt(recordOffset(slot)) != 0) {
+            if (pathEquals(recordOffset(slot), index)) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int record = recordOffset(slot);
+        buffer.putInt(record + RECORD_DEPTH, index.length);
+        for (int i = 0; i < index.length; i++) {
+            buffer.putInt(record + RECORD_PATH + i * 4, index[i]);
+        }
+        for (int i = 0; i < 33; i++) {
+            buffer.put(record + RECORD_PUBKEY + i, compressed[i]);
+        }
+        for (int i = 0; i < 20; i++) {
+            buffer.put(record + RECORD_HASH160 + i, hash160[i]);
+        }
+        buffer.putInt(record, checksum(record));
+        buffer.putInt(OFFSET_COUNT, ++count);
+        return true;
+    }
+
+    /**
+     * @return The fingerprint of the device key that this cache belongs to.
+     */
+    public byte[] getFingerprint() {
+        return fingerprint.clone();
+    }
+
+    /**
+     * @return The number of cached public keys.
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Discards all cached keys, and the stored fingerprint, so that the file will be cleared the next time it is
+     * opened. This should be called when the key on the device is replaced. After this, the cache is always empty.
+     */
+    public synchronized void invalidate() {
+        invalidated = true;
+        reset(buffer, slots, new byte[DeviceFingerprint.LENGTH]);
+        count = 0;
+    }
+
+    /**
+     * Writes any changes to disk, and releases the file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        try {
+            lock.release();
+        } finally {
+            file.close();
+        }
+    }
+}
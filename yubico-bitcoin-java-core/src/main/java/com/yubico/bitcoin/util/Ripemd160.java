@@ -0,0 +1,151 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * RIPEMD-160, which isn't provided by the standard Java security providers, and the Bitcoin HASH160 built on it.
+ */
+final class Ripemd160 {
+    private static final int[] R = new int[]{
+            0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15,
+            7, 4, 13, 1, 10, 6, 15, 3, 12, 0, 9, 5, 2, 14, 11, 8,
+            3, 10, 14, 4, 9, 15, 8, 1, 2, 7, 0, 6, 13, 11, 5, 12,
+            1, 9, 11, 10, 0, 8, 12, 4, 13, 3, 7, 15, 14, 5, 6, 2,
+            4, 0, 5, 9, 7, 12, 2, 10, 14, 1, 3, 8, 11, 6, 15, 13
+    };
+    private static final int[] R_PRIME = new int[]{
+            5, 14, 7, 0, 9, 2, 11, 4, 13, 6, 15, 8, 1, 10, 3, 12,
+            6, 11, 3, 7, 0, 13, 5, 10, 14, 15, 8, 12, 4, 9, 1, 2,
+            15, 5, 1, 3, 7, 14, 6, 9, 11, 8, 12, 2, 10, 0, 4, 13,
+            8, 6, 4, 1, 3, 11, 15, 0, 5, 12, 2, 13, 9, 7, 10, 14,
+            12, 15, 10, 4, 1, 5, 8, 7, 6, 2, 13, 14, 0, 3, 9, 11
+    };
+    private static final int[] S = new int[]{
+            11, 14, 15, 12, 5, 8, 7, 9, 11, 13, 14, 15, 6, 7, 9, 8,
+            7, 6, 8, 13, 11, 9, 7, 15, 7, 12, 15, 9, 11, 7, 13, 12,
+            11, 13, 6, 7, 14, 9, 13, 15, 14, 8, 13, 6, 5, 12, 7, 5,
+            11, 12, 14, 15, 14, 15, 9, 8, 9, 14, 5, 6, 8, 6, 5, 12,
+            9, 15, 5, 11, 6, 8, 13, 12, 5, 12, 13, 14, 11, 8, 5, 6
+    };
+    private static final int[] S_PRIME = new int[]{
+            8, 9, 9, 11, 13, 15, 15, 5, 7, 7, 8, 11, 14, 14, 12, 6,
+            9, 13, 15, 7, 12, 8, 9, 11, 7, 7, 12, 7, 6, 15, 13, 11,
+            9, 7, 15, 11, 8, 6, 6, 14, 12, 13, 5, 14, 13, 13, 7, 5,
+            15, 5, 8, 11, 14, 14, 6, 14, 6, 9, 12, 9, 12, 5, 15, 8,
+            8, 5, 12, 9, 12, 5, 14, 6, 8, 13, 6, 5, 15, 13, 11, 11
+    };
+    private static final int[] K = new int[]{0x00000000, 0x5a827999, 0x6ed9eba1, 0x8f1bbcdc, 0xa953fd4e};
+    private static final int[] K_PRIME = new int[]{0x50a28be6, 0x5c4dd124, 0x6d703ef3, 0x7a6d76e9, 0x00000000};
+
+    private Ripemd160() {
+    }
+
+    private static int f(int j, int x, int y, int z) {
+        switch (j >> 4) {
+            case 0:
+                return x ^ y ^ z;
+            case 1:
+                return (x & y) | (~x & z);
+            case 2:
+                return (x | ~y) ^ z;
+            case 3:
+                return (x & z) | (y & ~z);
+            default:
+                return x ^ (y | ~z);
+        }
+    }
+
+    /**
+     * Computes the RIPEMD-160 digest of a message.
+     *
+     * @return The 20 byte digest.
+     */
+    static byte[] digest(byte[] message) {
+        //Pad to a multiple of 64 bytes: 0x80, zeros, and the bit length as a little-endian 64 bit integer.
+        int padded = ((message.length + 8) / 64 + 1) * 64;
+        byte[] data = new byte[padded];
+        System.arraycopy(message, 0, data, 0, message.length);
+        data[message.length] = (byte) 0x80;
+        long bits = (long) message.length * 8;
+        for (int i = 0; i < 8; i++) {
+            data[padded - 8 + i] = (byte) (bits >>> (8 * i));
+        }
+
+        int h0 = 0x67452301;
+        int h1 = 0xefcdab89;
+        int h2 = 0x98badcfe;
+        int h3 = 0x10325476;
+        int h4 = 0xc3d2e1f0;
+        int[] x = new int[16];
+        for (int block = 0; block < padded; block += 64) {
+            for (int i = 0; i < 16; i++) {
+                int o = block + i * 4;
+                x[i] = (data[o] & 0xff) | (data[o + 1] & 0xff) << 8 | (data[o + 2] & 0xff) << 16 | (data[o + 3] & 0xff) << 24;
+            }
+
+            int a = h0, b = h1, c = h2, d = h3, e = h4;
+            int ap = h0, bp = h1, cp = h2, dp = h3, ep = h4;
+            for (int j = 0; j < 80; j++) {
+                int t = Integer.rotateLeft(a + f(j, b, c, d) + x[R[j]] + K[j >> 4], S[j]) + e;
+                a = e;
+                e = d;
+                d = Integer.rotateLeft(c, 10);
+                c = b;
+                b = t;
+
+                t = Integer.rotateLeft(ap + f(79 - j, bp, cp, dp) + x[R_PRIME[j]] + K_PRIME[j >> 4], S_PRIME[j]) + ep;
+                ap = ep;
+                ep = dp;
+                dp = Integer.rotateLeft(cp, 10);
+                cp = bp;
+                bp = t;
+            }
+
+            int t = h1 + c + dp;
+            h1 = h2 + d + ep;
+            h2 = h3 + e + ap;
+            h3 = h4 + a + bp;
+            h4 = h0 + b + cp;
+            h0 = t;
+        }
+
+        byte[] digest = new byte[20];
+        int[] h = new int[]{h0, h1, h2, h3, h4};
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j < 4; j++) {
+                digest[i * 4 + j] = (byte) (h[i] >>> (8 * j));
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * Computes RIPEMD-160(SHA-256(data)), as used for Bitcoin addresses and BIP 32 key identifiers.
+     *
+     * @return The 20 byte hash.
+     */
+    static byte[] hash160(byte[] data) {
+        try {
+            return digest(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.util;
+
+import java.math.BigInteger;
+
+/**
+ * Minimal secp256k1 arithmetic, used for the host side operations that the core module performs on public keys.
+ * <p/>
+ * Points are represented as arrays of BigIntegers, either affine {x, y} or Jacobian {X, Y, Z} (where x = X/Z^2 and
+ * y = Y/Z^3). A Jacobian point with Z = 0 is the point at infinity. Only public values should be handled by this
+ * class, as none of the operations are constant time.
+ */
+final class Secp256k1 {
+    static final BigInteger P = new BigInteger("fffffffffffffffffffffffffffffffffffffffffffffffffffffffefffffc2f", 16);
+    static final BigInteger N = new BigInteger("fffffffffffffffffffffffffffffffebaaedce6af48a03bbfd25e8cd0364141", 16);
+    static final BigInteger[] G = new BigInteger[]{
+            new BigInteger("79be667ef9dcbbac55a06295ce870b07029bfcdb2dce28d959f2815b16f81798", 16),
+            new BigInteger("483ada7726a3c4655da4fbfc0e1108a8fd17b448a68554199c47d08ffb10d4b8", 16)
+    };
+
+    private static final BigInteger SEVEN = BigInteger.valueOf(7);
+    private static final BigInteger SQRT_EXPONENT = P.add(BigInteger.ONE).shiftRight(2);
+    private static final BigInteger[] INFINITY = new BigInteger[]{BigInteger.ONE, BigInteger.ONE, BigInteger.ZERO};
+    private static final int WINDOW = 4;
+    private static final int G_NAF_WIDTH = 8;
+
+    private static final BigInteger[][] G_TABLE = precompute(G);
+    private static final BigInteger[][] G_ODD_MULTIPLES = oddMultiples(G, G_NAF_WIDTH);
+
+    private Secp256k1() {
+    }
+
+    /**
+     * Decodes a public key in SEC 1 format, compressed (33 bytes) or uncompressed (65 bytes).
+     *
+     * @return The affine point.
+     */
+    static BigInteger[] decodePoint(byte[] encoded, int offset, int length) {
+        BigInteger x = new BigInteger(1, copy(encoded, offset + 1, 32));
+        if (x.compareTo(P) >= 0) {
+            throw new IllegalArgumentException("Invalid public key encoding");
+        }
+        BigInteger y;
+        if (length == 65 && encoded[offset] == 0x04) {
+            y = new BigInteger(1, copy(encoded, offset + 33, 32));
+            if (!y.multiply(y).subtract(curveRhs(x)).mod(P).equals(BigInteger.ZERO)) {
+                throw new IllegalArgumentException("Point is not on the curve");
+            }
+        } else if (length == 33 && (encoded[offset] == 0x02 || encoded[offset] == 0x03)) {
+            BigInteger rhs = curveRhs(x);
+            y = rhs.modPow(SQRT_EXPONENT, P);
+            if (!y.multiply(y).mod(P).equals(rhs)) {
+                throw new IllegalArgumentException("Point is not on the curve");
+            }
+            if (y.testBit(0) != (encoded[offset] == 0x03)) {
+                y = P.subtract(y);
+            }
+        } else {
+            throw new IllegalArgumentException("Invalid public key encoding");
+        }
+        return new BigInteger[]{x, y};
+    }
+
+    /**
+     * Encodes an affine point as a SEC 1 public key.
+     */
+    static byte[] encodePoint(BigInteger[] point, boolean compress) {
+        byte[] encoded = new byte[compress ? 33 : 65];
+        if (compress) {
+            encoded[0] = (byte) (point[1].testBit(0) ? 0x03 : 0x02);
+        } else {
+            encoded[0] = 0x04;
+            writeFixed(point[1], encoded, 33);
+        }
+        writeFixed(point[0], encoded, 1);
+        return encoded;
+    }
+
+    /**
+     * Writes a non-negative integer as 32 big-endian bytes.
+     */
+    static void writeFixed(BigInteger value, byte[] out, int offset) {
+        byte[] bytes = value.toByteArray();
+        int length = Math.min(bytes.length, 32);
+        System.arraycopy(bytes, bytes.length - length, out, offset + 32 - length, length);
+        for (int i = offset; i < offset + 32 - length; i++) {
+            out[i] = 0;
+        }
+    }
+
+    private static byte[] copy(byte[] bytes, int offset, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(bytes, offset, copy, 0, length);
+        return copy;
+    }
+
+    private static BigInteger curveRhs(BigInteger x) {
+        return x.multiply(x).mod(P).multiply(x).add(SEVEN).mod(P);
+    }
+
+    static BigInteger[] toJacobian(BigInteger[] affine) {
+        return new BigInteger[]{affine[0], affine[1], BigInteger.ONE};
+    }
+
+    static boolean isInfinity(BigInteger[] jacobian) {
+        return jacobian[2].signum() == 0;
+    }
+
+    /**
+     * @return The affine point, or null for the point at infinity.
+     */
+    static BigInteger[] toAffine(BigInteger[] jacobian) {
+        if (isInfinity(jacobian)) {
+            return null;
+        }
+        BigInteger zInv = jacobian[2].modInverse(P);
+        BigInteger zInv2 = zInv.multiply(zInv).mod(P);
+        return new BigInteger[]{
+                jacobian[0].multiply(zInv2).mod(P),
+                jacobian[1].multiply(zInv2).mod(P).multiply(zInv).mod(P)
+        };
+    }
+
+    static BigInteger[] twice(BigInteger[] p) {
+        if (isInfinity(p) || p[1].signum() == 0) {
+            return INFINITY;
+        }
+        BigInteger a = p[0].multiply(p[0]).mod(P);
+        BigInteger b = p[1].multiply(p[1]).mod(P);
+        BigInteger c = b.multiply(b).mod(P);
+        BigInteger xb = p[0].add(b);
+        BigInteger d = xb.multiply(xb).subtract(a).subtract(c).shiftLeft(1).mod(P);
+        BigInteger e = a.multiply(BigInteger.valueOf(3)).mod(P);
+        BigInteger f = e.multiply(e).mod(P);
+        BigInteger x3 = f.subtract(d.shiftLeft(1)).mod(P);
+        BigInteger y3 = e.multiply(d.subtract(x3)).subtract(c.shiftLeft(3)).mod(P);
+        BigInteger z3 = p[1].multiply(p[2]).shiftLeft(1).mod(P);
+        return new BigInteger[]{x3, y3, z3};
+    }
+
+    static BigInteger[] add(BigInteger[] p, BigInteger[] q) {
+        if (isInfinity(p)) {
+            return q;
+        }
+        if (isInfinity(q)) {
+            return p;
+        }
+        BigInteger z1z1 = p[2].multiply(p[2]).mod(P);
+        BigInteger z2z2 = q[2].multiply(q[2]).mod(P);
+        BigInteger u1 = p[0].multiply(z2z2).mod(P);
+        BigInteger u2 = q[0].multiply(z1z1).mod(P);
+        BigInteger s1 = p[1].multiply(q[2]).mod(P).multiply(z2z2).mod(P);
+        BigInteger s2 = q[1].multiply(p[2]).mod(P).multiply(z1z1).mod(P);
+        BigInteger h = u2.subtract(u1).mod(P);
+        BigInteger r = s2.subtract(s1).mod(P);
+        if (h.signum() == 0) {
+            return r.signum() == 0 ? twice(p) : INFINITY;
+        }
+        BigInteger hh = h.multiply(h).mod(P);
+        BigInteger hhh = hh.multiply(h).mod(P);
+        BigInteger v = u1.multiply(hh).mod(P);
+        BigInteger x3 = r.multiply(r).subtract(hhh).subtract(v.shiftLeft(1)).mod(P);
+        BigInteger y3 = r.multiply(v.subtract(x3)).subtract(s1.multiply(hhh)).mod(P);
+        BigInteger z3 = h.multiply(p[2]).mod(P).multiply(q[2]).mod(P);
+        return new BigInteger[]{x3, y3, z3};
+    }
+
+    /**
+     * Adds an affine point to a Jacobian point.
+     */
+    static BigInteger[] addAffine(BigInteger[] p, BigInteger[] q) {
+        if (isInfinity(p)) {
+            return toJacobian(q);
+        }
+        BigInteger z1z1 = p[2].multiply(p[2]).mod(P);
+        BigInteger u2 = q[0].multiply(z1z1).mod(P);
+        BigInteger s2 = q[1].multiply(p[2]).mod(P).multiply(z1z1).mod(P);
+        BigInteger h = u2.subtract(p[0]).mod(P);
+        BigInteger r = s2.subtract(p[1]).mod(P);
+        if (h.signum() == 0) {
+            return r.signum() == 0 ? twice(p) : INFINITY;
+        }
+        BigInteger hh = h.multiply(h).mod(P);
+        BigInteger hhh = hh.multiply(h).mod(P);
+        BigInteger v = p[0].multiply(hh).mod(P);
+        BigInteger x3 = r.multiply(r).subtract(hhh).subtract(v.shiftLeft(1)).mod(P);
+        BigInteger y3 = r.multiply(v.subtract(x3)).subtract(p[1].multiply(hhh)).mod(P);
+        BigInteger z3 = h.multiply(p[2]).mod(P);
+        return new BigInteger[]{x3, y3, z3};
+    }
+
+    static BigInteger[] negate(BigInteger[] p) {
+        return new BigInteger[]{p[0], p[1].signum() == 0 ? p[1] : P.subtract(p[1]), p[2]};
+    }
+
+    /**
+     * Computes the multiples 0 * point through 15 * point, in Jacobian coordinates.
+     */
+    static BigInteger[][] precompute(BigInteger[] affine) {
+        BigInteger[][] table = new BigInteger[1 << WINDOW][];
+        table[0] = INFINITY;
+        table[1] = toJacobian(affine);
+        for (int i = 2; i < table.length; i++) {
+            table[i] = add(table[i - 1], table[1]);
+        }
+        return table;
+    }
+
+    /**
+     * Multiplies a point, given as a table from precompute, by a scalar using a fixed 4 bit window.
+     *
+     * @return The product in Jacobian coordinates.
+     */
+    static BigInteger[] multiply(BigInteger[][] table, BigInteger k) {
+        BigInteger[] result = INFINITY;
+        for (int i = (k.bitLength() + WINDOW - 1) / WINDOW - 1; i >= 0; i--) {
+            for (int j = 0; j < WINDOW; j++) {
+                result = twice(result);
+            }
+            int digit = 0;
+            for (int j = WINDOW - 1; j >= 0; j--) {
+                digit = (digit << 1) | (k.testBit(i * WINDOW + j) ? 1 : 0);
+            }
+            if (digit != 0) {
+                result = add(result, table[digit]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes the odd multiples 1 * point, 3 * point, ..., (2^(width - 1) - 1) * point, in affine coordinates, for use
+     * with multiplyAdd. All of the points are converted using a single field inversion.
+     */
+    static BigInteger[][] oddMultiples(BigInteger[] affine, int width) {
+        BigInteger[][] table = new BigInteger[1 << (width - 2)][];
+        table[0] = toJacobian(affine);
+        BigInteger[] twice = twice(table[0]);
+        for (int i = 1; i < table.length; i++) {
+            table[i] = add(table[i - 1], twice);
+        }
+
+        //Montgomery's trick: invert the product of all Z, then peel off the individual inverses.
+        BigInteger[] products = new BigInteger[table.length];
+        BigInteger acc = BigInteger.ONE;
+        for (int i = 0; i < table.length; i++) {
+            products[i] = acc;
+            acc = acc.multiply(table[i][2]).mod(P);
+        }
+        acc = acc.modInverse(P);
+        for (int i = table.length - 1; i >= 0; i--) {
+            BigInteger zInv = acc.multiply(products[i]).mod(P);
+            acc = acc.multiply(table[i][2]).mod(P);
+            BigInteger zInv2 = zInv.multiply(zInv).mod(P);
+            table[i] = new BigInteger[]{
+                    table[i][0].multiply(zInv2).mod(P),
+                    table[i][1].multiply(zInv2).mod(P).multiply(zInv).mod(P)
+            };
+        }
+        return table;
+    }
+
+    /**
+     * Writes a non-negative scalar in width-w non-adjacent form: every digit is either zero or odd with an absolute
+     * value below 2^(width - 1), and any two non-zero digits are at least width positions apart.
+     *
+     * @return The digits, least significant first.
+     */
+    static int[] toNaf(BigInteger k, int width) {
+        int[] naf = new int[k.bitLength() + 1];
+        int mask = (1 << width) - 1;
+        for (int i = 0; k.signum() > 0; i++) {
+            if (k.testBit(0)) {
+                int digit = k.intValue() & mask;
+                if (digit >= 1 << (width - 1)) {
+                    digit -= 1 << width;
+                }
+                naf[i] = digit;
+                k = k.subtract(BigInteger.valueOf(digit));
+            }
+            k = k.shiftRight(1);
+        }
+        return naf;
+    }
+
+    /**
+     * Computes a * A + b * B, where A and B are given as tables from oddMultiples, using a single chain of doublings
+     * for both products (Strauss' and Shamir's trick).
+     *
+     * @return The sum in Jacobian coordinates.
+     */
+    static BigInteger[] multiplyAdd(BigInteger[][] aTable, BigInteger a, BigInteger[][] bTable, BigInteger b) {
+        int[] aNaf = toNaf(a, Integer.numberOfTrailingZeros(aTable.length) + 2);
+        int[] bNaf = toNaf(b, Integer.numberOfTrailingZeros(bTable.length) + 2);
+        BigInteger[] result = INFINITY;
+        for (int i = Math.max(aNaf.length, bNaf.length) - 1; i >= 0; i--) {
+            result = twice(result);
+            if (i < aNaf.length && aNaf[i] != 0) {
+                result = addDigit(result, aTable, aNaf[i]);
+            }
+            if (i < bNaf.length && bNaf[i] != 0) {
+                result = addDigit(result, bTable, bNaf[i]);
+            }
+        }
+        return result;
+    }
+
+    private static BigInteger[] addDigit(BigInteger[] p, BigInteger[][] table, int digit) {
+        BigInteger[] q = table[(Math.abs(digit) - 1) >> 1];
+        if (digit < 0) {
+            q = new BigInteger[]{q[0], q[1].signum() == 0 ? q[1] : P.subtract(q[1])};
+        }
+        return addAffine(p, q);
+    }
+
+    /**
+     * Computes a * G + b * B, where B is given as a table from oddMultiples.
+     *
+     * @return The sum in Jacobian coordinates.
+     */
+    static BigInteger[] multiplyGAdd(BigInteger a, BigInteger[][] bTable, BigInteger b) {
+        return multiplyAdd(G_ODD_MULTIPLES, a, bTable, b);
+    }
+
+    /**
+     * Multiplies the generator point by a scalar.
+     *
+     * @return The product in Jacobian coordinates.
+     */
+    static BigInteger[] multiplyG(BigInteger k) {
+        return multiply(G_TABLE, k);
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.util;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks ECDSA signatures, such as those returned by {@link com.yubico.bitcoin.api.YkneoBitcoin#sign(byte[], int...)},
+ * against the public keys they should have been made with, so that a bad signature can be caught before it leaves
+ * the process.
+ * <p/>
+ * Signatures are queued using add, and checked together by verify. Each public key is decoded and expanded into a
+ * table of multiples once, and the table is shared by every signature made with that key, in this and later batches.
+ * Each signature is then checked with a single interleaved multiplication u1 * G + u2 * Q (Shamir's trick), and the
+ * result is compared to r without leaving Jacobian coordinates, so that no field inversion is needed per signature.
+ * <p/>
+ * Instances are not thread safe.
+ */
+public final class SignatureVerifier {
+    private static final int KEY_NAF_WIDTH = 5;
+    private static final int MAX_CACHED_KEYS = 256;
+    private static final BigInteger P_MINUS_N = Secp256k1.P.subtract(Secp256k1.N);
+
+    private final Map<ByteBuffer, BigInteger[][]> keyTables = new LinkedHashMap<ByteBuffer, BigInteger[][]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, BigInteger[][]> eldest) {
+            return size() > MAX_CACHED_KEYS;
+        }
+    };
+    private final List<byte[][]> pending = new ArrayList<byte[][]>();
+
+    /**
+     * Queues a signature to be checked by the next call to verify.
+     *
+     * @param hash      The 32 byte hash which was signed.
+     * @param signature The DER encoded signature.
+     * @param publicKey The compressed or uncompressed public key of the signing key.
+     */
+    public void add(byte[] hash, byte[] signature, byte[] publicKey) {
+        if (hash.length != 32) {
+            throw new IllegalArgumentException("Hash must be 32 bytes!");
+        }
+        pending.add(new byte[][]{hash.clone(), signature.clone(), publicKey.clone()});
+    }
+
+    /**
+     * @return The number of signatures waiting to be checked.
+     */
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * Checks all queued signatures, and empties the queue.
+     *
+     * @return For each signature, in the order they were added, true if it is valid, false if not. Malformed
+     * signatures and public keys are reported as invalid.
+     */
+    public boolean[] verify() {
+        boolean[] results = new boolean[pending.size()];
+        for (int i = 0; i < results.length; i++) {
+            byte[][] entry = pending.get(i);
+            BigInteger[][] table = keyTable(entry[2]);
+            results[i] = table != null && check(entry[0], entry[1], table);
+        }
+        pending.clear();
+        return results;
+    }
+
+    /**
+     * Checks all queued signatures, and empties the queue.
+     *
+     * @return True if every signature is valid, false if not.
+     */
+    public boolean verifyAll() {
+        for (boolean valid : verify()) {
+            if (!valid) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks a single signature.
+     *
+     * @param hash      The 32 byte hash which was signed.
+     * @param signature The DER encoded signature.
+     * @param publicKey The compressed or uncompressed public key of the signing key.
+     * @return True if the signature is valid, false if not.
+     */
+    public static boolean verify(byte[] hash, byte[] signature, byte[] publicKey) {
+        if (hash.length != 32) {
+            throw new IllegalArgumentException("Hash must be 32 bytes!");
+        }
+        BigInteger[][] table = prepare(publicKey);
+        return table != null && check(hash, signature, table);
+    }
+
+    private BigInteger[][] keyTable(byte[] publicKey) {
+        ByteBuffer key = ByteBuffer.wrap(publicKey);
+        if (keyTables.containsKey(key)) {
+            return keyTables.get(key);
+        }
+        BigInteger[][] table = prepare(publicKey);
+        keyTables.put(key, table);
+        return table;
+    }
+
+    private static BigInteger[][] prepare(byte[] publicKey) {
+        try {
+            return Secp256k1.oddMultiples(Secp256k1.decodePoint(publicKey, 0, publicKey.length), KEY_NAF_WIDTH);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean check(byte[] hash, byte[] signature, BigInteger[][] keyTable) {
+        BigInteger[] rs = decodeSignature(signature);
+        if (rs == null) {
+            return false;
+        }
+        BigInteger r = rs[0];
+        BigInteger w = rs[1].modInverse(Secp256k1.N);
+        BigInteger u1 = new BigInteger(1, hash).multiply(w).mod(Secp256k1.N);
+        BigInteger u2 = r.multiply(w).mod(Secp256k1.N);
+        BigInteger[] point = Secp256k1.multiplyGAdd(u1, keyTable, u2);
+        if (Secp256k1.isInfinity(point)) {
+            return false;
+        }
+
+        //The signature is valid if x mod n == r, where x = X / Z^2. Since n < p, x is either r or r + n.
+        BigInteger zz = point[2].multiply(point[2]).mod(Secp256k1.P);
+        BigInteger x = point[0].mod(Secp256k1.P);
+        if (r.multiply(zz).mod(Secp256k1.P).equals(x)) {
+            return true;
+        }
+        return r.compareTo(P_MINUS_N) < 0 && r.add(Secp256k1.N).multiply(zz).mod(Secp256k1.P).equals(x);
+    }
+
+    /**
+     * Parses a DER encoded signature.
+     *
+     * @return {r, s}, or null if the encoding is invalid or either value is out of range.
+     */
+    static BigInteger[] decodeSignature(byte[] signature) {
+        if (signature.length < 8 || signature[0] != 0x30 || (signature[1] & 0xff) != signature.length - 2) {
+            return null;
+        }
+        int rLength = signature[3] & 0xff;
+        if (signature[2] != 0x02 || 4 + rLength + 2 > signature.length) {
+            return null;
+        }
+        int sOffset = 4 + rLength;
+        int sLength = signature[sOffset + 1] & 0xff;
+        if (signature[sOffset] != 0x02 || sOffset + 2 + sLength != signature.length) {
+            return null;
+        }
+        BigInteger r = decodeInteger(signature, 4, rLength);
+        BigInteger s = decodeInteger(signature, sOffset + 2, sLength);
+        if (r == null || s == null) {
+            return null;
+        }
+        return new BigInteger[]{r, s};
+    }
+
+    private static BigInteger decodeInteger(byte[] bytes, int offset, int length) {
+        if (length == 0 || length > 33 || (bytes[offset] & 0x80) != 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        System.arraycopy(bytes, offset, value, 0, length);
+        BigInteger integer = new BigInteger(value);
+        if (integer.signum() == 0 || integer.compareTo(Secp256k1.N) >= 0) {
+            return null;
+        }
+        return integer;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.util;
+
+import com.yubico.bitcoin.transport.ApduTransport;
+
+import java.io.IOException;
+
+/**
+ * YkneoBitcoin implementation which talks to a YubiKey NEO over any ApduTransport. This allows transports to be
+ * layered, for instance adding retries to a PC/SC or NFC connection, without subclassing the device classes.
+ */
+public class YkneoBitcoinClient extends AbstractYkneoBitcoin {
+    /**
+     * Creates a client and selects the applet.
+     *
+     * @param transport The transport to send all commands over.
+     * @throws IOException
+     */
+    public YkneoBitcoinClient(ApduTransport transport) throws IOException {
+        super(transport);
+
+        select();
+    }
+
+    @Override
+    public ApduTransport getTransport() {
+        return super.getTransport();
+    }
+}
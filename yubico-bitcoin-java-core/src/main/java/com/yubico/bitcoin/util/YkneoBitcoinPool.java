@@ -0,0 +1,523 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.util;
+
+import com.yubico.bitcoin.api.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * YkneoBitcoin backed by several devices holding the same extended key pair, used to scale signing throughput.
+ * <p/>
+ * Each device can only handle one command at a time. Read operations (getHeader, getPublicKey(s), sign, signBatch and
+ * exportExtendedPublicKey) are routed to the available device with the fewest outstanding requests, ties being broken
+ * by the lowest average latency. Concurrent callers are thus spread over all devices. A device which hasn't been picked
+ * for a while is given a request anyway, so that its latency and health stay known. If a device fails with an
+ * IOException the request is retried on another device. After a number of consecutive failures a device is taken out
+ * of rotation, and after a cool down period a single request is allowed to try it again. Before doing so the device is
+ * unlocked using the user PIN last given to the pool and its fingerprint is checked, so that replugged or reset
+ * devices can rejoin the pool.
+ * <p/>
+ * PIN operations and importExtendedKeyPair are applied to every device in turn. If one device fails, the devices before
+ * it will already have been changed. generateMasterKeyPair is not permitted, as each device would generate a different
+ * key pair.
+ */
+public class YkneoBitcoinPool implements YkneoBitcoin {
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    public static final long DEFAULT_COOL_DOWN_MILLIS = 5000;
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+    private static final double LATENCY_WEIGHT = 0.2;
+    /**
+     * The number of requests after which a device in rotation which hasn't been picked is tried anyway.
+     */
+    private static final int PROBE_INTERVAL = 16;
+
+    private final Member[] members;
+    private volatile byte[] fingerprint;
+    private final int failureThreshold;
+    private final long coolDownNanos;
+    private volatile String userPin;
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Creates a pool using the default failure threshold and cool down period.
+     *
+     * @see #YkneoBitcoinPool(java.util.List, String, int, long)
+     */
+    public YkneoBitcoinPool(List<? extends YkneoBitcoin> devices, String userPin) throws IncorrectPINException, PinModeLockedException, UnusableIndexException, IOException {
+        this(devices, userPin, DEFAULT_FAILURE_THRESHOLD, DEFAULT_COOL_DOWN_MILLIS);
+    }
+
+    /**
+     * Creates a pool of devices, unlocking each one in user mode and checking that they all hold the same key pair.
+     *
+     * @param devices          The devices to pool. These must not be used directly once added.
+     * @param userPin          The user PIN, which must be the same for all devices.
+     * @param failureThreshold The number of consecutive failures after which a device is taken out of rotation.
+     * @param coolDownMillis   The time to wait before trying a device which has been taken out of rotation.
+     * @throws IncorrectPINException
+     * @throws PinModeLockedException
+     * @throws UnusableIndexException
+     * @throws IOException
+     */
+    public YkneoBitcoinPool(List<? extends YkneoBitcoin> devices, String userPin, int failureThreshold, long coolDownMillis) throws IncorrectPINException, PinModeLockedException, UnusableIndexException, IOException {
+        if (devices.isEmpty()) {
+            throw new IllegalArgumentException("A pool requires at least one device");
+        }
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException(String.format("Invalid failure threshold: %d", failureThreshold));
+        }
+
+        members = new Member[devices.size()];
+        byte[] expected = null;
+        for (int i = 0; i < members.length; i++) {
+            YkneoBitcoin neo = devices.get(i);
+            neo.unlockUser(userPin);
+            byte[] deviceFingerprint = DeviceFingerprint.of(neo);
+            if (expected == null) {
+                expected = deviceFingerprint;
+            } else if (!Arrays.equals(expected, deviceFingerprint)) {
+                throw new IllegalArgumentException(String.format("Device %d holds a different key pair than device 0", i));
+            }
+            members[i] = new Member(neo);
+        }
+        fingerprint = expected;
+        this.userPin = userPin;
+        this.failureThreshold = failureThreshold;
+        coolDownNanos = TimeUnit.MILLISECONDS.toNanos(coolDownMillis);
+    }
+
+    /**
+     * @return The total number of devices in the pool.
+     */
+    public int size() {
+        return members.length;
+    }
+
+    /**
+     * @return The number of devices which are currently in rotation.
+     */
+    public int getAvailableCount() {
+        int count = 0;
+        for (Member member : members) {
+            if (member.state.get() == CLOSED) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The fingerprint shared by all devices in the pool.
+     * @see DeviceFingerprint
+     */
+    public byte[] getFingerprint() {
+        return fingerprint.clone();
+    }
+
+    @Override
+    public String getAppletVersion() {
+        return members[0].neo.getAppletVersion();
+    }
+
+    @Override
+    public boolean isKeyLoaded() {
+        for (Member member : members) {
+            if (member.state.get() == CLOSED && member.neo.isKeyLoaded()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Unlocks user mode on all devices. Devices which fail with an IOException are skipped, and will be unlocked with
+     * this PIN when they are next tried.
+     */
+    @Override
+    public void unlockUser(String pin) throws IncorrectPINException, IOException {
+        IOException lastError = null;
+        int unlocked = 0;
+        for (Member member : members) {
+            synchronized (member) {
+                try {
+                    member.neo.unlockUser(pin);
+                    member.pinRejected = false;
+                    unlocked++;
+                } catch (IncorrectPINException e) {
+                    throw e;
+                } catch (IOException e) {
+                    lastError = e;
+                    member.recordFailure();
+                }
+            }
+        }
+        userPin = pin;
+        if (unlocked == 0) {
+            throw lastError;
+        }
+    }
+
+    @Override
+    public void unlockAdmin(String pin) throws IncorrectPINException, IOException {
+        for (Member member : members) {
+            synchronized (member) {
+                member.neo.unlockAdmin(pin);
+            }
+        }
+    }
+
+    @Override
+    public boolean isUserUnlocked() {
+        for (Member member : members) {
+            if (member.state.get() == CLOSED && member.neo.isUserUnlocked()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isAdminUnlocked() {
+        for (Member member : members) {
+            if (!member.neo.isAdminUnlocked()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void setUserPin(String oldPin, String newPin) throws IncorrectPINException, IOException {
+        for (Member member : members) {
+            synchronized (member) {
+                member.neo.setUserPin(oldPin, newPin);
+            }
+        }
+        userPin = newPin;
+    }
+
+    @Override
+    public void setAdminPin(String oldPin, String newPin) throws IncorrectPINException, IOException {
+        for (Member member : members) {
+            synchronized (member) {
+                member.neo.setAdminPin(oldPin, newPin);
+            }
+        }
+    }
+
+    @Override
+    public void resetUserPin(String newPin) throws PinModeLockedException, IOException {
+        for (Member member : members) {
+            synchronized (member) {
+                member.neo.resetUserPin(newPin);
+                member.pinRejected = false;
+            }
+        }
+        userPin = newPin;
+    }
+
+    @Override
+    public void setUserRetryCount(int attempts) throws PinModeLockedException, IOException {
+        for (Member member : members) {
+            synchronized (member) {
+                member.neo.setUserRetryCount(attempts);
+            }
+        }
+    }
+
+    @Override
+    public void setAdminRetryCount(int attempts) throws PinModeLockedException, IOException {
+        for (Member member : members) {
+            synchronized (member) {
+                member.neo.setAdminRetryCount(attempts);
+            }
+        }
+    }
+
+    @Override
+    public byte[] getHeader() throws PinModeLockedException, IOException, NoKeyLoadedException {
+        return execute(new Operation<byte[], RuntimeException>() {
+            @Override
+            public byte[] run(YkneoBitcoin neo) throws PinModeLockedException, IOException {
+                return neo.getHeader();
+            }
+        });
+    }
+
+    @Override
+    public byte[] getPublicKey(final boolean compress, final int... index) throws PinModeLockedException, UnusableIndexException, IOException, NoKeyLoadedException {
+        return execute(new Operation<byte[], UnusableIndexException>() {
+            @Override
+            public byte[] run(YkneoBitcoin neo) throws UnusableIndexException, PinModeLockedException, IOException {
+                return neo.getPublicKey(compress, index);
+            }
+        });
+    }
+
+    @Override
+    public byte[] getPublicKeys(final boolean compress, final int[] parentPath, final int fromChild, final int count) throws PinModeLockedException, UnusableIndexException, IOException, NoKeyLoadedException {
+        return execute(new Operation<byte[], UnusableIndexException>() {
+            @Override
+            public byte[] run(YkneoBitcoin neo) throws UnusableIndexException, PinModeLockedException, IOException {
+                return neo.getPublicKeys(compress, parentPath, fromChild, count);
+            }
+        });
+    }
+
+    @Override
+    public byte[] sign(final byte[] hash, final int... index) throws PinModeLockedException, UnusableIndexException, IOException, NoKeyLoadedException {
+        return execute(new Operation<byte[], UnusableIndexException>() {
+            @Override
+            public byte[] run(YkneoBitcoin neo) throws UnusableIndexException, PinModeLockedException, IOException {
+                return neo.sign(hash, index);
+            }
+        });
+    }
+
+    /**
+     * Signs all requests using a single device. To spread a large batch over several devices, split it and submit the
+     * parts from separate threads.
+     */
+    @Override
+    public List<SignResult> signBatch(final List<SignRequest> requests) throws PinModeLockedException, IOException {
+        return execute(new Operation<List<SignResult>, RuntimeException>() {
+            @Override
+            public List<SignResult> run(YkneoBitcoin neo) throws PinModeLockedException, IOException {
+                return neo.signBatch(requests);
+            }
+        });
+    }
+
+    @Override
+    public byte[] generateMasterKeyPair(boolean allowExport, boolean returnPrivateKey, boolean testnetKey) throws PinModeLockedException, IOException {
+        throw new OperationNotPermittedException();
+    }
+
+    /**
+     * Imports the key pair onto every device, and updates the fingerprint of the pool. Requests running at the same
+     * time may be served by a device holding either key pair. Requires both user and admin mode to be unlocked.
+     */
+    @Override
+    public void importExtendedKeyPair(byte[] extendedPrivateKey, boolean allowExport) throws PinModeLockedException, IOException {
+        byte[] expected = null;
+        for (int i = 0; i < members.length; i++) {
+            Member member = members[i];
+            synchronized (member) {
+                member.neo.importExtendedKeyPair(extendedPrivateKey, allowExport);
+                byte[] deviceFingerprint;
+                try {
+                    deviceFingerprint = DeviceFingerprint.of(member.neo);
+                } catch (PinModeLockedException e) {
+                    throw e;
+                } catch (YkneoBitcoinException e) {
+                    throw new IOException("Unable to verify device", e);
+                }
+                if (expected == null) {
+                    expected = deviceFingerprint;
+                } else if (!Arrays.equals(expected, deviceFingerprint)) {
+                    throw new IOException(String.format("Device %d holds a different key pair than device 0", i));
+                }
+            }
+        }
+        fingerprint = expected;
+    }
+
+    @Override
+    public byte[] exportExtendedPublicKey() throws PinModeLockedException, IOException, OperationNotPermittedException, NoKeyLoadedException {
+        return execute(new Operation<byte[], RuntimeException>() {
+            @Override
+            public byte[] run(YkneoBitcoin neo) throws PinModeLockedException, IOException {
+                return neo.exportExtendedPublicKey();
+            }
+        });
+    }
+
+    private <T, E extends Exception> T execute(Operation<T, E> operation) throws E, PinModeLockedException, IOException {
+        boolean[] tried = new boolean[members.length];
+        IOException lastError = null;
+        for (int attempt = 0; attempt < members.length; attempt++) {
+            int i = select(tried);
+            if (i < 0) {
+                break;
+            }
+            tried[i] = true;
+            try {
+                return members[i].execute(operation);
+            } catch (OperationNotPermittedException e) {
+                throw e;
+            } catch (IOException e) {
+                lastError = e;
+            }
+        }
+        if (lastError != null) {
+            throw lastError;
+        }
+        throw new IOException("No devices are available in the pool");
+    }
+
+    /**
+     * Picks the device to use for the next request, and counts the request as outstanding for it.
+     * A device which has cooled down is given priority, so that it may rejoin the pool. Next comes a device which hasn't
+     * been picked in PROBE_INTERVAL requests, as its latency may no longer be accurate.
+     */
+    private int select(boolean[] tried) {
+        long now = System.nanoTime();
+        long request = requests.incrementAndGet();
+        int best = -1;
+        int stale = -1;
+        for (int i = 0; i < members.length; i++) {
+            Member member = members[i];
+            if (tried[i]) {
+                continue;
+            }
+            int state = member.state.get();
+            if (state == OPEN && now - member.openedAt >= coolDownNanos && member.state.compareAndSet(OPEN, HALF_OPEN)) {
+                best = i;
+                stale = -1;
+                break;
+            }
+            if (state == CLOSED) {
+                if (request - member.lastRequest > PROBE_INTERVAL && (stale == -1 || member.lastRequest < members[stale].lastRequest)) {
+                    stale = i;
+                }
+                if (best == -1 || isBetter(member, members[best])) {
+                    best = i;
+                }
+            }
+        }
+        if (stale >= 0) {
+            best = stale;
+        }
+        if (best >= 0) {
+            members[best].lastRequest = request;
+            members[best].outstanding.incrementAndGet();
+        }
+        return best;
+    }
+
+    private static boolean isBetter(Member candidate, Member current) {
+        int outstanding = candidate.outstanding.get();
+        int currentOutstanding = current.outstanding.get();
+        return outstanding < currentOutstanding || (outstanding == currentOutstanding && candidate.latency < current.latency);
+    }
+
+    private interface Operation<T, E extends Exception> {
+        T run(YkneoBitcoin neo) throws E, PinModeLockedException, IOException;
+    }
+
+    private class Member {
+        private final YkneoBitcoin neo;
+        private final AtomicInteger state = new AtomicInteger(CLOSED);
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile double latency;
+        private volatile long openedAt;
+        private volatile long lastRequest;
+        private int failures;
+        private boolean pinRejected;
+
+        private Member(YkneoBitcoin neo) {
+            this.neo = neo;
+        }
+
+        private synchronized <T, E extends Exception> T execute(Operation<T, E> operation) throws E, PinModeLockedException, IOException {
+            try {
+                long start = System.nanoTime();
+                if (state.get() == HALF_OPEN) {
+                    rejoin();
+                    recordSuccess(0);
+                }
+                T result;
+                try {
+                    result = operation.run(neo);
+                } catch (PinModeLockedException e) {
+                    //The device may have been reset, unlock it again and retry.
+                    if (e.getPinMode() != PinMode.USER || userPin == null || pinRejected) {
+                        throw e;
+                    }
+                    unlock();
+                    result = operation.run(neo);
+                }
+                recordSuccess(System.nanoTime() - start);
+                return result;
+            } catch (OperationNotPermittedException e) {
+                recordSuccess(0);
+                throw e;
+            } catch (IOException e) {
+                recordFailure();
+                throw e;
+            } finally {
+                if (state.get() == HALF_OPEN) {
+                    //The trial ended without showing whether the device is usable.
+                    openedAt = System.nanoTime();
+                    state.set(OPEN);
+                }
+                outstanding.decrementAndGet();
+            }
+        }
+
+        private void rejoin() throws IOException {
+            if (userPin != null) {
+                unlock();
+            }
+            try {
+                if (!Arrays.equals(fingerprint, DeviceFingerprint.of(neo))) {
+                    throw new IOException("Device no longer holds the key pair of the pool");
+                }
+            } catch (YkneoBitcoinException e) {
+                throw new IOException("Unable to verify device", e);
+            }
+        }
+
+        private void unlock() throws IOException {
+            if (pinRejected) {
+                throw new IOException("Device rejected the user PIN");
+            }
+            try {
+                neo.unlockUser(userPin);
+            } catch (IncorrectPINException e) {
+                //Don't use up the remaining attempts, wait for unlockUser to be called with a new PIN.
+                pinRejected = true;
+                throw new IOException("Device rejected the user PIN", e);
+            }
+        }
+
+        private synchronized void recordSuccess(long nanos) {
+            failures = 0;
+            if (nanos > 0) {
+                latency = latency == 0 ? nanos : latency + LATENCY_WEIGHT * (nanos - latency);
+            }
+            state.set(CLOSED);
+        }
+
+        private synchronized void recordFailure() {
+            failures++;
+            if (state.get() == HALF_OPEN || failures >= failureThreshold) {
+                openedAt = System.nanoTime();
+                state.set(OPEN);
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.transport;
+
+import com.yubico.bitcoin.util.YkneoConstants;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ApduMetricsTest {
+    @Test
+    public void testBuckets() {
+        for (long value = 0; value < 100000; value++) {
+            int bucket = ApduMetrics.bucketOf(value);
+            assertTrue(value <= ApduMetrics.bucketUpperBound(bucket));
+            if (bucket > 0) {
+                assertTrue(value > ApduMetrics.bucketUpperBound(bucket - 1));
+            }
+        }
+        assertEquals(Long.MAX_VALUE, ApduMetrics.bucketUpperBound(ApduMetrics.bucketOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testPercentiles() {
+        ApduMetrics metrics = new ApduMetrics();
+        for (int i = 1; i <= 100; i++) {
+            metrics.record(YkneoConstants.INS_SIGN, 0x9000, i * 1000000L, 41, 73);
+        }
+        ApduMetrics.InstructionSnapshot sign = metrics.snapshot().get(YkneoConstants.INS_SIGN);
+        assertEquals(100, sign.getCount());
+        assertEquals(4100, sign.getBytesOut());
+        assertEquals(7300, sign.getBytesIn());
+        assertEquals(100, sign.getStatusCount(ApduMetrics.Status.OK));
+
+        long p50 = sign.getPercentile(50);
+        assertTrue(p50 >= 50000000L && p50 <= 50000000L * 1.125);
+        long p100 = sign.getPercentile(100);
+        assertTrue(p100 >= 100000000L && p100 <= 100000000L * 1.125);
+        assertNull(metrics.snapshot().get(YkneoConstants.INS_GET_PUB));
+    }
+
+    @Test
+    public void testTransport() throws Exception {
+        ApduMetrics metrics = new ApduMetrics();
+        final int[] statusWords = new int[]{0x9000, 0x63c2, 0x6a82};
+        ApduTransport fake = new ApduTransport() {
+            private int calls;
+
+            @Override
+            public void transmit(ByteBuffer command, ByteBuffer response) throws IOException {
+                command.position(command.limit());
+                if (calls == statusWords.length) {
+                    throw new IOException("Device removed");
+                }
+                response.putShort((short) statusWords[calls++]);
+            }
+        };
+        ApduTransport transport = new MetricsApduTransport(fake, metrics);
+        for (int i = 0; i < 4; i++) {
+            try {
+                transport.transmit(ByteBuffer.wrap(new byte[]{0x00, YkneoConstants.INS_VERIFY_PIN, 0x00, 0x00, 0x01, 0x30}), ByteBuffer.allocate(258));
+            } catch (IOException e) {
+                assertEquals(3, i);
+            }
+        }
+
+        ApduMetrics.Snapshot snapshot = metrics.snapshot();
+        ApduMetrics.InstructionSnapshot verify = snapshot.get(YkneoConstants.INS_VERIFY_PIN);
+        assertEquals(4, verify.getCount());
+        assertEquals(24, verify.getBytesOut());
+        assertEquals(6, verify.getBytesIn());
+        assertEquals(1, snapshot.getStatusCount(ApduMetrics.Status.OK));
+        assertEquals(1, snapshot.getStatusCount(ApduMetrics.Status.INCORRECT_PIN));
+        assertEquals(1, snapshot.getStatusCount(ApduMetrics.Status.NO_KEY_LOADED));
+        assertEquals(1, snapshot.getStatusCount(ApduMetrics.Status.TRANSPORT_ERROR));
+    }
+}
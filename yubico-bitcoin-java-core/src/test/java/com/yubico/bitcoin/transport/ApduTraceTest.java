@@ -0,0 +1,114 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.transport;
+
+import com.yubico.bitcoin.util.YkneoConstants;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ApduTraceTest {
+    private static final byte[] PIN_COMMAND = new byte[]{0x00, YkneoConstants.INS_VERIFY_PIN, 0x00, 0x00, 0x02, 0x31, 0x32};
+    private static final byte[] PUB_COMMAND = new byte[]{0x00, YkneoConstants.INS_GET_PUB, 0x00, 0x00, 0x04, 0x00, 0x00, 0x00, 0x07};
+
+    /**
+     * Responds with the data of the command followed by 0x9000, and fails on empty commands.
+     */
+    private static final ApduTransport ECHO = new ApduTransport() {
+        @Override
+        public void transmit(ByteBuffer command, ByteBuffer response) throws IOException {
+            command.position(command.position() + 4);
+            if (!command.hasRemaining()) {
+                throw new IOException("No data");
+            }
+            command.get();
+            response.put(command).putShort((short) 0x9000);
+        }
+    };
+
+    private static byte[] transmit(ApduTransport transport, byte[] command) throws IOException {
+        ByteBuffer response = ByteBuffer.allocate(258);
+        transport.transmit(ByteBuffer.wrap(command), response);
+        return Arrays.copyOf(response.array(), response.position());
+    }
+
+    private static byte[] record() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RecordingApduTransport recorder = new RecordingApduTransport(ECHO, out);
+        transmit(recorder, PIN_COMMAND);
+        transmit(recorder, PUB_COMMAND);
+        try {
+            transmit(recorder, new byte[]{0x00, YkneoConstants.INS_GET_HEADER, 0x00, 0x00});
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("No data", e.getMessage());
+        }
+        recorder.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testRecord() throws Exception {
+        List<ApduTrace.Record> records = ApduTrace.read(new ByteArrayInputStream(record()));
+        assertEquals(3, records.size());
+
+        ApduTrace.Record pin = records.get(0);
+        assertTrue(pin.isCommandRedacted());
+        assertArrayEquals(new byte[]{0x00, YkneoConstants.INS_VERIFY_PIN, 0x00, 0x00, 0x02, 0x00, 0x00}, pin.getCommand());
+        assertArrayEquals(new byte[]{0x31, 0x32, (byte) 0x90, 0x00}, pin.getResponse());
+
+        ApduTrace.Record pub = records.get(1);
+        assertFalse(pub.isCommandRedacted());
+        assertArrayEquals(PUB_COMMAND, pub.getCommand());
+        assertTrue(pub.getDurationNanos() >= 0);
+
+        ApduTrace.Record header = records.get(2);
+        assertTrue(header.isError());
+        assertEquals("No data", header.getError());
+        assertNull(header.getResponse());
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        ReplayApduTransport replay = new ReplayApduTransport(new ByteArrayInputStream(record()), ReplayApduTransport.AS_FAST_AS_POSSIBLE);
+        assertEquals(3, replay.remaining());
+        assertArrayEquals(new byte[]{0x31, 0x32, (byte) 0x90, 0x00}, transmit(replay, new byte[]{0x00, YkneoConstants.INS_VERIFY_PIN, 0x00, 0x00, 0x02, 0x39, 0x39}));
+        assertArrayEquals(new byte[]{0x00, 0x00, 0x00, 0x07, (byte) 0x90, 0x00}, transmit(replay, PUB_COMMAND));
+        try {
+            transmit(replay, new byte[]{0x00, YkneoConstants.INS_GET_HEADER, 0x00, 0x00});
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("No data", e.getMessage());
+        }
+        assertEquals(0, replay.remaining());
+
+        replay.rewind();
+        try {
+            transmit(replay, PUB_COMMAND);
+            fail("Replayed mismatched command");
+        } catch (IOException e) {
+            assertEquals(3, replay.remaining());
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.transport;
+
+import com.yubico.bitcoin.util.YkneoConstants;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class RetryingApduTransportTest {
+    private static final byte[] OK = new byte[]{0x01, 0x02, (byte) 0x90, 0x00};
+
+    private static ByteBuffer command(byte ins) {
+        return ByteBuffer.wrap(new byte[]{0x00, ins, 0x00, 0x00, 0x01, 0x05});
+    }
+
+    @Test
+    public void testRetriesIdempotentCommand() throws Exception {
+        FailingTransport failing = new FailingTransport(2);
+        ByteBuffer response = ByteBuffer.allocate(258);
+        new RetryingApduTransport(failing, 3, 0).transmit(command(YkneoConstants.INS_SIGN), response);
+
+        assertEquals(3, failing.calls);
+        assertEquals(OK.length, response.position());
+    }
+
+    @Test
+    public void testGivesUp() throws Exception {
+        FailingTransport failing = new FailingTransport(3);
+        try {
+            new RetryingApduTransport(failing, 3, 0).transmit(command(YkneoConstants.INS_GET_PUB), ByteBuffer.allocate(258));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals(3, failing.calls);
+        }
+    }
+
+    @Test
+    public void testDoesNotRetryPinCommand() throws Exception {
+        FailingTransport failing = new FailingTransport(1);
+        try {
+            new RetryingApduTransport(failing, 3, 0).transmit(command(YkneoConstants.INS_VERIFY_PIN), ByteBuffer.allocate(258));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals(1, failing.calls);
+        }
+    }
+
+    private static class FailingTransport implements ApduTransport {
+        private final int failures;
+        private int calls;
+
+        private FailingTransport(int failures) {
+            this.failures = failures;
+        }
+
+        @Override
+        public void transmit(ByteBuffer command, ByteBuffer response) throws IOException {
+            calls++;
+            //Consume part of the command and response, as a transport failing midway would.
+            command.get();
+            response.put((byte) 0x6f);
+            if (calls <= failures) {
+                throw new IOException("Failure " + calls);
+            }
+            command.position(command.limit());
+            response.position(response.position() - 1);
+            response.put(OK);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.transport;
+
+import com.yubico.bitcoin.util.YkneoConstants;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SimulatedApduTransportTest {
+    private static class CountingTransport implements ApduTransport {
+        private int calls;
+
+        @Override
+        public void transmit(ByteBuffer command, ByteBuffer response) throws IOException {
+            calls++;
+            command.position(command.limit());
+            response.putShort((short) 0x9000);
+        }
+    }
+
+    private static ByteBuffer sign() {
+        return ByteBuffer.wrap(new byte[]{0x00, YkneoConstants.INS_SIGN, 0x00, 0x00, 0x01, 0x00});
+    }
+
+    @Test
+    public void testLatency() throws Exception {
+        SimulatedApduTransport transport = new SimulatedApduTransport(new CountingTransport(), 0)
+                .setRoundTrip(5, TimeUnit.MILLISECONDS)
+                .setPerByte(1, TimeUnit.MILLISECONDS)
+                .setInstructionCost(YkneoConstants.INS_SIGN, 20, TimeUnit.MILLISECONDS);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5 + 8 + 20), transport.getModelledNanos(YkneoConstants.INS_SIGN, 6, 2));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5 + 8), transport.getModelledNanos(YkneoConstants.INS_GET_PUB, 6, 2));
+
+        long start = System.nanoTime();
+        ByteBuffer response = ByteBuffer.allocate(258);
+        transport.transmit(sign(), response);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(33));
+        assertEquals(0x9000, response.getShort(0) & 0xffff);
+    }
+
+    @Test
+    public void testIOException() throws Exception {
+        CountingTransport counting = new CountingTransport();
+        SimulatedApduTransport transport = new SimulatedApduTransport(counting, 0).setIOExceptionProbability(1);
+        try {
+            transport.transmit(sign(), ByteBuffer.allocate(258));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            //The command reached the device, but the response was lost.
+            assertEquals(1, counting.calls);
+        }
+    }
+
+    @Test
+    public void testErrorStatus() throws Exception {
+        CountingTransport counting = new CountingTransport();
+        SimulatedApduTransport transport = new SimulatedApduTransport(counting, 0).setErrorStatusProbability(1, 0x6f00);
+        ByteBuffer command = sign();
+        ByteBuffer response = ByteBuffer.allocate(258);
+        transport.transmit(command, response);
+        assertFalse(command.hasRemaining());
+        assertEquals(2, response.position());
+        assertEquals(0x6f00, response.getShort(0) & 0xffff);
+        assertEquals(0, counting.calls);
+    }
+
+    @Test
+    public void testSeeded() throws Exception {
+        int[] failures = new int[2];
+        for (int run = 0; run < 2; run++) {
+            SimulatedApduTransport transport = new SimulatedApduTransport(new CountingTransport(), 42).setIOExceptionProbability(0.5);
+            for (int i = 0; i < 100; i++) {
+                try {
+                    transport.transmit(sign(), ByteBuffer.allocate(258));
+                } catch (IOException e) {
+                    failures[run] += i;
+                }
+            }
+        }
+        assertEquals(failures[0], failures[1]);
+    }
+}
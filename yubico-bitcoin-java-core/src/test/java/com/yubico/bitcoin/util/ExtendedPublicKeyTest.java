@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ExtendedPublicKeyTest {
+    private static final String EXTENDED_PUBLIC_KEY = "0488b21e000000000000000000873dff81c02f525623fd1fe5167eac3a55a049de3d314bb42ee227ffed37d5080339a36013301597daef41fbe593a02cc513d0b55527ec2df1050e2e8ff49c85c2";
+
+    static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private ExtendedPublicKey master;
+
+    @Before
+    public void setup() {
+        master = ExtendedPublicKey.fromBytes(fromHex(EXTENDED_PUBLIC_KEY));
+    }
+
+    @Test
+    public void testMaster() {
+        assertEquals("0339a36013301597daef41fbe593a02cc513d0b55527ec2df1050e2e8ff49c85c2", toHex(master.getPublicKey(true)));
+        assertEquals("0439a36013301597daef41fbe593a02cc513d0b55527ec2df1050e2e8ff49c85c23cbe7ded0e7ce6a594896b8f62888fdbc5c8821305e2ea42bf01e37300116281", toHex(master.getPublicKey(false)));
+    }
+
+    @Test
+    public void testDeriveChild() throws Exception {
+        assertEquals("027c4b09ffb985c298afe7e5813266cbfcb7780b480ac294b0b43dc21f2be3d13c", toHex(master.deriveChild(0).getPublicKey(true)));
+    }
+
+    @Test
+    public void testDeriveDescendant() throws Exception {
+        assertEquals("04e740d213a1aa5746c66bae1ecda3b95d7f64d4bf8aff9d93702fc302f28df0f1b6144996abb26e76f2c0872e0970d629899ff441c38bf63a59424d9696b6c7dc", toHex(master.derive(0, 1).getPublicKey(false)));
+        assertEquals("036869deb1c28487b15fec0e43149754c20f6fac9d834af643092ea84b3a814ad9", toHex(master.derive(1, 2, 3).getPublicKey(true)));
+        assertEquals("046869deb1c28487b15fec0e43149754c20f6fac9d834af643092ea84b3a814ad99e8add8b99ea9e48888dbc815ec164f1bb4b5c23d539a4e4cc3f6f7de0e2c499", toHex(master.derive(1, 2, 3).getPublicKey(false)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHardenedNotAllowed() throws Exception {
+        master.deriveChild(0x80000000);
+    }
+}
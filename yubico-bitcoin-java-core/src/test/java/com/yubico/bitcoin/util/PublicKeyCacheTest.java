@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static com.yubico.bitcoin.util.ExtendedPublicKeyTest.fromHex;
+import static com.yubico.bitcoin.util.ExtendedPublicKeyTest.toHex;
+import static org.junit.Assert.*;
+
+public class PublicKeyCacheTest {
+    private static final String COMPRESSED = "036869deb1c28487b15fec0e43149754c20f6fac9d834af643092ea84b3a814ad9";
+    private static final String UNCOMPRESSED = "046869deb1c28487b15fec0e43149754c20f6fac9d834af643092ea84b3a814ad99e8add8b99ea9e48888dbc815ec164f1bb4b5c23d539a4e4cc3f6f7de0e2c499";
+
+    private File file;
+    private byte[] fingerprint;
+
+    @Before
+    public void setup() throws Exception {
+        file = File.createTempFile("pubkeys", ".cache");
+        fingerprint = new byte[DeviceFingerprint.LENGTH];
+        Arrays.fill(fingerprint, (byte) 0x42);
+    }
+
+    @After
+    public void teardown() {
+        file.delete();
+    }
+
+    @Test
+    public void testRipemd160() {
+        assertEquals("9c1185a5c5e9fc54612808977ee8f548b2258d31", toHex(Ripemd160.digest(new byte[0])));
+        assertEquals("8eb208f7e05d987a9b044a8e98c6b087f15a0bfc", toHex(Ripemd160.digest("abc".getBytes())));
+        assertEquals("12a053384a9c0c88e405a06c27dcf49ada62eb2b", toHex(Ripemd160.digest("abcdbcdecdefdefgefghfghighijhijkijkljklmklmnlmnomnopnopq".getBytes())));
+    }
+
+    @Test
+    public void testPutGet() throws Exception {
+        PublicKeyCache cache = PublicKeyCache.open(file, fingerprint, 100);
+        int[] path = new int[]{1, 2, 3};
+        assertNull(cache.getPublicKey(true, path));
+
+        assertTrue(cache.put(path, fromHex(UNCOMPRESSED)));
+        assertFalse(cache.put(path, fromHex(UNCOMPRESSED)));
+        assertEquals(COMPRESSED, toHex(cache.getPublicKey(true, path)));
+        assertEquals(UNCOMPRESSED, toHex(cache.getPublicKey(false, path)));
+        assertArrayEquals(Ripemd160.hash160(fromHex(COMPRESSED)), cache.getHash160(path));
+        assertNull(cache.getPublicKey(true, new int[]{1, 2}));
+        cache.close();
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        PublicKeyCache cache = PublicKeyCache.open(file, fingerprint, 100);
+        cache.put(new int[]{1, 2, 3}, fromHex(COMPRESSED));
+        cache.close();
+
+        cache = PublicKeyCache.open(file, fingerprint, 100);
+        assertEquals(1, cache.size());
+        assertEquals(COMPRESSED, toHex(cache.getPublicKey(true, new int[]{1, 2, 3})));
+        cache.close();
+
+        byte[] otherFingerprint = fingerprint.clone();
+        otherFingerprint[32] = 0;
+        cache = PublicKeyCache.open(file, otherFingerprint, 100);
+        assertEquals(0, cache.size());
+        assertNull(cache.getPublicKey(true, new int[]{1, 2, 3}));
+        cache.close();
+    }
+
+    @Test
+    public void testFull() throws Exception {
+        PublicKeyCache cache = PublicKeyCache.open(file, fingerprint, 10);
+        int added = 0;
+        for (int i = 0; i < 100; i++) {
+            if (cache.put(new int[]{0, i}, fromHex(COMPRESSED))) {
+                added++;
+            }
+        }
+        assertTrue(added >= 10);
+        for (int i = 0; i < added; i++) {
+            assertNotNull(cache.getPublicKey(true, new int[]{0, i}));
+        }
+        cache.close();
+    }
+
+    @Test
+    public void testCapacity() throws Exception {
+        try {
+            PublicKeyCache.open(file, fingerprint, PublicKeyCache.MAX_CAPACITY + 1);
+            fail("Opened a cache which doesn't fit in a single mapping!");
+        } catch (IllegalArgumentException e) {
+            //Expected
+        }
+        assertEquals(0, file.length());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        PublicKeyCache cache = PublicKeyCache.open(file, fingerprint, 100);
+        cache.put(new int[]{1, 2, 3}, fromHex(COMPRESSED));
+        cache.invalidate();
+        assertNull(cache.getPublicKey(true, new int[]{1, 2, 3}));
+        assertFalse(cache.put(new int[]{1, 2, 3}, fromHex(COMPRESSED)));
+        cache.close();
+
+        cache = PublicKeyCache.open(file, fingerprint, 100);
+        assertEquals(0, cache.size());
+        cache.close();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.util;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.yubico.bitcoin.util.ExtendedPublicKeyTest.fromHex;
+import static org.junit.Assert.*;
+
+public class SignatureVerifierTest {
+    private final Random random = new Random(42);
+
+    private BigInteger randomScalar() {
+        BigInteger value;
+        do {
+            value = new BigInteger(256, random);
+        } while (value.signum() == 0 || value.compareTo(Secp256k1.N) >= 0);
+        return value;
+    }
+
+    private static byte[] publicKey(BigInteger privateKey, boolean compress) {
+        return Secp256k1.encodePoint(Secp256k1.toAffine(Secp256k1.multiplyG(privateKey)), compress);
+    }
+
+    private static byte[] encodeInteger(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        byte[] encoded = new byte[bytes.length + 2];
+        encoded[0] = 0x02;
+        encoded[1] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, encoded, 2, bytes.length);
+        return encoded;
+    }
+
+    private static byte[] encodeSignature(BigInteger r, BigInteger s) {
+        byte[] encodedR = encodeInteger(r);
+        byte[] encodedS = encodeInteger(s);
+        byte[] signature = new byte[2 + encodedR.length + encodedS.length];
+        signature[0] = 0x30;
+        signature[1] = (byte) (signature.length - 2);
+        System.arraycopy(encodedR, 0, signature, 2, encodedR.length);
+        System.arraycopy(encodedS, 0, signature, 2 + encodedR.length, encodedS.length);
+        return signature;
+    }
+
+    private byte[] sign(BigInteger privateKey, byte[] hash) {
+        BigInteger k = randomScalar();
+        BigInteger r = Secp256k1.toAffine(Secp256k1.multiplyG(k))[0].mod(Secp256k1.N);
+        BigInteger s = k.modInverse(Secp256k1.N).multiply(new BigInteger(1, hash).add(r.multiply(privateKey))).mod(Secp256k1.N);
+        return encodeSignature(r, s);
+    }
+
+    private byte[] randomHash() {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        return hash;
+    }
+
+    @Test
+    public void testKnownSignature() throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest("Satoshi Nakamoto".getBytes("US-ASCII"));
+        byte[] signature = fromHex("3045022100934b1ea10a4b3c1757e2b0c017d0b6143ce3c9a7e6a4a49860d7a6ab210ee3d802202442ce9d2b916064108014783e923ec36b49743e2ffa1c4496f01a512aafd9e5");
+        assertTrue(SignatureVerifier.verify(hash, signature, Secp256k1.encodePoint(Secp256k1.G, true)));
+        assertTrue(SignatureVerifier.verify(hash, signature, Secp256k1.encodePoint(Secp256k1.G, false)));
+
+        hash[31] ^= 1;
+        assertFalse(SignatureVerifier.verify(hash, signature, Secp256k1.encodePoint(Secp256k1.G, true)));
+    }
+
+    @Test
+    public void testBatch() {
+        BigInteger[] keys = new BigInteger[]{randomScalar(), randomScalar(), randomScalar()};
+        SignatureVerifier verifier = new SignatureVerifier();
+        byte[][] hashes = new byte[12][];
+        for (int i = 0; i < hashes.length; i++) {
+            BigInteger key = keys[i % keys.length];
+            hashes[i] = randomHash();
+            verifier.add(hashes[i], sign(key, hashes[i]), publicKey(key, i % 2 == 0));
+        }
+        assertEquals(12, verifier.size());
+        assertTrue(verifier.verifyAll());
+        assertEquals(0, verifier.size());
+
+        //Signed by the wrong key, and for the wrong hash.
+        verifier.add(hashes[0], sign(keys[0], hashes[0]), publicKey(keys[0], true));
+        verifier.add(hashes[1], sign(keys[0], hashes[1]), publicKey(keys[1], true));
+        verifier.add(hashes[2], sign(keys[2], hashes[3]), publicKey(keys[2], true));
+        verifier.add(hashes[3], sign(keys[2], hashes[3]), publicKey(keys[2], false));
+        assertEquals("[true, false, false, true]", Arrays.toString(verifier.verify()));
+    }
+
+    @Test
+    public void testHighS() {
+        BigInteger key = randomScalar();
+        byte[] hash = randomHash();
+        BigInteger[] rs = SignatureVerifier.decodeSignature(sign(key, hash));
+        byte[] flipped = encodeSignature(rs[0], Secp256k1.N.subtract(rs[1]));
+        assertTrue(SignatureVerifier.verify(hash, flipped, publicKey(key, true)));
+    }
+
+    @Test
+    public void testMalformed() {
+        BigInteger key = randomScalar();
+        byte[] hash = randomHash();
+        byte[] publicKey = publicKey(key, true);
+        byte[] signature = sign(key, hash);
+
+        byte[] truncated = new byte[signature.length - 1];
+        System.arraycopy(signature, 0, truncated, 0, truncated.length);
+        byte[] badKey = publicKey.clone();
+        badKey[0] = 0x05;
+        BigInteger r = SignatureVerifier.decodeSignature(signature)[0];
+
+        SignatureVerifier verifier = new SignatureVerifier();
+        verifier.add(hash, truncated, publicKey);
+        verifier.add(hash, new byte[0], publicKey);
+        verifier.add(hash, signature, badKey);
+        verifier.add(hash, encodeSignature(r, BigInteger.ZERO), publicKey);
+        verifier.add(hash, encodeSignature(r, Secp256k1.N), publicKey);
+        verifier.add(hash, signature, publicKey);
+        assertEquals("[false, false, false, false, false, true]", Arrays.toString(verifier.verify()));
+    }
+
+    @Test
+    public void testMultiplyAdd() {
+        BigInteger[] point = Secp256k1.toAffine(Secp256k1.multiplyG(randomScalar()));
+        BigInteger[][] table = Secp256k1.oddMultiples(point, 5);
+        for (int i = 0; i < 10; i++) {
+            BigInteger a = i == 0 ? Secp256k1.N.subtract(BigInteger.ONE) : randomScalar();
+            BigInteger b = i == 1 ? BigInteger.ONE : randomScalar();
+            BigInteger[] expected = Secp256k1.toAffine(Secp256k1.add(Secp256k1.multiplyG(a), Secp256k1.multiply(Secp256k1.precompute(point), b)));
+            assertArrayEquals(expected, Secp256k1.toAffine(Secp256k1.multiplyGAdd(a, table, b)));
+        }
+    }
+}
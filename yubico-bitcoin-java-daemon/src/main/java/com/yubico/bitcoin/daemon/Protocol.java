@@ -0,0 +1,214 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.daemon;
+
+import com.yubico.bitcoin.api.*;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+/**
+ * The binary protocol spoken between YkneoBitcoinDaemon and YkneoBitcoinDaemonClient.
+ * <p/>
+ * Every message is a frame made up of a 4 byte length of the rest of the frame, a 4 byte request id chosen by the
+ * client, a single byte (the operation for requests, the status for responses) and the payload. All integers are big
+ * endian. Clients may send any number of requests without waiting for the responses, which carry the id of the
+ * request they answer.
+ * <p/>
+ * Derivation paths are encoded as a byte holding the depth followed by the index of each level. Strings are encoded
+ * as a 2 byte length followed by UTF-8.
+ */
+final class Protocol {
+    static final int HEADER_LENGTH = 9;
+    static final int MAX_FRAME_LENGTH = 1 << 20;
+    static final int MAX_PAYLOAD_LENGTH = MAX_FRAME_LENGTH - (HEADER_LENGTH - 4);
+    /**
+     * The maximum number of requests in one OP_SIGN_BATCH, keeping the response within a frame. A successful result
+     * takes at most 75 bytes.
+     */
+    static final int MAX_BATCH_SIZE = MAX_PAYLOAD_LENGTH / 128;
+
+    /**
+     * Payload: empty. Response: version string, key loaded byte, user unlocked byte.
+     */
+    static final byte OP_INFO = 0x00;
+    /**
+     * Payload: empty. Response: the 13 byte header.
+     */
+    static final byte OP_GET_HEADER = 0x01;
+    /**
+     * Payload: compress byte, path. Response: the public key.
+     */
+    static final byte OP_GET_PUB = 0x02;
+    /**
+     * Payload: compress byte, parent path, 4 byte first child, 4 byte count. Response: the packed public keys.
+     * The count is limited so that the response fits in a frame, see maxPublicKeys.
+     */
+    static final byte OP_GET_PUBS = 0x03;
+    /**
+     * Payload: path, 32 byte hash. Response: the signature.
+     */
+    static final byte OP_SIGN = 0x04;
+    /**
+     * Payload: 4 byte count, then a path and 32 byte hash per request. Response: 4 byte count, then a status byte per
+     * result, followed by a 2 byte length and the signature on success, or the error payload on failure.
+     */
+    static final byte OP_SIGN_BATCH = 0x05;
+
+    static final byte STATUS_OK = 0;
+    /**
+     * Payload: the ordinal of the PinMode.
+     */
+    static final byte STATUS_PIN_LOCKED = 1;
+    /**
+     * Payload: the 4 byte unusable index.
+     */
+    static final byte STATUS_UNUSABLE_INDEX = 2;
+    static final byte STATUS_NO_KEY_LOADED = 3;
+    static final byte STATUS_NOT_PERMITTED = 4;
+    /**
+     * Payload: the error message.
+     */
+    static final byte STATUS_IO_ERROR = 5;
+    /**
+     * Payload: the error message.
+     */
+    static final byte STATUS_INVALID_REQUEST = 6;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private Protocol() {
+    }
+
+    /**
+     * Allocates a frame with room for the given payload, with the header filled in and the position at the start of
+     * the payload.
+     */
+    static ByteBuffer frame(int requestId, byte code, int payloadLength) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + payloadLength);
+        frame.putInt(frame.capacity() - 4).putInt(requestId).put(code);
+        return frame;
+    }
+
+    /**
+     * Disables Nagle's algorithm on TCP connections. Channels of other families, such as Unix domain sockets, have no
+     * Socket and are left as they are.
+     */
+    static void setTcpNoDelay(SocketChannel channel) throws IOException {
+        Socket socket;
+        try {
+            socket = channel.socket();
+        } catch (UnsupportedOperationException e) {
+            return;
+        }
+        socket.setTcpNoDelay(true);
+    }
+
+    /**
+     * @return The maximum number of public keys in a single OP_GET_PUBS response.
+     */
+    static int maxPublicKeys(boolean compress) {
+        return MAX_PAYLOAD_LENGTH / (compress ? 33 : 65);
+    }
+
+    static int indexLength(int[] index) {
+        return 1 + index.length * 4;
+    }
+
+    static void putIndex(ByteBuffer buf, int[] index) {
+        if (index.length > 0xff) {
+            throw new IllegalArgumentException(String.format("Path too long: %d", index.length));
+        }
+        buf.put((byte) index.length);
+        for (int i : index) {
+            buf.putInt(i);
+        }
+    }
+
+    static int[] getIndex(ByteBuffer buf) {
+        int[] index = new int[buf.get() & 0xff];
+        for (int i = 0; i < index.length; i++) {
+            index[i] = buf.getInt();
+        }
+        return index;
+    }
+
+    static byte[] getBytes(ByteBuffer buf, int length) {
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    static byte[] encodeString(String string) {
+        String value = String.valueOf(string);
+        //At most 3 bytes per char, keeping the length within 2 bytes.
+        byte[] bytes = value.substring(0, Math.min(value.length(), 0xffff / 3)).getBytes(UTF8);
+        ByteBuffer buf = ByteBuffer.allocate(2 + bytes.length);
+        buf.putShort((short) bytes.length).put(bytes);
+        return buf.array();
+    }
+
+    static String getString(ByteBuffer buf) {
+        return new String(getBytes(buf, buf.getShort() & 0xffff), UTF8);
+    }
+
+    /**
+     * Encodes an exception thrown by the device as a status byte followed by its payload.
+     */
+    static byte[] encodeError(Exception e) {
+        ByteBuffer buf;
+        if (e instanceof PinModeLockedException) {
+            buf = ByteBuffer.allocate(2).put(STATUS_PIN_LOCKED).put((byte) ((PinModeLockedException) e).getPinMode().ordinal());
+        } else if (e instanceof UnusableIndexException) {
+            buf = ByteBuffer.allocate(5).put(STATUS_UNUSABLE_INDEX).putInt(((UnusableIndexException) e).getIndex());
+        } else if (e instanceof NoKeyLoadedException) {
+            buf = ByteBuffer.allocate(1).put(STATUS_NO_KEY_LOADED);
+        } else if (e instanceof OperationNotPermittedException) {
+            buf = ByteBuffer.allocate(1).put(STATUS_NOT_PERMITTED);
+        } else {
+            byte status = e instanceof IOException ? STATUS_IO_ERROR : STATUS_INVALID_REQUEST;
+            byte[] message = encodeString(e.getMessage());
+            buf = ByteBuffer.allocate(1 + message.length).put(status).put(message);
+        }
+        return buf.array();
+    }
+
+    /**
+     * Decodes the payload of a failed response into the exception it represents.
+     */
+    static Exception decodeError(byte status, ByteBuffer payload) {
+        switch (status) {
+            case STATUS_PIN_LOCKED:
+                return new PinModeLockedException(PinMode.values()[payload.get()]);
+            case STATUS_UNUSABLE_INDEX:
+                return new UnusableIndexException(payload.getInt());
+            case STATUS_NO_KEY_LOADED:
+                return new NoKeyLoadedException();
+            case STATUS_NOT_PERMITTED:
+                return new OperationNotPermittedException();
+            case STATUS_IO_ERROR:
+                return new IOException(getString(payload));
+            case STATUS_INVALID_REQUEST:
+                return new IllegalArgumentException(getString(payload));
+            default:
+                return new IOException(String.format("Unknown status from daemon: %d", status));
+        }
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.daemon;
+
+import com.yubico.bitcoin.api.SignRequest;
+import com.yubico.bitcoin.api.SignResult;
+import com.yubico.bitcoin.api.YkneoBitcoin;
+import com.yubico.bitcoin.util.AsyncYkneoBitcoin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Daemon which shares a single YkneoBitcoin between any number of local clients, such as other processes using
+ * YkneoBitcoinDaemonClient.
+ * <p/>
+ * The daemon owns the device, which should be unlocked in user mode before the daemon is started. Clients can read
+ * public keys and sign, but can't change PINs or keys. All connections are served by a single thread using a
+ * non-blocking Selector, and requests from all clients are queued for the device in the order they are received, so
+ * that the device is kept busy without clients competing for the reader. Clients may pipeline requests.
+ * <p/>
+ * The daemon accepts connections on any ServerSocketChannel. On Java 16 and later, this includes Unix domain socket
+ * channels, which are otherwise not available to this library.
+ * <p/>
+ * <b>Security:</b> the daemon does not authenticate clients. Anyone who can connect can sign with the unlocked device.
+ * A loopback TCP socket is reachable by every user on the machine, so prefer a Unix domain socket created in a
+ * directory only the intended users can access, and use bindLoopback only on single user machines.
+ * <p/>
+ * Example:
+ * YkneoBitcoinDaemon daemon = new YkneoBitcoinDaemon(neo);
+ * daemon.listen(YkneoBitcoinDaemon.bindLoopback(4711));
+ * daemon.start();
+ */
+public class YkneoBitcoinDaemon implements Closeable {
+    /**
+     * Maximum number of requests per connection that are either waiting for the device or have a response which has
+     * not yet been written to the client. Further requests are not read until the client has read its responses.
+     */
+    private static final int MAX_PENDING = 256;
+
+    private final AsyncYkneoBitcoin device;
+    private final Selector selector;
+    private final Queue<Response> completed = new ConcurrentLinkedQueue<Response>();
+    private final List<ServerSocketChannel> servers = new ArrayList<ServerSocketChannel>();
+    private volatile boolean running = false;
+    private Thread thread;
+
+    /**
+     * @param neo The device to share, which must not be used directly once the daemon is started.
+     * @throws IOException
+     */
+    public YkneoBitcoinDaemon(YkneoBitcoin neo) throws IOException {
+        device = new AsyncYkneoBitcoin(neo);
+        selector = Selector.open();
+    }
+
+    /**
+     * Opens a server socket bound to the loopback interface.
+     * <p/>
+     * <b>Warning:</b> any local user, and any process running as one, can connect to this port and sign with the
+     * unlocked device, as connections are not authenticated. Where available, listen on a Unix domain socket in a
+     * directory with restrictive file permissions instead.
+     *
+     * @param port The port to listen on, or 0 to pick a free port.
+     * @return The bound channel, to be passed to listen.
+     * @throws IOException
+     */
+    public static ServerSocketChannel bindLoopback(int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getByName(null), port));
+        return server;
+    }
+
+    /**
+     * Accepts clients on the given channel, which must already be bound. Must be called before start.
+     * The channel is closed when the daemon is closed.
+     *
+     * @throws IOException
+     */
+    public synchronized void listen(ServerSocketChannel server) throws IOException {
+        if (thread != null) {
+            throw new IllegalStateException("The daemon has already been started");
+        }
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        servers.add(server);
+    }
+
+    /**
+     * Starts serving clients on a background thread.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            throw new IllegalStateException("The daemon has already been started");
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "ykneo-bitcoin-daemon");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops serving, closing all connections. Requests already queued for the device are still executed.
+     */
+    @Override
+    public void close() throws IOException {
+        Thread serving;
+        synchronized (this) {
+            running = false;
+            serving = thread;
+        }
+        selector.wakeup();
+        if (serving != null) {
+            try {
+                serving.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+        device.close();
+    }
+
+    private void serve() {
+        try {
+            while (running) {
+                selector.select();
+                Response response;
+                while ((response = completed.poll()) != null) {
+                    response.connection.pending--;
+                    response.connection.send(response.frame);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept((ServerSocketChannel) key.channel());
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                        }
+                    } catch (IOException e) {
+                        //The client went away.
+                        key.cancel();
+                        key.channel().close();
+                    } catch (RuntimeException e) {
+                        //Only this connection is affected, keep serving the others.
+                        key.cancel();
+                        key.channel().close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            //The selector failed, nothing more can be served.
+            running = false;
+        }
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel != null) {
+            channel.configureBlocking(false);
+            Protocol.setTcpNoDelay(channel);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(key, channel));
+        }
+    }
+
+    private class Connection {
+        private final SelectionKey key;
+        private final SocketChannel channel;
+        private final Deque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+        private ByteBuffer in = ByteBuffer.allocate(1024);
+        private int pending = 0;
+
+        private Connection(SelectionKey key, SocketChannel channel) {
+            this.key = key;
+            this.channel = channel;
+        }
+
+        private void read() throws IOException {
+            if (channel.read(in) < 0) {
+                throw new IOException("Connection closed");
+            }
+            process();
+        }
+
+        /**
+         * Submits the complete requests in the input buffer, until the pending limit is reached.
+         */
+        private void process() throws IOException {
+            if (!key.isValid()) {
+                return;
+            }
+            in.flip();
+            while (!full() && in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < Protocol.HEADER_LENGTH - 4 || length > Protocol.MAX_FRAME_LENGTH) {
+                    throw new IOException(String.format("Invalid frame length: %d", length));
+                }
+                if (in.remaining() < 4 + length) {
+                    if (in.capacity() < 4 + length) {
+                        in = ByteBuffer.allocate(4 + length).put(in);
+                        in.flip();
+                    }
+                    break;
+                }
+                in.getInt();
+                int requestId = in.getInt();
+                byte op = in.get();
+                ByteBuffer payload = ByteBuffer.wrap(Protocol.getBytes(in, length - 5));
+                submit(this, requestId, op, payload);
+            }
+            in.compact();
+            updateInterest();
+        }
+
+        private void send(ByteBuffer frame) throws IOException {
+            if (!key.isValid()) {
+                return;
+            }
+            frame.flip();
+            out.add(frame);
+            try {
+                write();
+            } catch (IOException e) {
+                key.cancel();
+                channel.close();
+            }
+        }
+
+        private void write() throws IOException {
+            while (!out.isEmpty()) {
+                ByteBuffer frame = out.peek();
+                channel.write(frame);
+                if (frame.hasRemaining()) {
+                    break;
+                }
+                out.poll();
+            }
+            //Written responses make room for requests which are already buffered.
+            process();
+        }
+
+        private boolean full() {
+            return pending + out.size() >= MAX_PENDING;
+        }
+
+        private void updateInterest() {
+            if (key.isValid()) {
+                int ops = full() ? 0 : SelectionKey.OP_READ;
+                if (!out.isEmpty()) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+                key.interestOps(ops);
+            }
+        }
+    }
+
+    private static class Response {
+        private final Connection connection;
+        private final ByteBuffer frame;
+
+        private Response(Connection connection, ByteBuffer frame) {
+            this.connection = connection;
+            this.frame = frame;
+        }
+    }
+
+    private void submit(final Connection connection, final int requestId, final byte op, final ByteBuffer payload) {
+        connection.pending++;
+        device.submit(new AsyncYkneoBitcoin.DeviceTask<Void>() {
+            @Override
+            public Void run(YkneoBitcoin neo) {
+                ByteBuffer frame;
+                try {
+                    frame = execute(neo, requestId, op, payload);
+                } catch (BufferUnderflowException e) {
+                    frame = error(requestId, new IllegalArgumentException("Truncated request"));
+                } catch (Exception e) {
+                    frame = error(requestId, e);
+                }
+                completed.add(new Response(connection, frame));
+                selector.wakeup();
+                return null;
+            }
+        });
+    }
+
+    private static ByteBuffer error(int requestId, Exception e) {
+        byte[] error = Protocol.encodeError(e);
+        return Protocol.frame(requestId, error[0], error.length - 1).put(error, 1, error.length - 1);
+    }
+
+    private static ByteBuffer ok(int requestId, byte[] data) {
+        return Protocol.frame(requestId, Protocol.STATUS_OK, data.length).put(data);
+    }
+
+    private static ByteBuffer execute(YkneoBitcoin neo, int requestId, byte op, ByteBuffer payload) throws Exception {
+        switch (op) {
+            case Protocol.OP_INFO: {
+                byte[] version = Protocol.encodeString(neo.getAppletVersion());
+                return Protocol.frame(requestId, Protocol.STATUS_OK, version.length + 2).put(version)
+                        .put((byte) (neo.isKeyLoaded() ? 1 : 0)).put((byte) (neo.isUserUnlocked() ? 1 : 0));
+            }
+            case Protocol.OP_GET_HEADER:
+                return ok(requestId, neo.getHeader());
+            case Protocol.OP_GET_PUB: {
+                boolean compress = payload.get() != 0;
+                return ok(requestId, neo.getPublicKey(compress, Protocol.getIndex(payload)));
+            }
+            case Protocol.OP_GET_PUBS: {
+                boolean compress = payload.get() != 0;
+                int[] parentPath = Protocol.getIndex(payload);
+                int fromChild = payload.getInt();
+                int count = payload.getInt();
+                if (count > Protocol.maxPublicKeys(compress)) {
+                    throw new IllegalArgumentException(String.format("Too many public keys requested: %d", count));
+                }
+                return ok(requestId, neo.getPublicKeys(compress, parentPath, fromChild, count));
+            }
+            case Protocol.OP_SIGN: {
+                int[] index = Protocol.getIndex(payload);
+                return ok(requestId, neo.sign(Protocol.getBytes(payload, 32), index));
+            }
+            case Protocol.OP_SIGN_BATCH: {
+                int count = payload.getInt();
+                if (count < 0 || count > payload.remaining() / 33 || count > Protocol.MAX_BATCH_SIZE) {
+                    throw new IllegalArgumentException(String.format("Invalid batch size: %d", count));
+                }
+                List<SignRequest> requests = new ArrayList<SignRequest>(count);
+                for (int i = 0; i < count; i++) {
+                    int[] index = Protocol.getIndex(payload);
+                    requests.add(new SignRequest(Protocol.getBytes(payload, 32), index));
+                }
+                List<byte[]> encoded = new ArrayList<byte[]>(count);
+                int length = 4;
+                for (SignResult result : neo.signBatch(requests)) {
+                    byte[] item;
+                    if (result.isSuccess()) {
+                        byte[] signature = result.getSignature();
+                        item = ByteBuffer.allocate(3 + signature.length).put(Protocol.STATUS_OK).putShort((short) signature.length).put(signature).array();
+                    } else {
+                        item = Protocol.encodeError(result.getError());
+                    }
+                    encoded.add(item);
+                    length += item.length;
+                }
+                if (length > Protocol.MAX_PAYLOAD_LENGTH) {
+                    throw new IllegalArgumentException("Batch response too large");
+                }
+                ByteBuffer frame = Protocol.frame(requestId, Protocol.STATUS_OK, length).putInt(encoded.size());
+                for (byte[] item : encoded) {
+                    frame.put(item);
+                }
+                return frame;
+            }
+            default:
+                throw new IllegalArgumentException(String.format("Unknown operation: %d", op));
+        }
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.daemon;
+
+import com.yubico.bitcoin.api.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * YkneoBitcoin implementation which uses a device shared by a YkneoBitcoinDaemon.
+ * <p/>
+ * The client is thread safe, and calls made from several threads are pipelined over the single connection, so that
+ * requests are queued for the device without waiting for the previous response. The daemon only permits public key
+ * derivation and signing, all other operations throw OperationNotPermittedException. The device is unlocked by the
+ * daemon, so isAdminUnlocked always returns false.
+ * <p/>
+ * Large ranges of public keys and large batches of signatures are split into several requests, so that each response
+ * fits in a single frame.
+ */
+public class YkneoBitcoinDaemonClient implements YkneoBitcoin, Closeable {
+    private final SocketChannel channel;
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final ConcurrentMap<Integer, Call> calls = new ConcurrentHashMap<Integer, Call>();
+    private final Thread reader;
+    private volatile IOException failure;
+
+    /**
+     * Connects to a daemon listening on the given address.
+     *
+     * @throws IOException
+     */
+    public YkneoBitcoinDaemonClient(SocketAddress address) throws IOException {
+        this(SocketChannel.open(address));
+    }
+
+    /**
+     * Uses an already connected channel to talk to the daemon, such as a Unix domain socket channel on Java 16 and
+     * later. The channel is closed when the client is closed.
+     *
+     * @throws IOException
+     */
+    public YkneoBitcoinDaemonClient(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        channel.configureBlocking(true);
+        Protocol.setTcpNoDelay(channel);
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readResponses();
+            }
+        }, "ykneo-bitcoin-daemon-client");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Call {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private byte status;
+        private ByteBuffer payload;
+        private IOException error;
+    }
+
+    private void readResponses() {
+        ByteBuffer header = ByteBuffer.allocate(Protocol.HEADER_LENGTH);
+        try {
+            while (true) {
+                header.clear();
+                readFully(header);
+                int length = header.getInt(0);
+                if (length < Protocol.HEADER_LENGTH - 4 || length > Protocol.MAX_FRAME_LENGTH) {
+                    throw new IOException(String.format("Invalid frame length: %d", length));
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length + 4 - Protocol.HEADER_LENGTH);
+                readFully(payload);
+                payload.flip();
+                Call call = calls.remove(header.getInt(4));
+                if (call != null) {
+                    call.status = header.get(8);
+                    call.payload = payload;
+                    call.done.countDown();
+                }
+            }
+        } catch (IOException e) {
+            failure = e instanceof EOFException ? e : new IOException("Connection to daemon lost", e);
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //Already failed.
+        }
+        for (Integer id : calls.keySet()) {
+            Call call = calls.remove(id);
+            if (call != null) {
+                call.error = failure;
+                call.done.countDown();
+            }
+        }
+    }
+
+    private void readFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0) {
+                throw new EOFException("Connection to daemon closed");
+            }
+        }
+    }
+
+    /**
+     * Sends a request and waits for the response, returning the payload of a successful response.
+     */
+    private ByteBuffer call(byte op, ByteBuffer request) throws PinModeLockedException, UnusableIndexException, IOException {
+        if (request.position() > Protocol.MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Request too large");
+        }
+        int id = nextId.getAndIncrement();
+        Call call = new Call();
+        calls.put(id, call);
+        //Registered before checking, so that a concurrent failure either sees the call, or is seen here.
+        if (failure != null) {
+            calls.remove(id);
+            throw new IOException("Connection to daemon lost", failure);
+        }
+        ByteBuffer frame = Protocol.frame(id, op, request.position());
+        request.flip();
+        frame.put(request);
+        frame.flip();
+        try {
+            synchronized (channel) {
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+            }
+            call.done.await();
+        } catch (IOException e) {
+            calls.remove(id);
+            throw e;
+        } catch (InterruptedException e) {
+            calls.remove(id);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for daemon");
+        }
+        if (call.error != null) {
+            throw new IOException("Connection to daemon lost", call.error);
+        }
+        if (call.status != Protocol.STATUS_OK) {
+            Exception e = Protocol.decodeError(call.status, call.payload);
+            if (e instanceof PinModeLockedException) {
+                throw (PinModeLockedException) e;
+            } else if (e instanceof UnusableIndexException) {
+                throw (UnusableIndexException) e;
+            } else if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            throw (IllegalArgumentException) e;
+        }
+        return call.payload;
+    }
+
+    private ByteBuffer call(byte op) throws IOException {
+        try {
+            return call(op, ByteBuffer.allocate(0));
+        } catch (YkneoBitcoinException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private static byte[] remaining(ByteBuffer buf) {
+        return Protocol.getBytes(buf, buf.remaining());
+    }
+
+    @Override
+    public String getAppletVersion() {
+        try {
+            return Protocol.getString(call(Protocol.OP_INFO));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean isKeyLoaded() {
+        try {
+            ByteBuffer info = call(Protocol.OP_INFO);
+            Protocol.getString(info);
+            return info.get() != 0;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean isUserUnlocked() {
+        try {
+            ByteBuffer info = call(Protocol.OP_INFO);
+            Protocol.getString(info);
+            info.get();
+            return info.get() != 0;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean isAdminUnlocked() {
+        return false;
+    }
+
+    @Override
+    public void unlockUser(String pin) throws IncorrectPINException, IOException {
+        throw new OperationNotPermittedException();
+    }
+
+    @Override
+    public void unlockAdmin(String pin) throws IncorrectPINException, IOException {
+        throw new OperationNotPermittedException();
+    }
+
+    @Override
+    public void setUserPin(String oldPin, String newPin) throws IncorrectPINException, IOException {
+        throw new OperationNotPermittedException();
+    }
+
+    @Override
+    public void setAdminPin(String oldPin, String newPin) throws IncorrectPINException, IOException {
+        throw new OperationNotPermittedException();
+    }
+
+    @Override
+    public void resetUserPin(String newPin) throws PinModeLockedException, IOException {
+        throw new OperationNotPermittedException();
+    }
+
+    @Override
+    public void setUserRetryCount(int attempts) throws PinModeLockedException, IOException {
+        throw new OperationNotPermittedException();
+    }
+
+    @Override
+    public void setAdminRetryCount(int attempts) throws PinModeLockedException, IOException {
+        throw new OperationNotPermittedException();
+    }
+
+    @Override
+    public byte[] getHeader() throws PinModeLockedException, IOException, NoKeyLoadedException {
+        try {
+            return remaining(call(Protocol.OP_GET_HEADER, ByteBuffer.allocate(0)));
+        } catch (UnusableIndexException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public byte[] getPublicKey(boolean compress, int... index) throws PinModeLockedException, UnusableIndexException, IOException, NoKeyLoadedException {
+        ByteBuffer request = ByteBuffer.allocate(1 + Protocol.indexLength(index));
+        request.put((byte) (compress ? 1 : 0));
+        Protocol.putIndex(request, index);
+        return remaining(call(Protocol.OP_GET_PUB, request));
+    }
+
+    @Override
+    public byte[] getPublicKeys(boolean compress, int[] parentPath, int fromChild, int count) throws PinModeLockedException, UnusableIndexException, IOException, NoKeyLoadedException {
+        int chunkSize = Protocol.maxPublicKeys(compress);
+        if (count <= chunkSize) {
+            return getPublicKeyChunk(compress, parentPath, fromChild, count);
+        }
+        if ((fromChild & 0x80000000) != ((fromChild + count - 1) & 0x80000000)) {
+            throw new IllegalArgumentException("Child range must not mix hardened and non-hardened children");
+        }
+        ByteArrayOutputStream keys = new ByteArrayOutputStream(count * (compress ? 33 : 65));
+        for (int offset = 0; offset < count; offset += chunkSize) {
+            keys.write(getPublicKeyChunk(compress, parentPath, fromChild + offset, Math.min(chunkSize, count - offset)));
+        }
+        return keys.toByteArray();
+    }
+
+    private byte[] getPublicKeyChunk(boolean compress, int[] parentPath, int fromChild, int count) throws PinModeLockedException, UnusableIndexException, IOException, NoKeyLoadedException {
+        ByteBuffer request = ByteBuffer.allocate(9 + Protocol.indexLength(parentPath));
+        request.put((byte) (compress ? 1 : 0));
+        Protocol.putIndex(request, parentPath);
+        request.putInt(fromChild).putInt(count);
+        return remaining(call(Protocol.OP_GET_PUBS, request));
+    }
+
+    @Override
+    public byte[] sign(byte[] hash, int... index) throws PinModeLockedException, UnusableIndexException, IOException, NoKeyLoadedException {
+        if (hash.length != 32) {
+            throw new IllegalArgumentException("Hash must be 32 bytes!");
+        }
+        ByteBuffer request = ByteBuffer.allocate(Protocol.indexLength(index) + 32);
+        Protocol.putIndex(request, index);
+        request.put(hash);
+        return remaining(call(Protocol.OP_SIGN, request));
+    }
+
+    @Override
+    public List<SignResult> signBatch(List<SignRequest> requests) throws PinModeLockedException, IOException {
+        for (SignRequest request : requests) {
+            if (request.getHash().length != 32) {
+                throw new IllegalArgumentException("Hash must be 32 bytes!");
+            }
+        }
+        List<SignResult> results = new ArrayList<SignResult>(requests.size());
+        int start = 0;
+        do {
+            //Take as many requests as fit in a frame, and whose results fit in the response.
+            int end = start;
+            int length = 4;
+            while (end < requests.size() && end - start < Protocol.MAX_BATCH_SIZE) {
+                int requestLength = Protocol.indexLength(requests.get(end).getIndex()) + 32;
+                if (length + requestLength > Protocol.MAX_PAYLOAD_LENGTH) {
+                    break;
+                }
+                length += requestLength;
+                end++;
+            }
+            results.addAll(signChunk(requests.subList(start, end), length));
+            start = end;
+        } while (start < requests.size());
+        return results;
+    }
+
+    private List<SignResult> signChunk(List<SignRequest> requests, int length) throws PinModeLockedException, IOException {
+        ByteBuffer batch = ByteBuffer.allocate(length);
+        batch.putInt(requests.size());
+        for (SignRequest request : requests) {
+            Protocol.putIndex(batch, request.getIndex());
+            batch.put(request.getHash());
+        }
+        ByteBuffer response;
+        try {
+            response = call(Protocol.OP_SIGN_BATCH, batch);
+        } catch (UnusableIndexException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        int count = response.getInt();
+        List<SignResult> results = new ArrayList<SignResult>(count);
+        for (int i = 0; i < count; i++) {
+            byte status = response.get();
+            if (status == Protocol.STATUS_OK) {
+                results.add(SignResult.success(Protocol.getBytes(response, response.getShort() & 0xffff)));
+            } else {
+                results.add(SignResult.failure(Protocol.decodeError(status, response)));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public byte[] generateMasterKeyPair(boolean allowExport, boolean returnPrivateKey, boolean testnetKey) throws PinModeLockedException, IOException {
+        throw new OperationNotPermittedException();
+    }
+
+    @Override
+    public void importExtendedKeyPair(byte[] extendedPrivateKey, boolean allowExport) throws PinModeLockedException, IOException {
+        throw new OperationNotPermittedException();
+    }
+
+    @Override
+    public byte[] exportExtendedPublicKey() throws PinModeLockedException, IOException, OperationNotPermittedException, NoKeyLoadedException {
+        throw new OperationNotPermittedException();
+    }
+}
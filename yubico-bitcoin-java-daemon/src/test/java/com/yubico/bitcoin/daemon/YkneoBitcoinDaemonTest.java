@@ -0,0 +1,283 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.daemon;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.common.io.BaseEncoding;
+import com.yubico.bitcoin.api.*;
+import com.yubico.bitcoin.soft.YkneoBitcoinSoft;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class YkneoBitcoinDaemonTest {
+    private static final String userPin = "000000";
+    private static final String adminPin = "00000000";
+
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+
+    private YkneoBitcoinSoft soft;
+    private final byte[][] pubKeys = new byte[4][];
+    private YkneoBitcoinDaemon daemon;
+    private SocketAddress address;
+    private YkneoBitcoinDaemonClient client;
+
+    @Before
+    public void setup() throws Exception {
+        soft = new YkneoBitcoinSoft();
+        soft.unlockAdmin(adminPin);
+        soft.importExtendedKeyPair(HEX.decode("0488ade4000000000000000000873dff81c02f525623fd1fe5167eac3a55a049de3d314bb42ee227ffed37d50800e8f32e723decf4051aefac8e2c93c9c5b214313817cdb01a1494b917c8436b35"), true);
+        soft.unlockUser(userPin);
+        //The device belongs to the daemon once it is started, so keys used from other threads are read up front.
+        for (int i = 0; i < pubKeys.length; i++) {
+            pubKeys[i] = soft.getPublicKey(false, i);
+        }
+
+        ServerSocketChannel server = YkneoBitcoinDaemon.bindLoopback(0);
+        daemon = new YkneoBitcoinDaemon(soft);
+        daemon.listen(server);
+        daemon.start();
+        address = server.socket().getLocalSocketAddress();
+        client = new YkneoBitcoinDaemonClient(address);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        daemon.close();
+    }
+
+    @Test
+    public void testInfo() throws Exception {
+        assertEquals(soft.getAppletVersion(), client.getAppletVersion());
+        assertTrue(client.isKeyLoaded());
+        assertTrue(client.isUserUnlocked());
+        assertFalse(client.isAdminUnlocked());
+        assertArrayEquals(soft.getHeader(), client.getHeader());
+    }
+
+    @Test
+    public void testGetPublicKeys() throws Exception {
+        assertArrayEquals(soft.getPublicKey(true, 0x80000000, 1, 0x80000002), client.getPublicKey(true, 0x80000000, 1, 0x80000002));
+        assertArrayEquals(soft.getPublicKeys(false, new int[]{0x80000000, 1}, 5, 3), client.getPublicKeys(false, new int[]{0x80000000, 1}, 5, 3));
+    }
+
+    @Test
+    public void testLargeRequests() throws Exception {
+        int[] parentPath = new int[]{0x80000000, 1};
+        int count = Protocol.maxPublicKeys(false) + 10;
+        assertArrayEquals(soft.getPublicKeys(false, parentPath, 0, count), client.getPublicKeys(false, parentPath, 0, count));
+
+        List<SignRequest> requests = new ArrayList<SignRequest>();
+        for (int i = 0; i <= Protocol.MAX_BATCH_SIZE; i++) {
+            byte[] hash = new byte[32];
+            hash[0] = (byte) i;
+            hash[1] = (byte) (i >> 8);
+            requests.add(new SignRequest(hash, 0));
+        }
+        List<SignResult> results = client.signBatch(requests);
+        assertEquals(requests.size(), results.size());
+        byte[] pubKey = soft.getPublicKey(false, 0);
+        assertTrue(ECKey.verify(requests.get(0).getHash(), results.get(0).getSignature(), pubKey));
+        assertTrue(ECKey.verify(requests.get(Protocol.MAX_BATCH_SIZE).getHash(), results.get(Protocol.MAX_BATCH_SIZE).getSignature(), pubKey));
+    }
+
+    @Test
+    public void testSign() throws Exception {
+        byte[] hash = new byte[32];
+        hash[0] = 1;
+        byte[] signature = client.sign(hash, 0x80000000, 1);
+        assertTrue(ECKey.verify(hash, signature, soft.getPublicKey(false, 0x80000000, 1)));
+    }
+
+    @Test
+    public void testSignBatch() throws Exception {
+        byte[] hash1 = new byte[32];
+        byte[] hash2 = new byte[32];
+        hash2[0] = 1;
+        List<SignResult> results = client.signBatch(Arrays.asList(
+                new SignRequest(hash1, 0),
+                new SignRequest(hash2, 0x80000000, 1)
+        ));
+        assertEquals(2, results.size());
+        assertTrue(ECKey.verify(hash1, results.get(0).getSignature(), soft.getPublicKey(false, 0)));
+        assertTrue(ECKey.verify(hash2, results.get(1).getSignature(), soft.getPublicKey(false, 0x80000000, 1)));
+    }
+
+    @Test
+    public void testPipelining() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 64; i++) {
+                final byte[] hash = new byte[32];
+                final int child = i % 4;
+                hash[0] = (byte) i;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        return ECKey.verify(hash, client.sign(hash, child), pubKeys[child]);
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Sends many more requests than a connection may have pending without reading any responses, so that the daemon
+     * has to stop reading while responses are unread, and resume once they are.
+     */
+    @Test
+    public void testPendingLimit() throws Exception {
+        final int count = 10000;
+        final SocketChannel channel = SocketChannel.open();
+        channel.socket().setReceiveBufferSize(4096);
+        channel.connect(address);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> writer = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    int[] index = new int[1];
+                    for (int i = 0; i < count; i++) {
+                        index[0] = i % pubKeys.length;
+                        ByteBuffer frame = Protocol.frame(i, Protocol.OP_GET_PUB, 1 + Protocol.indexLength(index));
+                        frame.put((byte) 0);
+                        Protocol.putIndex(frame, index);
+                        frame.flip();
+                        while (frame.hasRemaining()) {
+                            channel.write(frame);
+                        }
+                    }
+                    return null;
+                }
+            });
+
+            ByteBuffer response = ByteBuffer.allocate(Protocol.HEADER_LENGTH + 65);
+            for (int i = 0; i < count; i++) {
+                response.clear();
+                while (response.hasRemaining()) {
+                    if (channel.read(response) < 0) {
+                        fail("Connection closed after " + i + " responses");
+                    }
+                }
+                response.flip();
+                assertEquals(response.capacity() - 4, response.getInt());
+                assertEquals(i, response.getInt());
+                assertEquals(Protocol.STATUS_OK, response.get());
+                assertArrayEquals(pubKeys[i % pubKeys.length], Protocol.getBytes(response, 65));
+            }
+            writer.get();
+        } finally {
+            executor.shutdown();
+            channel.close();
+        }
+    }
+
+    /**
+     * Serves a client over a Unix domain socket, which has no Socket and no TCP options. The channel types are only
+     * available on Java 16 and later, so they are created reflectively and the test is skipped on older versions.
+     */
+    @Test
+    public void testUnixDomainSocket() throws Exception {
+        Class<?> addressClass;
+        try {
+            addressClass = Class.forName("java.net.UnixDomainSocketAddress");
+        } catch (ClassNotFoundException e) {
+            addressClass = null;
+        }
+        Assume.assumeNotNull(addressClass);
+
+        File path = File.createTempFile("ykneo-bitcoin", ".sock");
+        path.delete();
+        ProtocolFamily unix = (ProtocolFamily) Class.forName("java.net.StandardProtocolFamily").getField("UNIX").get(null);
+        SocketAddress address = (SocketAddress) addressClass.getMethod("of", String.class).invoke(null, path.getPath());
+        ServerSocketChannel server = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        ServerSocketChannel.class.getMethod("bind", SocketAddress.class).invoke(server, address);
+
+        YkneoBitcoinDaemon unixDaemon = new YkneoBitcoinDaemon(new YkneoBitcoinSoft());
+        unixDaemon.listen(server);
+        unixDaemon.start();
+        SocketChannel channel = (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        SocketChannel.class.getMethod("connect", SocketAddress.class).invoke(channel, address);
+        YkneoBitcoinDaemonClient unixClient = new YkneoBitcoinDaemonClient(channel);
+        try {
+            assertEquals("0.1.0", unixClient.getAppletVersion());
+            assertFalse(unixClient.isKeyLoaded());
+        } finally {
+            unixClient.close();
+            unixDaemon.close();
+            path.delete();
+        }
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        try {
+            client.unlockAdmin(adminPin);
+            fail("Admin operation permitted!");
+        } catch (OperationNotPermittedException e) {
+            //Expected
+        }
+
+        YkneoBitcoinSoft emptySoft = new YkneoBitcoinSoft();
+        ServerSocketChannel server = YkneoBitcoinDaemon.bindLoopback(0);
+        YkneoBitcoinDaemon empty = new YkneoBitcoinDaemon(emptySoft);
+        empty.listen(server);
+        empty.start();
+        YkneoBitcoinDaemonClient emptyClient = new YkneoBitcoinDaemonClient(server.socket().getLocalSocketAddress());
+        try {
+            assertFalse(emptyClient.isKeyLoaded());
+            try {
+                emptyClient.sign(new byte[32], 0);
+                fail("Signed while locked!");
+            } catch (PinModeLockedException e) {
+                assertEquals(PinMode.USER, e.getPinMode());
+            }
+
+            emptySoft.unlockUser(userPin);
+            try {
+                emptyClient.sign(new byte[32], 0);
+                fail("Signed without a key!");
+            } catch (NoKeyLoadedException e) {
+                //Expected
+            }
+        } finally {
+            emptyClient.close();
+            empty.close();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.pcsc;
+
+import com.yubico.bitcoin.transport.ApduTransport;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * ApduTransport that uses javax.smartcardio to talk to a YubiKey NEO over PCSC.
+ */
+public class PCSCTransport implements ApduTransport {
+    private volatile CardChannel channel;
+
+    public PCSCTransport(CardChannel channel) {
+        this.channel = channel;
+    }
+
+    public CardChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Replaces the channel used, for instance after reconnecting to a card which has been reset.
+     */
+    void setChannel(CardChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void transmit(ByteBuffer command, ByteBuffer response) throws IOException {
+        try {
+            channel.transmit(command, response);
+        } catch (CardException e) {
+            throw new IOException(String.format("The operation was interrupted by the wrapped cause: %s", e), e);
+        }
+    }
+}
@@ -19,29 +19,140 @@ package com.yubico.bitcoin.pcsc;
 import com.yubico.bitcoin.api.*;
 import com.yubico.bitcoin.util.AbstractYkneoBitcoin;
 
+import javax.smartcardio.Card;
 import javax.smartcardio.CardChannel;
 import javax.smartcardio.CardException;
-import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.CardTerminal;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * YkneoBitcoin implementation that uses javax.smartcardio to talk to a YubiKey NEO over PCSC.
+ * <p/>
+ * Each instance is bound to a single CardChannel. To overlap host side work with the card executing commands, use
+ * openChannels to get one instance per logical channel, and spread requests over them using YkneoBitcoinPool.
+ * <p/>
+ * Commands are sent using a PCSCTransport. To add behavior such as retries, wrap a PCSCTransport and use
+ * YkneoBitcoinClient instead.
+ * <p/>
+ * Instances created from a CardTerminal are able to reconnect to the card, so that sessions can be resumed after the
+ * card has been reset or reinserted, see AbstractYkneoBitcoin.setPinProvider.
  */
 public class YkneoBitcoinPCSC extends AbstractYkneoBitcoin {
-    private final CardChannel channel;
+    private final PCSCTransport transport;
+    private final CardTerminal terminal;
 
     public YkneoBitcoinPCSC(CardChannel channel) throws CardException, IOException {
-        this.channel = channel;
+        this(new PCSCTransport(channel), null);
+    }
+
+    /**
+     * Connects to the card in the given terminal, using the basic channel.
+     *
+     * @param terminal The terminal holding the YubiKey NEO, which is connected to again if the card is reset.
+     * @throws CardException
+     * @throws IOException
+     */
+    public YkneoBitcoinPCSC(CardTerminal terminal) throws CardException, IOException {
+        this(new PCSCTransport(terminal.connect("*").getBasicChannel()), terminal);
+    }
+
+    private YkneoBitcoinPCSC(PCSCTransport transport, CardTerminal terminal) throws IOException {
+        super(transport);
+        this.transport = transport;
+        this.terminal = terminal;
+
+        boolean selected = false;
+        try {
+            select();
+            selected = true;
+        } finally {
+            if (!selected && terminal != null) {
+                //The card was connected to by this instance, so it must not be left connected.
+                try {
+                    transport.getChannel().getCard().disconnect(false);
+                } catch (CardException e) {
+                    //The card is already gone.
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens several channels to a card, selecting the applet on each of them. The first instance uses the basic
+     * channel, the rest use newly opened logical channels. Each channel has its own PIN state, and must be unlocked
+     * separately. This requires the applet to be installed as multiselectable, and the number of channels is limited
+     * by the card (the YubiKey NEO supports 4).
+     *
+     * @param card  The card to use.
+     * @param count The total number of channels to use, including the basic channel.
+     * @return One instance per channel.
+     * @throws CardException
+     * @throws IOException
+     */
+    public static List<YkneoBitcoinPCSC> openChannels(Card card, int count) throws CardException, IOException {
+        if (count < 1) {
+            throw new IllegalArgumentException(String.format("Invalid number of channels: %d", count));
+        }
+        List<YkneoBitcoinPCSC> channels = new ArrayList<YkneoBitcoinPCSC>(count);
+        try {
+            channels.add(new YkneoBitcoinPCSC(card.getBasicChannel()));
+            while (channels.size() < count) {
+                CardChannel channel = card.openLogicalChannel();
+                try {
+                    channels.add(new YkneoBitcoinPCSC(channel));
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+            }
+        } catch (CardException e) {
+            closeAll(channels);
+            throw e;
+        } catch (IOException e) {
+            closeAll(channels);
+            throw e;
+        }
+        return channels;
+    }
+
+    private static void closeAll(List<YkneoBitcoinPCSC> channels) throws CardException {
+        for (YkneoBitcoinPCSC neo : channels) {
+            neo.close();
+        }
+    }
 
-        select();
+    public CardChannel getChannel() {
+        return transport.getChannel();
     }
 
     @Override
-    protected byte[] send(int cla, int ins, int p1, int p2, byte[] data) throws IOException {
+    protected void reconnect() throws IOException {
+        if (terminal == null) {
+            return;
+        }
         try {
-            return channel.transmit(new CommandAPDU(cla, ins, p1, p2, data)).getBytes();
+            transport.getChannel().getCard().disconnect(false);
         } catch (CardException e) {
-            throw new IOException(String.format("The operation was interrupted by the wrapped cause: %s", e), e);
+            //The old connection is already gone.
+        }
+        try {
+            transport.setChannel(terminal.connect("*").getBasicChannel());
+        } catch (CardException e) {
+            throw new IOException("Unable to reconnect to the card", e);
+        }
+    }
+
+    /**
+     * Closes the channel if it is a logical channel. The basic channel is left open.
+     *
+     * @throws CardException
+     */
+    public void close() throws CardException {
+        CardChannel channel = transport.getChannel();
+        if (channel.getChannelNumber() != 0) {
+            channel.close();
         }
     }
 }
\ No newline at end of file
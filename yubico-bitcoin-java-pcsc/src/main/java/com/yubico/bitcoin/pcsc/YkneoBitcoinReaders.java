@@ -0,0 +1,308 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.pcsc;
+
+import javax.smartcardio.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Discovers YubiKey NEOs in all PC/SC readers, and keeps track of them as they are inserted and removed.
+ * <p/>
+ * Connecting to a card and selecting the applet takes a round trip per step, so all readers are brought up in
+ * parallel, bounding the startup time by the slowest device. Readers which don't hold a card with the ykneo-bitcoin
+ * applet are ignored.
+ * <p/>
+ * Example:
+ * YkneoBitcoinReaders readers = new YkneoBitcoinReaders();
+ * Map&lt;String, YkneoBitcoinPCSC&gt; devices = readers.connectAll(); //Devices present at startup.
+ * readers.addListener(listener); //Notified of later insertions and removals.
+ * readers.startMonitoring();
+ */
+public class YkneoBitcoinReaders implements Closeable {
+    private static final long WAIT_TIMEOUT = 1000;
+
+    private final CardTerminals terminals;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final String nameFilter;
+    private final ConcurrentMap<String, Device> devices = new ConcurrentHashMap<String, Device>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private volatile Thread monitor;
+
+    /**
+     * Receives events for devices being connected and removed. Events are delivered on the monitoring thread.
+     */
+    public interface Listener {
+        void deviceAdded(String terminalName, YkneoBitcoinPCSC neo);
+
+        void deviceRemoved(String terminalName);
+    }
+
+    /**
+     * Uses all readers of the default TerminalFactory, connecting to them using a thread per reader.
+     */
+    public YkneoBitcoinReaders() {
+        this(TerminalFactory.getDefault().terminals(), null, Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ykneo-bitcoin-connect");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), true);
+    }
+
+    /**
+     * @param terminals  The readers to use.
+     * @param nameFilter If not null, only readers whose name contains this string are used, e.g. "Yubikey NEO".
+     * @param executor   Used to connect to readers in parallel. It is not shut down when this object is closed.
+     */
+    public YkneoBitcoinReaders(CardTerminals terminals, String nameFilter, ExecutorService executor) {
+        this(terminals, nameFilter, executor, false);
+    }
+
+    private YkneoBitcoinReaders(CardTerminals terminals, String nameFilter, ExecutorService executor, boolean ownsExecutor) {
+        this.terminals = terminals;
+        this.nameFilter = nameFilter;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Connects to all readers which currently hold a card, in parallel, and returns once all of them are done.
+     * Readers without the applet are skipped, while unexpected failures are thrown once all readers are done.
+     *
+     * @return All connected devices, keyed by reader name.
+     * @throws CardException
+     * @throws InterruptedException
+     */
+    public Map<String, YkneoBitcoinPCSC> connectAll() throws CardException, InterruptedException {
+        connect(terminals.list(CardTerminals.State.CARD_PRESENT));
+        return getDevices();
+    }
+
+    /**
+     * @return All connected devices, keyed by reader name.
+     */
+    public Map<String, YkneoBitcoinPCSC> getDevices() {
+        Map<String, YkneoBitcoinPCSC> result = new TreeMap<String, YkneoBitcoinPCSC>();
+        for (Map.Entry<String, Device> entry : devices.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().neo);
+        }
+        return result;
+    }
+
+    /**
+     * Starts a background thread which waits for cards to be inserted or removed. Inserted cards are connected and
+     * announced to the listeners, removed cards are disconnected.
+     */
+    public synchronized void startMonitoring() {
+        if (monitor != null) {
+            return;
+        }
+        monitor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                monitor();
+            }
+        }, "ykneo-bitcoin-monitor");
+        monitor.setDaemon(true);
+        monitor.start();
+    }
+
+    /**
+     * Stops monitoring and disconnects all devices. Waits for the monitoring thread to finish, which may take up to a
+     * second while it waits for changes, unless called from a listener.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            thread = monitor;
+            monitor = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            if (thread != Thread.currentThread()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        if (ownsExecutor) {
+            executor.shutdownNow();
+        }
+        for (String name : devices.keySet()) {
+            disconnect(name);
+        }
+    }
+
+    private void monitor() {
+        Thread self = Thread.currentThread();
+        boolean initialized = false;
+        try {
+            while (monitor == self) {
+                try {
+                    List<CardTerminal> inserted;
+                    if (!initialized) {
+                        //The first call only records the current state, so pick up any cards inserted before it.
+                        terminals.waitForChange(1);
+                        initialized = true;
+                        inserted = terminals.list(CardTerminals.State.CARD_PRESENT);
+                        //Cards may have been removed before monitoring started, or while PC/SC was unavailable.
+                        Set<String> present = new HashSet<String>();
+                        for (CardTerminal terminal : inserted) {
+                            present.add(terminal.getName());
+                        }
+                        for (String name : devices.keySet()) {
+                            if (!present.contains(name)) {
+                                removed(name);
+                            }
+                        }
+                    } else {
+                        if (!terminals.waitForChange(WAIT_TIMEOUT)) {
+                            continue;
+                        }
+                        for (CardTerminal terminal : terminals.list(CardTerminals.State.CARD_REMOVAL)) {
+                            removed(terminal.getName());
+                        }
+                        inserted = terminals.list(CardTerminals.State.CARD_INSERTION);
+                    }
+                    for (Device device : connect(inserted)) {
+                        for (Listener listener : listeners) {
+                            listener.deviceAdded(device.name, device.neo);
+                        }
+                    }
+                } catch (CardException e) {
+                    //The PC/SC service may be restarting, or have no readers attached.
+                    initialized = false;
+                    Thread.sleep(WAIT_TIMEOUT);
+                }
+            }
+        } catch (InterruptedException e) {
+            //Closed.
+        } finally {
+            synchronized (this) {
+                if (monitor == self) {
+                    //Stopped by an unexpected exception, allow monitoring to be started again.
+                    monitor = null;
+                }
+            }
+        }
+    }
+
+    private void removed(String name) {
+        if (disconnect(name)) {
+            for (Listener listener : listeners) {
+                listener.deviceRemoved(name);
+            }
+        }
+    }
+
+    private List<Device> connect(List<CardTerminal> present) throws InterruptedException {
+        List<Future<Device>> pending = new ArrayList<Future<Device>>();
+        for (final CardTerminal terminal : present) {
+            if ((nameFilter == null || terminal.getName().contains(nameFilter)) && !devices.containsKey(terminal.getName())) {
+                pending.add(executor.submit(new Callable<Device>() {
+                    @Override
+                    public Device call() throws Exception {
+                        return connect(terminal);
+                    }
+                }));
+            }
+        }
+
+        List<Device> connected = new ArrayList<Device>();
+        Throwable failure = null;
+        for (Future<Device> future : pending) {
+            try {
+                Device device = future.get();
+                if (devices.putIfAbsent(device.name, device) == null) {
+                    connected.add(device);
+                } else {
+                    device.disconnect();
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (!(cause instanceof CardException || cause instanceof IOException) && failure == null) {
+                    //Only thrown once all readers are done, so that no connected card is left behind.
+                    failure = cause;
+                }
+                //Otherwise there is no card, or the card doesn't have the applet.
+            }
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new IllegalStateException(failure);
+        }
+        return connected;
+    }
+
+    /**
+     * Connects through the terminal, so that the device is able to reconnect when resuming a session. The card is
+     * disconnected again if the applet can't be selected.
+     */
+    private static Device connect(CardTerminal terminal) throws CardException, IOException {
+        return new Device(terminal.getName(), new YkneoBitcoinPCSC(terminal));
+    }
+
+    private boolean disconnect(String name) {
+        Device device = devices.remove(name);
+        if (device == null) {
+            return false;
+        }
+        device.disconnect();
+        return true;
+    }
+
+    private static class Device {
+        private final String name;
+        private final YkneoBitcoinPCSC neo;
+
+        private Device(String name, YkneoBitcoinPCSC neo) {
+            this.name = name;
+            this.neo = neo;
+        }
+
+        /**
+         * Disconnects the card the device is currently connected to, which changes when a session is resumed.
+         */
+        private void disconnect() {
+            try {
+                neo.getChannel().getCard().disconnect(false);
+            } catch (CardException e) {
+                //The card is already gone.
+            }
+        }
+    }
+}
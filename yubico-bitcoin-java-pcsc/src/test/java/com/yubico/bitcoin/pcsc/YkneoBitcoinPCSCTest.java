@@ -18,6 +18,7 @@ package com.yubico.bitcoin.pcsc;
 
 import com.google.common.io.BaseEncoding;
 import com.yubico.bitcoin.api.*;
+import com.yubico.bitcoin.util.SignatureVerifier;
 import org.hamcrest.CoreMatchers;
 import org.hamcrest.Matchers;
 import org.hamcrest.core.AnyOf;
@@ -29,6 +30,8 @@ import static org.junit.Assert.*;
 
 import javax.smartcardio.*;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Created with IntelliJ IDEA.
@@ -185,7 +188,55 @@ public class YkneoBitcoinPCSCTest {
         neo.unlockUser(userPin);
         byte[] hash = new byte[32];
         byte[] signature = neo.sign(hash, 0);
-        //TODO: Verify signature.
         assertThat(signature.length, Matchers.lessThanOrEqualTo(72));
+        assertTrue(SignatureVerifier.verify(hash, signature, neo.getPublicKey(true, 0)));
+    }
+
+    @Test
+    public void testSignBatch() throws Exception {
+        testImportExtended();
+        neo.unlockUser(userPin);
+        byte[] hash = new byte[32];
+        List<SignResult> results = neo.signBatch(Arrays.asList(new SignRequest(hash, 0), new SignRequest(hash, 0x80000000, 1)));
+        assertEquals(2, results.size());
+        for (SignResult result : results) {
+            assertTrue(result.isSuccess());
+            assertThat(result.getSignature().length, Matchers.lessThanOrEqualTo(72));
+        }
+    }
+
+    @Test
+    public void testGetPublicKeys() throws Exception {
+        testImportExtended();
+        neo.unlockUser(userPin);
+        int[] parent = new int[]{0x80000000, 1};
+        byte[] compressed = neo.getPublicKeys(true, parent, 5, 3);
+        byte[] uncompressed = neo.getPublicKeys(false, parent, 5, 3);
+        assertEquals(3 * 33, compressed.length);
+        assertEquals(3 * 65, uncompressed.length);
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(neo.getPublicKey(true, 0x80000000, 1, 5 + i), Arrays.copyOfRange(compressed, i * 33, (i + 1) * 33));
+            assertArrayEquals(neo.getPublicKey(false, 0x80000000, 1, 5 + i), Arrays.copyOfRange(uncompressed, i * 65, (i + 1) * 65));
+        }
+    }
+
+    @Test
+    public void testOpenChannels() throws Exception {
+        testImportExtended();
+        List<YkneoBitcoinPCSC> channels = YkneoBitcoinPCSC.openChannels(card, 2);
+        try {
+            assertEquals(2, channels.size());
+            channels.get(1).unlockUser(userPin);
+            assertFalse(channels.get(0).isUserUnlocked());
+            assertTrue(channels.get(1).isUserUnlocked());
+
+            channels.get(0).unlockUser(userPin);
+            assertArrayEquals(channels.get(0).getPublicKey(true, 0), channels.get(1).getPublicKey(true, 0));
+            assertThat(channels.get(1).sign(new byte[32], 0).length, Matchers.lessThanOrEqualTo(72));
+        } finally {
+            for (YkneoBitcoinPCSC channel : channels) {
+                channel.close();
+            }
+        }
     }
 }
@@ -0,0 +1,442 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.pcsc;
+
+import com.yubico.bitcoin.soft.YkneoBitcoinEmulator;
+import com.yubico.bitcoin.transport.ApduTransport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.smartcardio.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs YkneoBitcoinReaders against fake readers holding emulated YubiKey NEOs.
+ */
+public class YkneoBitcoinReadersTest {
+    private FakeTerminals terminals;
+    private ExecutorService executor;
+    private YkneoBitcoinReaders readers;
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+    @Before
+    public void setup() {
+        terminals = new FakeTerminals();
+        executor = Executors.newCachedThreadPool();
+        readers = new YkneoBitcoinReaders(terminals, null, executor);
+        readers.addListener(new YkneoBitcoinReaders.Listener() {
+            @Override
+            public void deviceAdded(String terminalName, YkneoBitcoinPCSC neo) {
+                events.add("added " + terminalName);
+            }
+
+            @Override
+            public void deviceRemoved(String terminalName) {
+                events.add("removed " + terminalName);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        readers.close();
+        executor.shutdownNow();
+    }
+
+    private String nextEvent() throws InterruptedException {
+        String event = events.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No event received", event);
+        return event;
+    }
+
+    @Test
+    public void testConnectAllInParallel() throws Exception {
+        CountDownLatch connecting = new CountDownLatch(3);
+        for (String name : new String[]{"a", "b", "c"}) {
+            terminals.add(name).insert(new YkneoBitcoinEmulator()).connecting = connecting;
+        }
+
+        Map<String, YkneoBitcoinPCSC> devices = readers.connectAll();
+        assertEquals(Arrays.asList("a", "b", "c"), new ArrayList<String>(devices.keySet()));
+        for (YkneoBitcoinPCSC neo : devices.values()) {
+            assertEquals("0.1.0", neo.getAppletVersion());
+        }
+    }
+
+    @Test
+    public void testSkipsReadersWithoutApplet() throws Exception {
+        terminals.add("neo").insert(new YkneoBitcoinEmulator());
+        FakeTerminal other = terminals.add("other").insert(null);
+        terminals.add("empty");
+
+        assertEquals(Collections.singleton("neo"), readers.connectAll().keySet());
+        assertTrue(other.cards.get(0).disconnected);
+    }
+
+    @Test
+    public void testUnexpectedFailure() throws Exception {
+        FakeTerminal neo = terminals.add("neo").insert(new YkneoBitcoinEmulator());
+        terminals.add("broken").insert(new YkneoBitcoinEmulator()).failure = new IllegalStateException("Broken");
+
+        try {
+            readers.connectAll();
+            fail("Unexpected failure ignored!");
+        } catch (IllegalStateException e) {
+            assertEquals("Broken", e.getMessage());
+        }
+        assertEquals(Collections.singleton("neo"), readers.getDevices().keySet());
+        assertFalse(neo.cards.get(0).disconnected);
+    }
+
+    @Test
+    public void testMonitor() throws Exception {
+        FakeTerminal a = terminals.add("a").insert(new YkneoBitcoinEmulator());
+        FakeTerminal b = terminals.add("b");
+        readers.startMonitoring();
+        assertEquals("added a", nextEvent());
+
+        b.insert(new YkneoBitcoinEmulator());
+        assertEquals("added b", nextEvent());
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")), readers.getDevices().keySet());
+
+        a.remove();
+        assertEquals("removed a", nextEvent());
+        assertTrue(a.cards.get(0).disconnected);
+        assertEquals(Collections.singleton("b"), readers.getDevices().keySet());
+
+        //Both happen before the monitor wakes up.
+        YkneoBitcoinPCSC before = readers.getDevices().get("b");
+        b.replace(new YkneoBitcoinEmulator());
+        assertEquals("removed b", nextEvent());
+        assertEquals("added b", nextEvent());
+        assertTrue(b.cards.get(0).disconnected);
+        assertNotSame(before, readers.getDevices().get("b"));
+        assertFalse(b.cards.get(1).disconnected);
+    }
+
+    @Test
+    public void testMonitorRecoversFromErrors() throws Exception {
+        FakeTerminal a = terminals.add("a").insert(new YkneoBitcoinEmulator());
+        FakeTerminal b = terminals.add("b").insert(new YkneoBitcoinEmulator());
+        assertEquals(2, readers.connectAll().size());
+
+        terminals.setAvailable(false);
+        readers.startMonitoring();
+        a.remove();
+        Thread.sleep(100);
+        terminals.setAvailable(true);
+
+        assertEquals("removed a", nextEvent());
+        assertTrue(a.cards.get(0).disconnected);
+        assertFalse(b.cards.get(0).disconnected);
+        assertEquals(Collections.singleton("b"), readers.getDevices().keySet());
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        FakeTerminal a = terminals.add("a").insert(new YkneoBitcoinEmulator());
+        FakeTerminal b = terminals.add("b");
+        readers.connectAll();
+        readers.startMonitoring();
+        readers.close();
+
+        assertTrue(a.cards.get(0).disconnected);
+        assertTrue(readers.getDevices().isEmpty());
+        b.insert(new YkneoBitcoinEmulator());
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Readers which report insertions and removals since the previous call to waitForChange, like the PC/SC
+     * implementation does.
+     */
+    private static class FakeTerminals extends CardTerminals {
+        private final List<FakeTerminal> terminals = new ArrayList<FakeTerminal>();
+        private final Set<FakeTerminal> inserted = new HashSet<FakeTerminal>();
+        private final Set<FakeTerminal> removed = new HashSet<FakeTerminal>();
+        private final Set<FakeTerminal> reportedInserted = new HashSet<FakeTerminal>();
+        private final Set<FakeTerminal> reportedRemoved = new HashSet<FakeTerminal>();
+        private boolean available = true;
+
+        synchronized FakeTerminal add(String name) {
+            FakeTerminal terminal = new FakeTerminal(this, name);
+            terminals.add(terminal);
+            return terminal;
+        }
+
+        synchronized void setAvailable(boolean available) {
+            this.available = available;
+            notifyAll();
+        }
+
+        synchronized void changed(FakeTerminal terminal, boolean wasPresent, boolean isPresent) {
+            if (wasPresent) {
+                removed.add(terminal);
+            }
+            if (isPresent) {
+                inserted.add(terminal);
+            }
+            notifyAll();
+        }
+
+        private void checkAvailable() throws CardException {
+            if (!available) {
+                throw new CardException("PC/SC unavailable");
+            }
+        }
+
+        @Override
+        public synchronized List<CardTerminal> list(State state) throws CardException {
+            checkAvailable();
+            List<CardTerminal> result = new ArrayList<CardTerminal>();
+            for (FakeTerminal terminal : terminals) {
+                boolean match;
+                switch (state) {
+                    case CARD_PRESENT:
+                        match = terminal.isCardPresent();
+                        break;
+                    case CARD_ABSENT:
+                        match = !terminal.isCardPresent();
+                        break;
+                    case CARD_INSERTION:
+                        match = reportedInserted.contains(terminal);
+                        break;
+                    case CARD_REMOVAL:
+                        match = reportedRemoved.contains(terminal);
+                        break;
+                    default:
+                        match = true;
+                }
+                if (match) {
+                    result.add(terminal);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public synchronized boolean waitForChange(long timeout) throws CardException {
+            checkAvailable();
+            long deadline = System.currentTimeMillis() + timeout;
+            try {
+                while (inserted.isEmpty() && removed.isEmpty()) {
+                    long remaining = timeout == 0 ? 0 : deadline - System.currentTimeMillis();
+                    if (timeout != 0 && remaining <= 0) {
+                        reportedInserted.clear();
+                        reportedRemoved.clear();
+                        return false;
+                    }
+                    wait(remaining);
+                    checkAvailable();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CardException("Interrupted");
+            }
+            reportedInserted.clear();
+            reportedInserted.addAll(inserted);
+            reportedRemoved.clear();
+            reportedRemoved.addAll(removed);
+            inserted.clear();
+            removed.clear();
+            return true;
+        }
+    }
+
+    private static class FakeTerminal extends CardTerminal {
+        private final FakeTerminals terminals;
+        private final String name;
+        private final List<FakeCard> cards = new CopyOnWriteArrayList<FakeCard>();
+        private volatile boolean present = false;
+        private volatile ApduTransport applet;
+        private volatile CountDownLatch connecting;
+        private volatile RuntimeException failure;
+
+        private FakeTerminal(FakeTerminals terminals, String name) {
+            this.terminals = terminals;
+            this.name = name;
+        }
+
+        /**
+         * @param applet The applet on the card, or null for a card without the applet.
+         */
+        FakeTerminal insert(ApduTransport applet) {
+            this.applet = applet;
+            present = true;
+            terminals.changed(this, false, true);
+            return this;
+        }
+
+        void remove() {
+            present = false;
+            terminals.changed(this, true, false);
+        }
+
+        void replace(ApduTransport applet) {
+            synchronized (terminals) {
+                this.applet = applet;
+                terminals.changed(this, true, true);
+            }
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Card connect(String protocol) throws CardException {
+            if (failure != null) {
+                throw failure;
+            }
+            if (!present) {
+                throw new CardNotPresentException("No card present");
+            }
+            CountDownLatch latch = connecting;
+            if (latch != null) {
+                latch.countDown();
+                try {
+                    if (!latch.await(5, TimeUnit.SECONDS)) {
+                        throw new IllegalStateException("Readers were not connected to in parallel");
+                    }
+                } catch (InterruptedException e) {
+                    throw new CardException("Interrupted");
+                }
+            }
+            FakeCard card = new FakeCard(applet);
+            cards.add(card);
+            return card;
+        }
+
+        @Override
+        public boolean isCardPresent() {
+            return present;
+        }
+
+        @Override
+        public boolean waitForCardPresent(long timeout) {
+            return present;
+        }
+
+        @Override
+        public boolean waitForCardAbsent(long timeout) {
+            return !present;
+        }
+    }
+
+    private static class FakeCard extends Card {
+        private final ApduTransport applet;
+        private final CardChannel channel = new FakeChannel(this);
+        private volatile boolean disconnected = false;
+
+        private FakeCard(ApduTransport applet) {
+            this.applet = applet;
+        }
+
+        @Override
+        public ATR getATR() {
+            return new ATR(new byte[]{0x3b, 0x00});
+        }
+
+        @Override
+        public String getProtocol() {
+            return "T=1";
+        }
+
+        @Override
+        public CardChannel getBasicChannel() {
+            return channel;
+        }
+
+        @Override
+        public CardChannel openLogicalChannel() throws CardException {
+            throw new CardException("Not supported");
+        }
+
+        @Override
+        public void beginExclusive() {
+        }
+
+        @Override
+        public void endExclusive() {
+        }
+
+        @Override
+        public byte[] transmitControlCommand(int controlCode, byte[] command) throws CardException {
+            throw new CardException("Not supported");
+        }
+
+        @Override
+        public void disconnect(boolean reset) {
+            disconnected = true;
+        }
+    }
+
+    private static class FakeChannel extends CardChannel {
+        private final FakeCard card;
+
+        private FakeChannel(FakeCard card) {
+            this.card = card;
+        }
+
+        @Override
+        public Card getCard() {
+            return card;
+        }
+
+        @Override
+        public int getChannelNumber() {
+            return 0;
+        }
+
+        @Override
+        public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+            ByteBuffer response = ByteBuffer.allocate(258);
+            transmit(ByteBuffer.wrap(command.getBytes()), response);
+            return new ResponseAPDU(Arrays.copyOf(response.array(), response.position()));
+        }
+
+        @Override
+        public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+            if (card.disconnected) {
+                throw new CardException("Card disconnected");
+            }
+            int start = response.position();
+            if (card.applet == null) {
+                response.putShort((short) YkneoBitcoinEmulator.SW_FILE_NOT_FOUND);
+            } else {
+                try {
+                    card.applet.transmit(command, response);
+                } catch (IOException e) {
+                    throw new CardException(e);
+                }
+            }
+            return response.position() - start;
+        }
+
+        @Override
+        public void close() {
+            throw new IllegalStateException("The basic channel can't be closed");
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.soft;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.crypto.DeterministicKey;
+import com.yubico.bitcoin.api.UnusableIndexException;
+import org.spongycastle.math.ec.ECPoint;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import static com.yubico.bitcoin.soft.Secp256k1Field.*;
+
+/**
+ * BIP 32 derivation of private keys held as raw bytes, and of the public keys of a range of consecutive children of a
+ * single parent key, as used by YkneoBitcoinSoft and SoftTokenFarm.
+ * <p/>
+ * A key is held as 97 bytes: the chain code, the private key and the compressed public key. Each child private key is
+ * derived as in BIP 32, and multiplied by the generator using the tables of Secp256k1Signer, giving a point in
+ * Jacobian coordinates. Converting a point to affine coordinates takes a field inversion, which costs about as much
+ * as the multiplication itself, so when deriving a range of public keys the points are converted in chunks sharing a
+ * single inversion (Montgomery's trick). The keys are written straight into one packed result.
+ */
+final class BatchKeyDerivation {
+    static final int CHUNK_SIZE = 1024;
+
+    //Key: chain code(32) | private key(32) | compressed public key(33)
+    static final int KEY_LENGTH = 97;
+    static final int KEY_PRIVATE = 32;
+    static final int KEY_PUBLIC = 64;
+
+    private static final ThreadLocal<Mac> HMAC_SHA512 = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return Mac.getInstance("HmacSHA512");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA512 is not available", e);
+            }
+        }
+    };
+
+    private BatchKeyDerivation() {
+    }
+
+    private static Mac hmac(byte[] key, int length) {
+        Mac hmac = HMAC_SHA512.get();
+        try {
+            hmac.init(new SecretKeySpec(key, 0, length, "HmacSHA512"));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        return hmac;
+    }
+
+    /**
+     * Creates a master key from a seed, as in BIP 32.
+     *
+     * @return The master key, including its public key.
+     */
+    static byte[] masterKey(byte[] seed) {
+        byte[] bitcoinSeed = "Bitcoin seed".getBytes(Charset.forName("US-ASCII"));
+        Mac hmac = hmac(bitcoinSeed, bitcoinSeed.length);
+        byte[] i = hmac.doFinal(seed);
+        return masterKey(Arrays.copyOfRange(i, 32, 64), Arrays.copyOf(i, 32));
+    }
+
+    /**
+     * Creates a master key from a chain code and a private key.
+     *
+     * @return The master key, including its public key.
+     * @throws IllegalArgumentException If the private key is not between 1 and n - 1.
+     */
+    static byte[] masterKey(byte[] chainCode, byte[] privateKey) {
+        BigInteger key = new BigInteger(1, privateKey);
+        if (key.signum() == 0 || key.compareTo(Secp256k1Signer.N) >= 0) {
+            throw new IllegalArgumentException("Invalid master key");
+        }
+        byte[] master = new byte[KEY_LENGTH];
+        System.arraycopy(chainCode, 0, master, 0, 32);
+        System.arraycopy(privateKey, 0, master, KEY_PRIVATE, 32);
+        computePublicKey(master);
+        return master;
+    }
+
+    /**
+     * Replaces a key by one of its children. The public key of the child is not computed, see computePublicKey.
+     *
+     * @param key   The key, which must include its public key unless the child is hardened.
+     * @param index The child number, with the high bit set for a hardened child.
+     * @throws UnusableIndexException If the child is not a valid key.
+     */
+    static void deriveChild(byte[] key, int index) throws UnusableIndexException {
+        Mac hmac = hmac(key, 32);
+        if ((index & 0x80000000) != 0) {
+            hmac.update((byte) 0);
+            hmac.update(key, KEY_PRIVATE, 32);
+        } else {
+            hmac.update(key, KEY_PUBLIC, 33);
+        }
+        hmac.update(new byte[]{(byte) (index >>> 24), (byte) (index >>> 16), (byte) (index >>> 8), (byte) index});
+        byte[] i = hmac.doFinal();
+
+        BigInteger tweak = new BigInteger(1, Arrays.copyOf(i, 32));
+        if (tweak.compareTo(Secp256k1Signer.N) >= 0) {
+            throw new UnusableIndexException(index);
+        }
+        BigInteger child = tweak.add(new BigInteger(1, Arrays.copyOfRange(key, KEY_PRIVATE, KEY_PRIVATE + 32))).mod(Secp256k1Signer.N);
+        if (child.signum() == 0) {
+            throw new UnusableIndexException(index);
+        }
+        System.arraycopy(i, 32, key, 0, 32);
+        System.arraycopy(Secp256k1Signer.toBytes32(child), 0, key, KEY_PRIVATE, 32);
+        Arrays.fill(key, KEY_PUBLIC, KEY_LENGTH, (byte) 0);
+    }
+
+    /**
+     * Computes the compressed public key of a key from its private key.
+     */
+    static void computePublicKey(byte[] key) {
+        int[] x = create();
+        int[] y = create();
+        int[] z = create();
+        if (!Secp256k1Signer.multiplyG(Arrays.copyOfRange(key, KEY_PRIVATE, KEY_PRIVATE + 32), x, y, z, Secp256k1Signer.scratch())) {
+            throw new IllegalArgumentException("Invalid private key");
+        }
+        inv(z, z);
+        Secp256k1Signer.toAffine(x, y, z);
+        Secp256k1Field.toBytes(x, key, KEY_PUBLIC + 1);
+        normalize(y);
+        key[KEY_PUBLIC] = (byte) ((y[0] & 1) == 0 ? 0x02 : 0x03);
+    }
+
+    /**
+     * Converts a DeterministicKey which has its private key.
+     *
+     * @return The key, including its public key.
+     */
+    static byte[] fromDeterministicKey(DeterministicKey key) {
+        byte[] bytes = new byte[KEY_LENGTH];
+        System.arraycopy(key.getChainCode(), 0, bytes, 0, 32);
+        System.arraycopy(Secp256k1Signer.toBytes32(key.getPrivAsFieldElement()), 0, bytes, KEY_PRIVATE, 32);
+        System.arraycopy(key.getPubKeyBytes(), 0, bytes, KEY_PUBLIC, 33);
+        return bytes;
+    }
+
+    static BigInteger getPrivateKey(byte[] key) {
+        return new BigInteger(1, Arrays.copyOfRange(key, KEY_PRIVATE, KEY_PRIVATE + 32));
+    }
+
+    /**
+     * @param key      A key including its public key.
+     * @param compress True to return the compressed public key, false to return the uncompressed public key.
+     * @return A 33 (compressed) or 65 (uncompressed) byte public key.
+     */
+    static byte[] getPublicKey(byte[] key, boolean compress) {
+        byte[] compressed = Arrays.copyOfRange(key, KEY_PUBLIC, KEY_LENGTH);
+        if (compress) {
+            return compressed;
+        }
+        ECPoint point = ECKey.CURVE.getCurve().decodePoint(compressed);
+        return new ECPoint.Fp(point.getCurve(), point.getX(), point.getY(), false).getEncoded();
+    }
+
+    /**
+     * @param parent    The parent key, which must have its private key.
+     * @param fromChild The index of the first child, with the high bit set for hardened children.
+     * @param count     The number of children.
+     * @param compress  True to return compressed public keys, false to return uncompressed public keys.
+     * @return The public keys, back to back.
+     * @throws UnusableIndexException If any of the children is not a valid key.
+     */
+    static byte[] derivePublicKeys(DeterministicKey parent, int fromChild, int count, boolean compress) throws UnusableIndexException {
+        return derivePublicKeys(fromDeterministicKey(parent), fromChild, count, compress);
+    }
+
+    /**
+     * @param parent    The parent key, which must include its public key unless the children are hardened.
+     * @param fromChild The index of the first child, with the high bit set for hardened children.
+     * @param count     The number of children.
+     * @param compress  True to return compressed public keys, false to return uncompressed public keys.
+     * @return The public keys, back to back.
+     * @throws UnusableIndexException If any of the children is not a valid key.
+     */
+    static byte[] derivePublicKeys(byte[] parent, int fromChild, int count, boolean compress) throws UnusableIndexException {
+        int keyLength = compress ? 33 : 65;
+        if (count < 0 || count > Integer.MAX_VALUE / keyLength) {
+            throw new IllegalArgumentException(String.format("Count must be between 0 and %d, was: %d", Integer.MAX_VALUE / keyLength, count));
+        }
+        byte[] keys = new byte[count * keyLength];
+
+        BigInteger parentKey = new BigInteger(1, Arrays.copyOfRange(parent, KEY_PRIVATE, KEY_PRIVATE + 32));
+        Mac hmac = hmac(parent, 32);
+        //The data is the parent key followed by the child index, only the index changes from child to child.
+        byte[] data = new byte[37];
+        if ((fromChild & 0x80000000) != 0) {
+            System.arraycopy(parent, KEY_PRIVATE, data, 1, 32);
+        } else {
+            System.arraycopy(parent, KEY_PUBLIC, data, 0, 33);
+        }
+
+        int chunk = Math.min(count, CHUNK_SIZE);
+        int[][] xs = new int[chunk][];
+        int[][] ys = new int[chunk][];
+        int[][] zs = new int[chunk][];
+        for (int i = 0; i < chunk; i++) {
+            xs[i] = create();
+            ys[i] = create();
+            zs[i] = create();
+        }
+        Secp256k1Signer.Scratch scratch = Secp256k1Signer.scratch();
+        byte[] il = new byte[32];
+
+        for (int start = 0; start < count; start += chunk) {
+            int n = Math.min(chunk, count - start);
+            for (int i = 0; i < n; i++) {
+                int index = fromChild + start + i;
+                data[33] = (byte) (index >>> 24);
+                data[34] = (byte) (index >>> 16);
+                data[35] = (byte) (index >>> 8);
+                data[36] = (byte) index;
+                System.arraycopy(hmac.doFinal(data), 0, il, 0, 32);
+                BigInteger tweak = new BigInteger(1, il);
+                if (tweak.compareTo(Secp256k1Signer.N) >= 0) {
+                    throw new UnusableIndexException(index);
+                }
+                byte[] child = Secp256k1Signer.toBytes32(tweak.add(parentKey).mod(Secp256k1Signer.N));
+                if (!Secp256k1Signer.multiplyG(child, xs[i], ys[i], zs[i], scratch)) {
+                    throw new UnusableIndexException(index);
+                }
+            }
+
+            Secp256k1Signer.batchInvert(zs, n);
+            for (int i = 0; i < n; i++) {
+                Secp256k1Signer.toAffine(xs[i], ys[i], zs[i]);
+                int offset = (start + i) * keyLength;
+                Secp256k1Field.toBytes(xs[i], keys, offset + 1);
+                if (compress) {
+                    normalize(ys[i]);
+                    keys[offset] = (byte) ((ys[i][0] & 1) == 0 ? 0x02 : 0x03);
+                } else {
+                    keys[offset] = 0x04;
+                    Secp256k1Field.toBytes(ys[i], keys, offset + 33);
+                }
+            }
+        }
+        return keys;
+    }
+}
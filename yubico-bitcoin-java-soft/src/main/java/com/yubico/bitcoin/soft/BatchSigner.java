@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.soft;
+
+import com.yubico.bitcoin.api.NoKeyLoadedException;
+import com.yubico.bitcoin.api.PinModeLockedException;
+import com.yubico.bitcoin.api.SignRequest;
+import com.yubico.bitcoin.api.SignResult;
+import com.yubico.bitcoin.api.UnusableIndexException;
+
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * Signs a batch of hashes for the soft tokens, grouping the requests by path so that each key is only derived once.
+ * A failure to derive a key fails all requests for that path, and a failure to sign fails only the one request.
+ */
+final class BatchSigner {
+    /**
+     * Derives the private key for a path.
+     */
+    interface KeySource {
+        BigInteger getPrivateKey(int[] index) throws PinModeLockedException, NoKeyLoadedException, UnusableIndexException;
+    }
+
+    private BatchSigner() {
+    }
+
+    static List<SignResult> signBatch(List<SignRequest> requests, KeySource keys) {
+        Map<IndexPath, List<Integer>> groups = new LinkedHashMap<IndexPath, List<Integer>>();
+        for (int i = 0; i < requests.size(); i++) {
+            IndexPath path = new IndexPath(requests.get(i).getIndex());
+            List<Integer> group = groups.get(path);
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                groups.put(path, group);
+            }
+            group.add(i);
+        }
+
+        SignResult[] results = new SignResult[requests.size()];
+        for (Map.Entry<IndexPath, List<Integer>> group : groups.entrySet()) {
+            BigInteger key;
+            try {
+                key = keys.getPrivateKey(group.getKey().index);
+            } catch (Exception e) {
+                for (int i : group.getValue()) {
+                    results[i] = SignResult.failure(e);
+                }
+                continue;
+            }
+            for (int i : group.getValue()) {
+                try {
+                    results[i] = SignResult.success(Secp256k1Signer.sign(key, requests.get(i).getHash()));
+                } catch (RuntimeException e) {
+                    results[i] = SignResult.failure(e);
+                }
+            }
+        }
+
+        return Arrays.asList(results);
+    }
+
+    private static class IndexPath {
+        private final int[] index;
+
+        private IndexPath(int[] index) {
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof IndexPath && Arrays.equals(index, ((IndexPath) o).index);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(index);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.soft;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of derived keys, keyed directly on the int[] index path used by YkneoBitcoin. Keys are held in the
+ * 97 byte form of BatchKeyDerivation, including their public keys, and must not be modified once cached.
+ * <p/>
+ * Entries are stored in fixed size parallel arrays, indexed by an open addressing (linear probing) hash table of
+ * primitive ints, so a lookup does not allocate or box anything. When the cache is full, an entry is evicted using the
+ * CLOCK algorithm. Nodes whose path consists only of hardened indices (such as m/0' or m/44'/0'/0') are pinned and
+ * never evicted, as these are expensive to re-derive and are shared by all keys below them.
+ * <p/>
+ * This class is thread safe. Larger caches are split into independently locked segments, each holding a share of the
+ * entries, so that threads working on different paths rarely wait for each other.
+ */
+public class DerivedKeyCache {
+    public static final int DEFAULT_MAX_SIZE = 1024;
+
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_SIZE = 64;
+
+    private final int maxSize;
+    private final Segment[] segments;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize The maximum number of derived keys to hold.
+     */
+    public DerivedKeyCache(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException(String.format("Cache size must be positive, was: %d", maxSize));
+        }
+        this.maxSize = maxSize;
+
+        int count = Integer.highestOneBit(Math.max(1, Math.min(MAX_SEGMENTS, maxSize / MIN_SEGMENT_SIZE)));
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(maxSize / count + (i < maxSize % count ? 1 : 0));
+        }
+    }
+
+    private static int hash(int[] path, int length) {
+        int h = length;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + path[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean prefixEquals(int[] stored, int[] path, int length) {
+        if (stored.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (stored[i] != path[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isHardened(int[] path, int length) {
+        for (int i = 0; i < length; i++) {
+            if ((path[i] & 0x80000000) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Segment segmentFor(int h) {
+        //The low bits pick the slot within a segment, so use different bits to pick the segment.
+        return segments[((h * 0x9e3779b9) >>> 16) & (segments.length - 1)];
+    }
+
+    /**
+     * Gets the key for the first length elements of path.
+     *
+     * @return The cached key, or null if it isn't cached.
+     */
+    byte[] get(int[] path, int length) {
+        int h = hash(path, length);
+        return segmentFor(h).get(h, path, length);
+    }
+
+    /**
+     * Adds the key for the first length elements of path, unless another thread has already added it.
+     * The path is copied, so the caller is free to modify it afterwards.
+     *
+     * @return The key now in the cache for the path, which may differ from the given key if one was already cached.
+     */
+    byte[] put(int[] path, int length, byte[] key) {
+        int h = hash(path, length);
+        return segmentFor(h).put(h, path, length, key);
+    }
+
+    /**
+     * Copies the paths and keys of all cached entries into the given lists.
+     */
+    void copyEntries(List<int[]> paths, List<byte[]> keys) {
+        for (Segment segment : segments) {
+            segment.copyEntries(paths, keys);
+        }
+    }
+
+    void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return The number of requested keys which were found in the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of requested keys which had to be derived.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static class Segment {
+        private final int maxSize;
+        private final int mask;
+        private final int[] table;
+
+        private final int[][] paths;
+        private final int[] hashes;
+        private final byte[][] keys;
+        private final boolean[] referenced;
+        private final boolean[] pinned;
+
+        private int size = 0;
+        private int hand = 0;
+
+        private Segment(int maxSize) {
+            this.maxSize = maxSize;
+
+            int capacity = Integer.highestOneBit(maxSize) << 2;
+            mask = capacity - 1;
+            table = new int[capacity];
+
+            paths = new int[maxSize][];
+            hashes = new int[maxSize];
+            keys = new byte[maxSize][];
+            referenced = new boolean[maxSize];
+            pinned = new boolean[maxSize];
+        }
+
+        private int find(int h, int[] path, int length) {
+            for (int pos = h & mask; table[pos] != 0; pos = (pos + 1) & mask) {
+                int entry = table[pos] - 1;
+                if (hashes[entry] == h && prefixEquals(paths[entry], path, length)) {
+                    return entry;
+                }
+            }
+            return -1;
+        }
+
+        private synchronized byte[] get(int h, int[] path, int length) {
+            int entry = find(h, path, length);
+            if (entry == -1) {
+                return null;
+            }
+            referenced[entry] = true;
+            return keys[entry];
+        }
+
+        private synchronized byte[] put(int h, int[] path, int length, byte[] key) {
+            int existing = find(h, path, length);
+            if (existing != -1) {
+                return keys[existing];
+            }
+
+            int entry;
+            if (size < maxSize) {
+                entry = size++;
+            } else {
+                entry = evict();
+                if (entry == -1) {
+                    return key;
+                }
+            }
+
+            int[] stored = new int[length];
+            System.arraycopy(path, 0, stored, 0, length);
+            paths[entry] = stored;
+            hashes[entry] = h;
+            keys[entry] = key;
+            referenced[entry] = false;
+            pinned[entry] = length > 0 && isHardened(path, length);
+
+            int pos = h & mask;
+            while (table[pos] != 0) {
+                pos = (pos + 1) & mask;
+            }
+            table[pos] = entry + 1;
+            return key;
+        }
+
+        private synchronized void copyEntries(List<int[]> paths, List<byte[]> keys) {
+            for (int i = 0; i < size; i++) {
+                paths.add(this.paths[i].clone());
+                keys.add(this.keys[i]);
+            }
+        }
+
+        /**
+         * Runs the CLOCK hand until an unreferenced, unpinned entry is found, and removes it.
+         *
+         * @return The freed entry, or -1 if every entry is pinned.
+         */
+        private int evict() {
+            for (int i = 0; i < 2 * maxSize; i++) {
+                int entry = hand;
+                hand = (hand + 1) % maxSize;
+                if (pinned[entry]) {
+                    continue;
+                }
+                if (referenced[entry]) {
+                    referenced[entry] = false;
+                    continue;
+                }
+                remove(entry);
+                return entry;
+            }
+            return -1;
+        }
+
+        private void remove(int entry) {
+            int pos = hashes[entry] & mask;
+            while (table[pos] != entry + 1) {
+                pos = (pos + 1) & mask;
+            }
+            table[pos] = 0;
+
+            //Shift back any following entries that would no longer be reachable.
+            for (int next = (pos + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+                int ideal = hashes[table[next] - 1] & mask;
+                if (((next - ideal) & mask) >= ((next - pos) & mask)) {
+                    table[pos] = table[next];
+                    table[next] = 0;
+                    pos = next;
+                }
+            }
+
+            paths[entry] = null;
+            keys[entry] = null;
+        }
+
+        private synchronized int size() {
+            return size;
+        }
+    }
+}
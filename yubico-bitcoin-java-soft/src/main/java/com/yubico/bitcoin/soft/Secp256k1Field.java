@@ -0,0 +1,389 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.soft;
+
+/**
+ * Arithmetic modulo the secp256k1 field prime p = 2^256 - 2^32 - 977, on fixed size limbs instead of BigInteger.
+ * <p/>
+ * A field element is an int[10] holding the value in base 2^26, least significant limb first. Every operation writes
+ * its result into an array given by the caller (which may be one of the inputs), so no garbage is created. Results
+ * are only weakly reduced: each limb is below 2^26 (the top limb below 2^23), but the value may exceed p. Use
+ * normalize before comparing or encoding an element.
+ * <p/>
+ * None of the operations are constant time.
+ */
+final class Secp256k1Field {
+    static final int LIMBS = 10;
+
+    private static final long M26 = 0x3ffffff;
+    private static final long M22 = 0x3fffff;
+
+    //The limbs of 4p, added when subtracting so that no limb goes negative.
+    private static final long P4_0 = 0x3fffc2fL << 2;
+    private static final long P4_1 = 0x3ffffbfL << 2;
+    private static final long P4_MID = M26 << 2;
+    private static final long P4_9 = M22 << 2;
+
+    private Secp256k1Field() {
+    }
+
+    static int[] create() {
+        return new int[LIMBS];
+    }
+
+    static int[] fromInt(int value) {
+        int[] r = create();
+        r[0] = value;
+        return r;
+    }
+
+    static void set(int[] r, int[] a) {
+        System.arraycopy(a, 0, r, 0, LIMBS);
+    }
+
+    /**
+     * Reads a 32 byte big-endian value, which must be less than p.
+     */
+    static void fromBytes(int[] r, byte[] bytes, int offset) {
+        long acc = 0;
+        int bits = 0;
+        int limb = 0;
+        for (int i = offset + 31; i >= offset; i--) {
+            acc |= (long) (bytes[i] & 0xff) << bits;
+            bits += 8;
+            if (bits >= 26) {
+                r[limb++] = (int) (acc & M26);
+                acc >>>= 26;
+                bits -= 26;
+            }
+        }
+        r[limb] = (int) acc;
+    }
+
+    /**
+     * Writes a as 32 big-endian bytes. This normalizes a, which doesn't change its value.
+     */
+    static void toBytes(int[] a, byte[] bytes, int offset) {
+        int[] n = a;
+        normalize(n);
+        long acc = 0;
+        int bits = 0;
+        int limb = 0;
+        for (int i = offset + 31; i >= offset; i--) {
+            if (bits < 8) {
+                acc |= (long) n[limb++] << bits;
+                bits += 26;
+            }
+            bytes[i] = (byte) acc;
+            acc >>>= 8;
+            bits -= 8;
+        }
+    }
+
+    /**
+     * Fully reduces r, so that its value is less than p.
+     */
+    static void normalize(int[] r) {
+        reduce(r, r[0], r[1], r[2], r[3], r[4], r[5], r[6], r[7], r[8], r[9], 0);
+        //The value is now below 2^256 + 2^32, so at most one p needs to be subtracted. Adding 2^256 - p instead
+        //overflows 2^256 exactly when the value is at least p.
+        long t0 = r[0] + 0x3d1L;
+        long t1 = r[1] + (1L << 6) + (t0 >>> 26);
+        long t2 = r[2] + (t1 >>> 26);
+        long t3 = r[3] + (t2 >>> 26);
+        long t4 = r[4] + (t3 >>> 26);
+        long t5 = r[5] + (t4 >>> 26);
+        long t6 = r[6] + (t5 >>> 26);
+        long t7 = r[7] + (t6 >>> 26);
+        long t8 = r[8] + (t7 >>> 26);
+        long t9 = r[9] + (t8 >>> 26);
+        if ((t9 >>> 22) != 0) {
+            r[0] = (int) (t0 & M26);
+            r[1] = (int) (t1 & M26);
+            r[2] = (int) (t2 & M26);
+            r[3] = (int) (t3 & M26);
+            r[4] = (int) (t4 & M26);
+            r[5] = (int) (t5 & M26);
+            r[6] = (int) (t6 & M26);
+            r[7] = (int) (t7 & M26);
+            r[8] = (int) (t8 & M26);
+            r[9] = (int) (t9 & M22);
+        }
+    }
+
+    /**
+     * Checks if a is zero. This normalizes a, which doesn't change its value.
+     */
+    static boolean isZero(int[] a) {
+        normalize(a);
+        int bits = 0;
+        for (int limb : a) {
+            bits |= limb;
+        }
+        return bits == 0;
+    }
+
+    /**
+     * Carries the given limbs, where t10 holds any part of the value from 2^260 upwards, into r.
+     * Each input limb must be below 2^42.
+     */
+    private static void reduce(int[] r, long t0, long t1, long t2, long t3, long t4, long t5, long t6, long t7, long t8, long t9, long t10) {
+        t1 += t0 >>> 26;
+        t0 &= M26;
+        t2 += t1 >>> 26;
+        t1 &= M26;
+        t3 += t2 >>> 26;
+        t2 &= M26;
+        t4 += t3 >>> 26;
+        t3 &= M26;
+        t5 += t4 >>> 26;
+        t4 &= M26;
+        t6 += t5 >>> 26;
+        t5 &= M26;
+        t7 += t6 >>> 26;
+        t6 &= M26;
+        t8 += t7 >>> 26;
+        t7 &= M26;
+        t9 += t8 >>> 26;
+        t8 &= M26;
+
+        //Everything from 2^256 upwards is folded back in, as 2^256 = 0x1000003d1 (mod p).
+        long c = (t9 >>> 22) + (t10 << 4);
+        t9 &= M22;
+        t0 += c * 0x3d1;
+        t1 += c << 6;
+
+        t1 += t0 >>> 26;
+        t0 &= M26;
+        t2 += t1 >>> 26;
+        t1 &= M26;
+        t3 += t2 >>> 26;
+        t2 &= M26;
+        t4 += t3 >>> 26;
+        t3 &= M26;
+        t5 += t4 >>> 26;
+        t4 &= M26;
+        t6 += t5 >>> 26;
+        t5 &= M26;
+        t7 += t6 >>> 26;
+        t6 &= M26;
+        t8 += t7 >>> 26;
+        t7 &= M26;
+        t9 += t8 >>> 26;
+        t8 &= M26;
+
+        c = t9 >>> 22;
+        t9 &= M22;
+        t0 += c * 0x3d1;
+        t1 += (c << 6) + (t0 >>> 26);
+        t0 &= M26;
+        t2 += t1 >>> 26;
+        t1 &= M26;
+
+        //Only a value that was all ones could carry any further, leaving the top limb at most 2^22.
+        t3 += t2 >>> 26;
+        t2 &= M26;
+        t4 += t3 >>> 26;
+        t3 &= M26;
+        t5 += t4 >>> 26;
+        t4 &= M26;
+        t6 += t5 >>> 26;
+        t5 &= M26;
+        t7 += t6 >>> 26;
+        t6 &= M26;
+        t8 += t7 >>> 26;
+        t7 &= M26;
+        t9 += t8 >>> 26;
+        t8 &= M26;
+
+        r[0] = (int) t0;
+        r[1] = (int) t1;
+        r[2] = (int) t2;
+        r[3] = (int) t3;
+        r[4] = (int) t4;
+        r[5] = (int) t5;
+        r[6] = (int) t6;
+        r[7] = (int) t7;
+        r[8] = (int) t8;
+        r[9] = (int) t9;
+    }
+
+    static void add(int[] r, int[] a, int[] b) {
+        reduce(r, (long) a[0] + b[0], (long) a[1] + b[1], (long) a[2] + b[2], (long) a[3] + b[3], (long) a[4] + b[4],
+                (long) a[5] + b[5], (long) a[6] + b[6], (long) a[7] + b[7], (long) a[8] + b[8], (long) a[9] + b[9], 0);
+    }
+
+    static void sub(int[] r, int[] a, int[] b) {
+        reduce(r, a[0] + P4_0 - b[0], a[1] + P4_1 - b[1], a[2] + P4_MID - b[2], a[3] + P4_MID - b[3],
+                a[4] + P4_MID - b[4], a[5] + P4_MID - b[5], a[6] + P4_MID - b[6], a[7] + P4_MID - b[7],
+                a[8] + P4_MID - b[8], a[9] + P4_9 - b[9], 0);
+    }
+
+    static void negate(int[] r, int[] a) {
+        reduce(r, P4_0 - a[0], P4_1 - a[1], P4_MID - a[2], P4_MID - a[3], P4_MID - a[4], P4_MID - a[5], P4_MID - a[6],
+                P4_MID - a[7], P4_MID - a[8], P4_9 - a[9], 0);
+    }
+
+    /**
+     * Multiplies by a small constant, which must be below 2^16.
+     */
+    static void mul(int[] r, int[] a, int k) {
+        reduce(r, (long) a[0] * k, (long) a[1] * k, (long) a[2] * k, (long) a[3] * k, (long) a[4] * k,
+                (long) a[5] * k, (long) a[6] * k, (long) a[7] * k, (long) a[8] * k, (long) a[9] * k, 0);
+    }
+
+    static void mul(int[] r, int[] a, int[] b) {
+        long a0 = a[0], a1 = a[1], a2 = a[2], a3 = a[3], a4 = a[4];
+        long a5 = a[5], a6 = a[6], a7 = a[7], a8 = a[8], a9 = a[9];
+        long b0 = b[0], b1 = b[1], b2 = b[2], b3 = b[3], b4 = b[4];
+        long b5 = b[5], b6 = b[6], b7 = b[7], b8 = b[8], b9 = b[9];
+        long t0 = a0 * b0;
+        long t1 = a0 * b1 + a1 * b0;
+        long t2 = a0 * b2 + a1 * b1 + a2 * b0;
+        long t3 = a0 * b3 + a1 * b2 + a2 * b1 + a3 * b0;
+        long t4 = a0 * b4 + a1 * b3 + a2 * b2 + a3 * b1 + a4 * b0;
+        long t5 = a0 * b5 + a1 * b4 + a2 * b3 + a3 * b2 + a4 * b1 + a5 * b0;
+        long t6 = a0 * b6 + a1 * b5 + a2 * b4 + a3 * b3 + a4 * b2 + a5 * b1 + a6 * b0;
+        long t7 = a0 * b7 + a1 * b6 + a2 * b5 + a3 * b4 + a4 * b3 + a5 * b2 + a6 * b1 + a7 * b0;
+        long t8 = a0 * b8 + a1 * b7 + a2 * b6 + a3 * b5 + a4 * b4 + a5 * b3 + a6 * b2 + a7 * b1 + a8 * b0;
+        long t9 = a0 * b9 + a1 * b8 + a2 * b7 + a3 * b6 + a4 * b5 + a5 * b4 + a6 * b3 + a7 * b2 + a8 * b1 + a9 * b0;
+        long t10 = a1 * b9 + a2 * b8 + a3 * b7 + a4 * b6 + a5 * b5 + a6 * b4 + a7 * b3 + a8 * b2 + a9 * b1;
+        long t11 = a2 * b9 + a3 * b8 + a4 * b7 + a5 * b6 + a6 * b5 + a7 * b4 + a8 * b3 + a9 * b2;
+        long t12 = a3 * b9 + a4 * b8 + a5 * b7 + a6 * b6 + a7 * b5 + a8 * b4 + a9 * b3;
+        long t13 = a4 * b9 + a5 * b8 + a6 * b7 + a7 * b6 + a8 * b5 + a9 * b4;
+        long t14 = a5 * b9 + a6 * b8 + a7 * b7 + a8 * b6 + a9 * b5;
+        long t15 = a6 * b9 + a7 * b8 + a8 * b7 + a9 * b6;
+        long t16 = a7 * b9 + a8 * b8 + a9 * b7;
+        long t17 = a8 * b9 + a9 * b8;
+        long t18 = a9 * b9;
+        long t19;
+
+        //Carry into 26 bit limbs, so that the upper half can be folded down without overflowing.
+        t1 += t0 >>> 26;
+        t0 &= M26;
+        t2 += t1 >>> 26;
+        t1 &= M26;
+        t3 += t2 >>> 26;
+        t2 &= M26;
+        t4 += t3 >>> 26;
+        t3 &= M26;
+        t5 += t4 >>> 26;
+        t4 &= M26;
+        t6 += t5 >>> 26;
+        t5 &= M26;
+        t7 += t6 >>> 26;
+        t6 &= M26;
+        t8 += t7 >>> 26;
+        t7 &= M26;
+        t9 += t8 >>> 26;
+        t8 &= M26;
+        t10 += t9 >>> 26;
+        t9 &= M26;
+        t11 += t10 >>> 26;
+        t10 &= M26;
+        t12 += t11 >>> 26;
+        t11 &= M26;
+        t13 += t12 >>> 26;
+        t12 &= M26;
+        t14 += t13 >>> 26;
+        t13 &= M26;
+        t15 += t14 >>> 26;
+        t14 &= M26;
+        t16 += t15 >>> 26;
+        t15 &= M26;
+        t17 += t16 >>> 26;
+        t16 &= M26;
+        t18 += t17 >>> 26;
+        t17 &= M26;
+        t19 = t18 >>> 26;
+        t18 &= M26;
+
+        //2^260 = 0x1000003d10 (mod p), which is 2^36 + 0x3d10, and 2^36 is 2^10 in the next limb.
+        long r0 = t0 + t10 * 0x3d10;
+        long r1 = t1 + t11 * 0x3d10 + (t10 << 10);
+        long r2 = t2 + t12 * 0x3d10 + (t11 << 10);
+        long r3 = t3 + t13 * 0x3d10 + (t12 << 10);
+        long r4 = t4 + t14 * 0x3d10 + (t13 << 10);
+        long r5 = t5 + t15 * 0x3d10 + (t14 << 10);
+        long r6 = t6 + t16 * 0x3d10 + (t15 << 10);
+        long r7 = t7 + t17 * 0x3d10 + (t16 << 10);
+        long r8 = t8 + t18 * 0x3d10 + (t17 << 10);
+        long r9 = t9 + t19 * 0x3d10 + (t18 << 10);
+        reduce(r, r0, r1, r2, r3, r4, r5, r6, r7, r8, r9, t19 << 10);
+    }
+
+    static void sqr(int[] r, int[] a) {
+        mul(r, a, a);
+    }
+
+    private static void sqr(int[] r, int[] a, int times) {
+        sqr(r, a);
+        for (int i = 1; i < times; i++) {
+            sqr(r, r);
+        }
+    }
+
+    /**
+     * Computes the inverse of a non-zero element as a^(p - 2), using the addition chain of libsecp256k1.
+     */
+    static void inv(int[] r, int[] a) {
+        int[] x2 = create();
+        int[] x3 = create();
+        int[] x6 = create();
+        int[] x9 = create();
+        int[] x11 = create();
+        int[] x22 = create();
+        int[] x44 = create();
+        int[] x88 = create();
+        int[] x176 = create();
+        int[] x220 = create();
+        int[] x223 = create();
+        int[] t = create();
+
+        sqr(x2, a);
+        mul(x2, x2, a);
+        sqr(x3, x2);
+        mul(x3, x3, a);
+        sqr(x6, x3, 3);
+        mul(x6, x6, x3);
+        sqr(x9, x6, 3);
+        mul(x9, x9, x3);
+        sqr(x11, x9, 2);
+        mul(x11, x11, x2);
+        sqr(x22, x11, 11);
+        mul(x22, x22, x11);
+        sqr(x44, x22, 22);
+        mul(x44, x44, x22);
+        sqr(x88, x44, 44);
+        mul(x88, x88, x44);
+        sqr(x176, x88, 88);
+        mul(x176, x176, x88);
+        sqr(x220, x176, 44);
+        mul(x220, x220, x44);
+        sqr(x223, x220, 3);
+        mul(x223, x223, x3);
+
+        sqr(t, x223, 23);
+        mul(t, t, x22);
+        sqr(t, t, 5);
+        mul(t, t, a);
+        sqr(t, t, 3);
+        mul(t, t, x2);
+        sqr(t, t, 2);
+        mul(r, t, a);
+    }
+}
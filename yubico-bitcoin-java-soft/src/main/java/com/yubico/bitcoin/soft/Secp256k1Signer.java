@@ -0,0 +1,411 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.soft;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import static com.yubico.bitcoin.soft.Secp256k1Field.*;
+
+/**
+ * ECDSA signing over secp256k1, for use by YkneoBitcoinSoft.
+ * <p/>
+ * The nonce point is computed from a table of precomputed multiples of the generator, using field arithmetic on fixed
+ * size limbs (see Secp256k1Field). The scalar is split into 64 four bit digits, and digit i selects one of the 15
+ * multiples of 16^i * G, so k * G takes at most 64 point additions and no doublings. Nonces are derived
+ * deterministically from the key and the hash as specified in RFC 6979, and signatures are returned in low S form.
+ * <p/>
+ * This is meant for testing only, like the rest of this module. Table lookups and field operations depend on secret
+ * values, so it is not protected against timing or other side channel attacks.
+ */
+public final class Secp256k1Signer {
+    static final BigInteger N = new BigInteger("fffffffffffffffffffffffffffffffebaaedce6af48a03bbfd25e8cd0364141", 16);
+    private static final BigInteger HALF_N = N.shiftRight(1);
+
+    private static final int WINDOWS = 64;
+    private static final int MULTIPLES = 15;
+    private static final int POINT_SIZE = 2 * LIMBS;
+
+    /**
+     * The affine x and y of d * 16^i * G, for each window i and digit d from 1 to 15.
+     */
+    private static final int[] G_TABLE = precomputeG();
+
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private Secp256k1Signer() {
+    }
+
+    private static int[] precomputeG() {
+        byte[] encoded = new byte[32];
+        int[] baseX = create();
+        int[] baseY = create();
+        fromBytes(baseX, hex("79be667ef9dcbbac55a06295ce870b07029bfcdb2dce28d959f2815b16f81798", encoded), 0);
+        fromBytes(baseY, hex("483ada7726a3c4655da4fbfc0e1108a8fd17b448a68554199c47d08ffb10d4b8", encoded), 0);
+
+        Scratch scratch = new Scratch();
+        int[] table = new int[WINDOWS * MULTIPLES * POINT_SIZE];
+        int[][] points = new int[3 * (MULTIPLES + 1)][];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = create();
+        }
+        for (int window = 0; window < WINDOWS; window++) {
+            //Multiples 1 through 16 of the base in Jacobian coordinates, the 16th being the base of the next window.
+            set(points[0], baseX);
+            set(points[1], baseY);
+            set(points[2], fromInt(1));
+            for (int d = 1; d <= MULTIPLES; d++) {
+                int[] x = points[3 * d];
+                int[] y = points[3 * d + 1];
+                int[] z = points[3 * d + 2];
+                set(x, points[3 * d - 3]);
+                set(y, points[3 * d - 2]);
+                set(z, points[3 * d - 1]);
+                addAffine(x, y, z, baseX, baseY, scratch);
+            }
+            int[][] zs = new int[MULTIPLES + 1][];
+            for (int d = 0; d <= MULTIPLES; d++) {
+                zs[d] = points[3 * d + 2];
+            }
+            batchInvert(zs, zs.length);
+            for (int d = 0; d <= MULTIPLES; d++) {
+                toAffine(points[3 * d], points[3 * d + 1], zs[d]);
+            }
+            for (int d = 0; d < MULTIPLES; d++) {
+                int offset = (window * MULTIPLES + d) * POINT_SIZE;
+                System.arraycopy(points[3 * d], 0, table, offset, LIMBS);
+                System.arraycopy(points[3 * d + 1], 0, table, offset + LIMBS, LIMBS);
+            }
+            set(baseX, points[3 * MULTIPLES]);
+            set(baseY, points[3 * MULTIPLES + 1]);
+        }
+        return table;
+    }
+
+    private static byte[] hex(String hex, byte[] out) {
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return out;
+    }
+
+    /**
+     * Replaces each of the first count given non-zero field elements by its inverse, using a single field inversion
+     * (Montgomery's trick).
+     */
+    static void batchInvert(int[][] elements, int count) {
+        int[][] products = new int[count][];
+        int[] acc = fromInt(1);
+        for (int i = 0; i < count; i++) {
+            products[i] = acc.clone();
+            mul(acc, acc, elements[i]);
+        }
+        inv(acc, acc);
+        int[] t = create();
+        for (int i = count - 1; i >= 0; i--) {
+            mul(t, acc, products[i]);
+            mul(acc, acc, elements[i]);
+            set(elements[i], t);
+        }
+    }
+
+    /**
+     * Converts a Jacobian point to affine coordinates in place, given the inverse of Z.
+     */
+    static void toAffine(int[] x, int[] y, int[] zInv) {
+        int[] zInv2 = create();
+        sqr(zInv2, zInv);
+        mul(x, x, zInv2);
+        mul(zInv2, zInv2, zInv);
+        mul(y, y, zInv2);
+    }
+
+    /**
+     * Temporaries for the point operations, so that they don't allocate. Each thread uses its own.
+     */
+    static final class Scratch {
+        private final int[] a = create();
+        private final int[] b = create();
+        private final int[] c = create();
+        private final int[] d = create();
+        private final int[] e = create();
+        private final int[] px = create();
+        private final int[] py = create();
+        private final byte[] bytes = new byte[32];
+        private Mac hmac;
+
+        private Mac getHmac() {
+            if (hmac == null) {
+                try {
+                    hmac = Mac.getInstance("HmacSHA256");
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException("HmacSHA256 is not available", e);
+                }
+            }
+            return hmac;
+        }
+    }
+
+    static Scratch scratch() {
+        return SCRATCH.get();
+    }
+
+    /**
+     * Doubles a Jacobian point in place.
+     */
+    static void twice(int[] x, int[] y, int[] z, Scratch scratch) {
+        int[] a = scratch.a;
+        int[] b = scratch.b;
+        int[] c = scratch.c;
+        int[] d = scratch.d;
+        sqr(a, x);
+        sqr(b, y);
+        sqr(c, b);
+        add(d, x, b);
+        sqr(d, d);
+        sub(d, d, a);
+        sub(d, d, c);
+        mul(d, d, 2);
+        mul(a, a, 3);
+        mul(z, z, y);
+        mul(z, z, 2);
+        sqr(x, a);
+        sub(x, x, d);
+        sub(x, x, d);
+        sub(y, d, x);
+        mul(y, y, a);
+        mul(c, c, 8);
+        sub(y, y, c);
+    }
+
+    /**
+     * Adds an affine point to a Jacobian point in place. The Jacobian point must not be the point at infinity.
+     *
+     * @return False if the result is the point at infinity, in which case the coordinates are undefined.
+     */
+    static boolean addAffine(int[] x, int[] y, int[] z, int[] x2, int[] y2, Scratch scratch) {
+        int[] z1z1 = scratch.a;
+        int[] u2 = scratch.b;
+        int[] s2 = scratch.c;
+        sqr(z1z1, z);
+        mul(u2, x2, z1z1);
+        mul(s2, y2, z);
+        mul(s2, s2, z1z1);
+        int[] h = u2;
+        sub(h, u2, x);
+        int[] r = s2;
+        sub(r, s2, y);
+        if (isZero(h)) {
+            if (isZero(r)) {
+                twice(x, y, z, scratch);
+                return true;
+            }
+            return false;
+        }
+        int[] hh = z1z1;
+        sqr(hh, h);
+        int[] v = scratch.e;
+        mul(v, x, hh);
+        int[] hhh = hh;
+        mul(hhh, hh, h);
+        mul(z, z, h);
+        sqr(x, r);
+        sub(x, x, hhh);
+        sub(x, x, v);
+        sub(x, x, v);
+        mul(y, y, hhh);
+        sub(v, v, x);
+        mul(v, v, r);
+        sub(y, v, y);
+        return true;
+    }
+
+    /**
+     * Multiplies the generator by a scalar, given as 32 big-endian bytes.
+     *
+     * @return False if the result is the point at infinity, otherwise the result is left in x, y and z as a Jacobian
+     * point.
+     */
+    static boolean multiplyG(byte[] k, int[] x, int[] y, int[] z, Scratch scratch) {
+        int[] px = scratch.px;
+        int[] py = scratch.py;
+        boolean infinity = true;
+        for (int window = 0; window < WINDOWS; window++) {
+            int b = k[31 - window / 2] & 0xff;
+            int digit = (window & 1) == 0 ? b & 0x0f : b >>> 4;
+            if (digit == 0) {
+                continue;
+            }
+            int offset = (window * MULTIPLES + digit - 1) * POINT_SIZE;
+            System.arraycopy(G_TABLE, offset, px, 0, LIMBS);
+            System.arraycopy(G_TABLE, offset + LIMBS, py, 0, LIMBS);
+            if (infinity) {
+                set(x, px);
+                set(y, py);
+                Arrays.fill(z, 0);
+                z[0] = 1;
+                infinity = false;
+            } else {
+                infinity = !addAffine(x, y, z, px, py, scratch);
+            }
+        }
+        return !infinity;
+    }
+
+    static byte[] toBytes32(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        byte[] fixed = new byte[32];
+        int length = Math.min(bytes.length, 32);
+        System.arraycopy(bytes, bytes.length - length, fixed, 32 - length, length);
+        return fixed;
+    }
+
+    /**
+     * Signs a 32 byte hash.
+     *
+     * @param privateKey The private key, between 1 and n - 1.
+     * @param hash       The hash to sign.
+     * @return The DER encoded signature, with S in the lower half of the group order.
+     */
+    public static byte[] sign(BigInteger privateKey, byte[] hash) {
+        if (privateKey.signum() <= 0 || privateKey.compareTo(N) >= 0) {
+            throw new IllegalArgumentException("Invalid private key");
+        }
+        if (hash.length != 32) {
+            throw new IllegalArgumentException("Hash must be 32 bytes!");
+        }
+        BigInteger z = new BigInteger(1, hash);
+        Scratch scratch = scratch();
+        Nonces nonces = new Nonces(scratch.getHmac(), toBytes32(privateKey), toBytes32(z.mod(N)));
+
+        int[] x = create();
+        int[] y = create();
+        int[] zz = create();
+        byte[] rBytes = scratch.bytes;
+        while (true) {
+            byte[] k = nonces.next();
+            if (!multiplyG(k, x, y, zz, scratch)) {
+                continue;
+            }
+            inv(zz, zz);
+            sqr(zz, zz);
+            mul(x, x, zz);
+            Secp256k1Field.toBytes(x, rBytes, 0);
+            BigInteger r = new BigInteger(1, rBytes).mod(N);
+            if (r.signum() == 0) {
+                continue;
+            }
+            BigInteger s = new BigInteger(1, k).modInverse(N).multiply(z.add(r.multiply(privateKey))).mod(N);
+            if (s.signum() == 0) {
+                continue;
+            }
+            if (s.compareTo(HALF_N) > 0) {
+                s = N.subtract(s);
+            }
+            return encodeDER(r, s);
+        }
+    }
+
+    static byte[] encodeDER(BigInteger r, BigInteger s) {
+        //toByteArray gives the minimal two's complement encoding, which is exactly what DER requires.
+        byte[] rBytes = r.toByteArray();
+        byte[] sBytes = s.toByteArray();
+        byte[] der = new byte[6 + rBytes.length + sBytes.length];
+        der[0] = 0x30;
+        der[1] = (byte) (4 + rBytes.length + sBytes.length);
+        der[2] = 0x02;
+        der[3] = (byte) rBytes.length;
+        System.arraycopy(rBytes, 0, der, 4, rBytes.length);
+        der[4 + rBytes.length] = 0x02;
+        der[5 + rBytes.length] = (byte) sBytes.length;
+        System.arraycopy(sBytes, 0, der, 6 + rBytes.length, sBytes.length);
+        return der;
+    }
+
+    /**
+     * The HMAC-DRBG of RFC 6979 section 3.2, using HMAC-SHA256 and a 256 bit group order.
+     */
+    private static class Nonces {
+        private final Mac hmac;
+        private final byte[] v = new byte[32];
+        private byte[] k = new byte[32];
+        private boolean first = true;
+
+        private Nonces(Mac hmac, byte[] privateKey, byte[] hash) {
+            this.hmac = hmac;
+            Arrays.fill(v, (byte) 0x01);
+            update((byte) 0x00, privateKey, hash);
+            update((byte) 0x01, privateKey, hash);
+        }
+
+        private void update(byte separator, byte[] privateKey, byte[] hash) {
+            init(k);
+            hmac.update(v);
+            hmac.update(separator);
+            if (privateKey != null) {
+                hmac.update(privateKey);
+                hmac.update(hash);
+            }
+            k = hmac.doFinal();
+            init(k);
+            hmac.update(v);
+            doFinal(v);
+        }
+
+        private void init(byte[] key) {
+            try {
+                hmac.init(new SecretKeySpec(key, "HmacSHA256"));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void doFinal(byte[] out) {
+            try {
+                hmac.doFinal(out, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return The next candidate nonce, between 1 and n - 1, as 32 big-endian bytes.
+         */
+        private byte[] next() {
+            while (true) {
+                if (!first) {
+                    update((byte) 0x00, null, null);
+                }
+                first = false;
+                hmac.update(v);
+                doFinal(v);
+                BigInteger candidate = new BigInteger(1, v);
+                if (candidate.signum() > 0 && candidate.compareTo(N) < 0) {
+                    return v.clone();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.soft;
+
+import com.yubico.bitcoin.api.*;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.*;
+
+/**
+ * A fleet of lightweight software tokens in a single object, for load testing with thousands of simulated devices.
+ * Like YkneoBitcoinSoft, this is meant to be used for testing purposes only!
+ * <p/>
+ * Each token behaves like a YkneoBitcoinSoft, but instead of holding its own key objects, random generator and key
+ * cache, its state is kept in a few arrays shared by the whole farm: the master key (chain code, private key and
+ * compressed public key) in one packed byte array, and the PIN retry counters and flags in another, about 110 bytes
+ * per token in all. PINs that have never been changed are not stored. Keys are derived on demand using the shared
+ * curve tables of Secp256k1Signer, and derived keys are not cached.
+ * <p/>
+ * Tokens are reached through {@link #get(int)}, which returns a YkneoBitcoin view of the token. To put a latency model
+ * in front of a token, talk to it through its emulator, for example:
+ * new YkneoBitcoinClient(SimulatedApduTransport.usb(farm.getEmulator(i), i))
+ * <p/>
+ * This class is thread safe. The state of each token is updated under one of a fixed number of locks, while keys are
+ * derived and hashes signed without holding any lock.
+ */
+public class SoftTokenFarm {
+    private static final String VERSION = "0.1.0";
+    private static final String DEFAULT_USER_PIN = "000000";
+    private static final String DEFAULT_ADMIN_PIN = "00000000";
+    private static final int DEFAULT_PIN_TRIES = 6;
+    private static final int LOCK_STRIPES = 64;
+
+    //Extended key header: version(4) | depth(1) | parent fingerprint(4) | child number(4)
+    private static final int HEADER_LENGTH = 13;
+    private static final byte[] PRIVATE_HEADER = new byte[]{0x04, (byte) 0x88, (byte) 0xad, (byte) 0xe4, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+    private static final byte[] PUBLIC_VERSION = new byte[]{0x04, (byte) 0x88, (byte) 0xb2, 0x1e};
+
+    private static final int FLAG_KEY_LOADED = 1;
+    private static final int FLAG_ALLOW_EXPORT = 2;
+    private static final int FLAG_USER_UNLOCKED = 4;
+    private static final int FLAG_ADMIN_UNLOCKED = 8;
+
+    //Counters: user retries(1) | user tries(1) | admin retries(1) | admin tries(1)
+    private static final int COUNTERS = 4;
+
+    private final int size;
+    private final byte[] keys;
+    private final byte[] headers;
+    private final byte[] flags;
+    private final byte[] counters;
+    private final String[] userPins;
+    private final String[] adminPins;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Creates a farm of tokens with the default PINs and no key loaded.
+     *
+     * @param size The number of tokens.
+     */
+    public SoftTokenFarm(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException(String.format("Size must be positive, was: %d", size));
+        }
+        this.size = size;
+        keys = new byte[size * BatchKeyDerivation.KEY_LENGTH];
+        headers = new byte[size * HEADER_LENGTH];
+        flags = new byte[size];
+        counters = new byte[size * COUNTERS];
+        Arrays.fill(counters, (byte) DEFAULT_PIN_TRIES);
+        userPins = new String[size];
+        adminPins = new String[size];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void checkIndex(int token) {
+        if (token < 0 || token >= size) {
+            throw new IllegalArgumentException(String.format("Invalid token index: %d", token));
+        }
+    }
+
+    /**
+     * Gets a token. The returned object holds no state of its own, so calling this again for the same index gives
+     * another view of the same token.
+     *
+     * @param token The index of the token, from 0 to size() - 1.
+     */
+    public YkneoBitcoin get(int token) {
+        checkIndex(token);
+        return new Token(token);
+    }
+
+    /**
+     * Gets an emulator executing APDUs on a token, which can be wrapped in a transport that adds latency or faults.
+     * Each call returns a new emulator, as if the token was plugged in again.
+     *
+     * @param token The index of the token, from 0 to size() - 1.
+     */
+    public YkneoBitcoinEmulator getEmulator(int token) {
+        return new YkneoBitcoinEmulator(get(token));
+    }
+
+    /**
+     * Loads every token with a master key pair derived from a common seed, without going through the admin PIN. The
+     * key pair of token i is the BIP 32 master key for the seed followed by i as 4 big-endian bytes, so the same seed
+     * always gives the same fleet.
+     *
+     * @param seed        The seed of the fleet.
+     * @param allowExport Whether the extended public keys of the tokens can be exported.
+     */
+    public void generateMasterKeys(byte[] seed, boolean allowExport) {
+        byte[] tokenSeed = Arrays.copyOf(seed, seed.length + 4);
+        for (int token = 0; token < size; token++) {
+            tokenSeed[seed.length] = (byte) (token >>> 24);
+            tokenSeed[seed.length + 1] = (byte) (token >>> 16);
+            tokenSeed[seed.length + 2] = (byte) (token >>> 8);
+            tokenSeed[seed.length + 3] = (byte) token;
+            setKey(token, PRIVATE_HEADER, BatchKeyDerivation.masterKey(tokenSeed), allowExport);
+        }
+    }
+
+    private Object lock(int token) {
+        return locks[token & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * @param header The 13 byte header of the extended private key, which is kept for getHeader and export.
+     */
+    private void setKey(int token, byte[] header, byte[] key, boolean allowExport) {
+        synchronized (lock(token)) {
+            System.arraycopy(header, 0, headers, token * HEADER_LENGTH, HEADER_LENGTH);
+            System.arraycopy(key, 0, keys, token * BatchKeyDerivation.KEY_LENGTH, BatchKeyDerivation.KEY_LENGTH);
+            flags[token] = (byte) ((flags[token] & ~FLAG_ALLOW_EXPORT) | FLAG_KEY_LOADED | (allowExport ? FLAG_ALLOW_EXPORT : 0));
+        }
+    }
+
+    private static void encodeExtendedKey(byte[] header, byte[] key, boolean includePrivate, byte[] out) {
+        System.arraycopy(header, 0, out, 0, HEADER_LENGTH);
+        System.arraycopy(key, 0, out, 13, 32);
+        if (includePrivate) {
+            out[45] = 0;
+            System.arraycopy(key, BatchKeyDerivation.KEY_PRIVATE, out, 46, 32);
+        } else {
+            System.arraycopy(key, BatchKeyDerivation.KEY_PUBLIC, out, 45, 33);
+        }
+    }
+
+    /**
+     * A view of a single token in the farm.
+     */
+    private class Token implements YkneoBitcoin {
+        private final int token;
+
+        private Token(int token) {
+            this.token = token;
+        }
+
+        private int pinFlag(PinMode mode) {
+            return mode == PinMode.USER ? FLAG_USER_UNLOCKED : FLAG_ADMIN_UNLOCKED;
+        }
+
+        private int counterOffset(PinMode mode) {
+            return token * COUNTERS + (mode == PinMode.USER ? 0 : 2);
+        }
+
+        private String getPin(PinMode mode) {
+            String pin = mode == PinMode.USER ? userPins[token] : adminPins[token];
+            if (pin == null) {
+                return mode == PinMode.USER ? DEFAULT_USER_PIN : DEFAULT_ADMIN_PIN;
+            }
+            return pin;
+        }
+
+        private void setPin(PinMode mode, String pin) {
+            if (mode == PinMode.USER) {
+                userPins[token] = pin;
+            } else {
+                adminPins[token] = pin;
+            }
+        }
+
+        /**
+         * Verifies a PIN, and if it's correct unlocks the mode and optionally changes the PIN.
+         */
+        private void verify(PinMode mode, String pin, String newPin) throws IncorrectPINException {
+            int offset = counterOffset(mode);
+            synchronized (lock(token)) {
+                if (getPin(mode).equals(pin)) {
+                    if (newPin != null) {
+                        setPin(mode, newPin);
+                    }
+                    counters[offset + 1] = counters[offset];
+                    flags[token] |= pinFlag(mode);
+                    return;
+                }
+                int tries = Math.max((counters[offset + 1] & 0xff) - 1, 0);
+                counters[offset + 1] = (byte) tries;
+                flags[token] &= ~pinFlag(mode);
+                throw new IncorrectPINException(mode, tries);
+            }
+        }
+
+        private boolean hasFlag(int flag) {
+            synchronized (lock(token)) {
+                return (flags[token] & flag) != 0;
+            }
+        }
+
+        private void ensurePin(PinMode mode) throws PinModeLockedException {
+            if (!hasFlag(pinFlag(mode))) {
+                throw new PinModeLockedException(mode);
+            }
+        }
+
+        /**
+         * @return A copy of the master key.
+         */
+        private byte[] getMaster() throws NoKeyLoadedException {
+            synchronized (lock(token)) {
+                if ((flags[token] & FLAG_KEY_LOADED) == 0) {
+                    throw new NoKeyLoadedException();
+                }
+                int offset = token * BatchKeyDerivation.KEY_LENGTH;
+                return Arrays.copyOfRange(keys, offset, offset + BatchKeyDerivation.KEY_LENGTH);
+            }
+        }
+
+        /**
+         * @return A copy of the header of the master key.
+         */
+        private byte[] getMasterHeader() throws NoKeyLoadedException {
+            synchronized (lock(token)) {
+                if ((flags[token] & FLAG_KEY_LOADED) == 0) {
+                    throw new NoKeyLoadedException();
+                }
+                return Arrays.copyOfRange(headers, token * HEADER_LENGTH, (token + 1) * HEADER_LENGTH);
+            }
+        }
+
+        /**
+         * Derives a key from the master key. Public keys are only computed where needed: for the parent of a
+         * non-hardened child, and for the key itself if withPublicKey is set.
+         */
+        private byte[] getKey(int[] index, boolean withPublicKey) throws PinModeLockedException, NoKeyLoadedException, UnusableIndexException {
+            ensurePin(PinMode.USER);
+            byte[] key = getMaster();
+            for (int i = 0; i < index.length; i++) {
+                BatchKeyDerivation.deriveChild(key, index[i]);
+                if (i + 1 < index.length ? (index[i + 1] & 0x80000000) == 0 : withPublicKey) {
+                    BatchKeyDerivation.computePublicKey(key);
+                }
+            }
+            return key;
+        }
+
+        private void setRetryCount(PinMode mode, int attempts) {
+            if (attempts < 0 || attempts > 0xff) {
+                throw new IllegalArgumentException(String.format("Retry count must be between 0 and 255, was: %d", attempts));
+            }
+            int offset = counterOffset(mode);
+            synchronized (lock(token)) {
+                counters[offset] = (byte) attempts;
+                counters[offset + 1] = (byte) attempts;
+            }
+        }
+
+        @Override
+        public String getAppletVersion() {
+            return VERSION;
+        }
+
+        @Override
+        public boolean isKeyLoaded() {
+            return hasFlag(FLAG_KEY_LOADED);
+        }
+
+        @Override
+        public void unlockUser(String pin) throws IncorrectPINException, IOException {
+            verify(PinMode.USER, pin, null);
+        }
+
+        @Override
+        public void unlockAdmin(String pin) throws IncorrectPINException, IOException {
+            verify(PinMode.ADMIN, pin, null);
+        }
+
+        @Override
+        public boolean isUserUnlocked() {
+            return hasFlag(FLAG_USER_UNLOCKED);
+        }
+
+        @Override
+        public boolean isAdminUnlocked() {
+            return hasFlag(FLAG_ADMIN_UNLOCKED);
+        }
+
+        @Override
+        public void setUserPin(String oldPin, String newPin) throws IncorrectPINException, IOException {
+            verify(PinMode.USER, oldPin, newPin);
+        }
+
+        @Override
+        public void setAdminPin(String oldPin, String newPin) throws IncorrectPINException, IOException {
+            verify(PinMode.ADMIN, oldPin, newPin);
+        }
+
+        @Override
+        public void resetUserPin(String newPin) throws PinModeLockedException, IOException {
+            ensurePin(PinMode.ADMIN);
+            int offset = counterOffset(PinMode.USER);
+            synchronized (lock(token)) {
+                setPin(PinMode.USER, newPin);
+                counters[offset + 1] = counters[offset];
+            }
+        }
+
+        @Override
+        public void setAdminRetryCount(int attempts) throws PinModeLockedException, IOException {
+            ensurePin(PinMode.ADMIN);
+            setRetryCount(PinMode.ADMIN, attempts);
+        }
+
+        @Override
+        public void setUserRetryCount(int attempts) throws PinModeLockedException, IOException {
+            ensurePin(PinMode.USER);
+            setRetryCount(PinMode.USER, attempts);
+        }
+
+        @Override
+        public byte[] getHeader() throws PinModeLockedException, IOException, NoKeyLoadedException {
+            ensurePin(PinMode.USER);
+            return getMasterHeader();
+        }
+
+        @Override
+        public byte[] exportExtendedPublicKey() throws PinModeLockedException, IOException, OperationNotPermittedException, NoKeyLoadedException {
+            ensurePin(PinMode.ADMIN);
+            byte[] header;
+            byte[] master;
+            synchronized (lock(token)) {
+                header = getMasterHeader();
+                master = getMaster();
+            }
+            if (!hasFlag(FLAG_ALLOW_EXPORT)) {
+                throw new OperationNotPermittedException();
+            }
+            System.arraycopy(PUBLIC_VERSION, 0, header, 0, PUBLIC_VERSION.length);
+            byte[] extendedPublicKey = new byte[78];
+            encodeExtendedKey(header, master, false, extendedPublicKey);
+            return extendedPublicKey;
+        }
+
+        @Override
+        public byte[] generateMasterKeyPair(boolean allowExport, boolean returnPrivateKey, boolean testnetKey) throws PinModeLockedException, IOException {
+            ensurePin(PinMode.ADMIN);
+            byte[] seed = new byte[32];
+            random.nextBytes(seed);
+            byte[] master = BatchKeyDerivation.masterKey(seed);
+            setKey(token, PRIVATE_HEADER, master, allowExport);
+            if (!returnPrivateKey) {
+                return new byte[0];
+            }
+            byte[] extendedPrivateKey = new byte[78];
+            encodeExtendedKey(PRIVATE_HEADER, master, true, extendedPrivateKey);
+            return extendedPrivateKey;
+        }
+
+        @Override
+        public void importExtendedKeyPair(byte[] extendedPrivateKey, boolean allowExport) throws PinModeLockedException, IOException {
+            ensurePin(PinMode.ADMIN);
+            if (extendedPrivateKey.length != 78) {
+                throw new IllegalArgumentException(String.format("Extended private key must be 78 bytes, was: %d", extendedPrivateKey.length));
+            }
+            if (!Arrays.equals(Arrays.copyOf(extendedPrivateKey, 4), Arrays.copyOf(PRIVATE_HEADER, 4))) {
+                throw new IllegalArgumentException("Not an extended private key");
+            }
+            byte[] master = BatchKeyDerivation.masterKey(Arrays.copyOfRange(extendedPrivateKey, 13, 45), Arrays.copyOfRange(extendedPrivateKey, 46, 78));
+            setKey(token, Arrays.copyOf(extendedPrivateKey, HEADER_LENGTH), master, allowExport);
+        }
+
+        @Override
+        public byte[] getPublicKey(boolean compress, int... index) throws PinModeLockedException, UnusableIndexException, IOException, NoKeyLoadedException {
+            return BatchKeyDerivation.getPublicKey(getKey(index, true), compress);
+        }
+
+        @Override
+        public byte[] getPublicKeys(boolean compress, int[] parentPath, int fromChild, int count) throws PinModeLockedException, UnusableIndexException, IOException, NoKeyLoadedException {
+            if (count < 0) {
+                throw new IllegalArgumentException(String.format("Count must not be negative, was: %d", count));
+            }
+            if (count > 0 && (fromChild & 0x80000000) != ((fromChild + count - 1) & 0x80000000)) {
+                throw new IllegalArgumentException("Child range must not mix hardened and non-hardened children");
+            }
+            byte[] parent = getKey(parentPath, (fromChild & 0x80000000) == 0);
+            return BatchKeyDerivation.derivePublicKeys(parent, fromChild, count, compress);
+        }
+
+        @Override
+        public byte[] sign(byte[] hash, int... index) throws PinModeLockedException, UnusableIndexException, IOException, NoKeyLoadedException {
+            return Secp256k1Signer.sign(BatchKeyDerivation.getPrivateKey(getKey(index, false)), hash);
+        }
+
+        @Override
+        public List<SignResult> signBatch(List<SignRequest> requests) throws PinModeLockedException, IOException {
+            ensurePin(PinMode.USER);
+            return BatchSigner.signBatch(requests, new BatchSigner.KeySource() {
+                @Override
+                public BigInteger getPrivateKey(int[] index) throws PinModeLockedException, NoKeyLoadedException, UnusableIndexException {
+                    return BatchKeyDerivation.getPrivateKey(getKey(index, false));
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,484 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.soft;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.crypto.DeterministicKey;
+import com.google.bitcoin.crypto.HDDerivationException;
+import com.google.bitcoin.crypto.HDKeyDerivation;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * The binary file format used to persist the state of a YkneoBitcoinSoft, both for file backed tokens and for
+ * snapshot images.
+ * <p/>
+ * The file starts with two header slots, each holding a complete copy of the PINs, retry counters, export flag and
+ * master key, protected by a checksum. Updates are written to the slot not currently in use, with a higher sequence
+ * number, so that a write that is interrupted half way leaves the previous state intact. The slots are followed by
+ * the derived keys that were cached when the file was written, each stored with its chain code and key pair so that it
+ * is loaded as is, without being derived again.
+ * <p/>
+ * A file backed token holds an exclusive lock on its file. Snapshot images are only read, and may be shared by any
+ * number of processes.
+ */
+final class SoftTokenFile implements Closeable {
+    private static final int MAGIC = 0x594b5354; //"YKST"
+    private static final int FORMAT_VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final int MAX_PIN_LENGTH = 63;
+    private static final int MAX_DEPTH = 255;
+
+    //Key: chain code(32) | private key(32) | public key x(32) | public key y(32)
+    //Key record: depth(1) | path(4 * depth) | key(KEY_SIZE)
+    private static final int KEY_SIZE = 128;
+
+    //Slot: checksum(4) | sequence(4) | flags(4) | user retries(1) | user tries(1) | admin retries(1) | admin tries(1)
+    //    | user pin(1 + 63) | admin pin(1 + 63) | master key(KEY_SIZE) | key count(4) | keys checksum(4)
+    private static final int SLOT_SIZE = 288;
+    private static final int SLOT_SEQUENCE = 4;
+    private static final int SLOT_FLAGS = 8;
+    private static final int SLOT_RETRIES = 12;
+    private static final int SLOT_USER_PIN = 16;
+    private static final int SLOT_ADMIN_PIN = SLOT_USER_PIN + 1 + MAX_PIN_LENGTH;
+    private static final int SLOT_MASTER = SLOT_ADMIN_PIN + 1 + MAX_PIN_LENGTH;
+    private static final int SLOT_KEY_COUNT = SLOT_MASTER + KEY_SIZE;
+    private static final int SLOT_KEYS_CHECKSUM = SLOT_KEY_COUNT + 4;
+
+    private static final int FLAG_KEY_LOADED = 1;
+    private static final int FLAG_ALLOW_EXPORT = 2;
+
+    //File: magic(4) | version(4) | slot 0(SLOT_SIZE) | slot 1(SLOT_SIZE) | key records
+    private static final int OFFSET_SLOTS = 8;
+    private static final int HEADER_SIZE = OFFSET_SLOTS + 2 * SLOT_SIZE;
+
+    private final RandomAccessFile file;
+    private final FileLock lock;
+    private final MappedByteBuffer buffer;
+    private int currentSlot;
+    private boolean closed = false;
+
+    private SoftTokenFile(RandomAccessFile file, FileLock lock, MappedByteBuffer buffer, int currentSlot) {
+        this.file = file;
+        this.lock = lock;
+        this.buffer = buffer;
+        this.currentSlot = currentSlot;
+    }
+
+    /**
+     * Opens a state file for reading and writing, creating it if it doesn't exist.
+     *
+     * @throws IOException If the file can't be opened, is in use by another process, or is not a valid state file.
+     */
+    static SoftTokenFile open(File stateFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(stateFile, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                throw new IOException(String.format("The soft token state %s is in use by another process", stateFile));
+            }
+
+            int currentSlot = -1;
+            boolean created = file.length() == 0;
+            if (created) {
+                file.setLength(HEADER_SIZE);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            if (created) {
+                //The magic is written along with the first state.
+                buffer.putInt(4, FORMAT_VERSION);
+            } else {
+                currentSlot = readHeader(buffer, stateFile);
+            }
+            return new SoftTokenFile(file, lock, buffer, currentSlot);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a snapshot image.
+     *
+     * @throws IOException If the file can't be read, or is not a valid image.
+     */
+    static State readImage(File image) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(image, "r");
+        try {
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            return readState(buffer, readHeader(buffer, image), image);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Writes a snapshot image, replacing the file if it exists. The image is written to a temporary file first, so
+     * that readers never see a partially written image.
+     */
+    static void writeImage(File image, State state) throws IOException {
+        List<byte[]> records = new ArrayList<byte[]>();
+        int keysLength = 0;
+        for (int i = 0; i < state.paths.size(); i++) {
+            int[] path = state.paths.get(i);
+            if (path.length > MAX_DEPTH) {
+                continue;
+            }
+            ByteBuffer record = ByteBuffer.allocate(1 + 4 * path.length + KEY_SIZE);
+            record.put((byte) path.length);
+            for (int child : path) {
+                record.putInt(child);
+            }
+            putKey(record, state.keys.get(i));
+            records.add(record.array());
+            keysLength += record.capacity();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + keysLength);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, FORMAT_VERSION);
+        buffer.position(HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        for (byte[] record : records) {
+            buffer.put(record);
+            crc.update(record);
+        }
+        writeSlot(buffer, 0, 1, state, records.size(), (int) crc.getValue());
+
+        File temp = new File(image.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(buffer.array());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(image) && !(image.delete() && temp.renameTo(image))) {
+            throw new IOException(String.format("Unable to replace %s", image));
+        }
+    }
+
+    /**
+     * @return The state held in the file, or null if the file was just created.
+     */
+    synchronized State read() throws IOException {
+        return currentSlot == -1 ? null : readState(buffer, currentSlot, null);
+    }
+
+    /**
+     * Replaces the state held in the file. The cached keys of the state are not written, and any keys already in the
+     * file are kept only if the master key is unchanged.
+     */
+    synchronized void write(State state) {
+        if (closed) {
+            return;
+        }
+        int sequence = 1;
+        int keyCount = 0;
+        int keysChecksum = 0;
+        if (currentSlot != -1) {
+            int current = slotOffset(currentSlot);
+            sequence = buffer.getInt(current + SLOT_SEQUENCE) + 1;
+            if (sameMaster(current, state.master)) {
+                keyCount = buffer.getInt(current + SLOT_KEY_COUNT);
+                keysChecksum = buffer.getInt(current + SLOT_KEYS_CHECKSUM);
+            }
+        }
+        int next = currentSlot == 0 ? 1 : 0;
+        writeSlot(buffer, next, sequence, state, keyCount, keysChecksum);
+        buffer.putInt(0, MAGIC);
+        currentSlot = next;
+    }
+
+    private boolean sameMaster(int slot, DeterministicKey master) {
+        if ((buffer.getInt(slot + SLOT_FLAGS) & FLAG_KEY_LOADED) == 0 || master == null) {
+            return false;
+        }
+        byte[] stored = new byte[32];
+        for (int i = 0; i < 32; i++) {
+            stored[i] = buffer.get(slot + SLOT_MASTER + 32 + i);
+        }
+        return new BigInteger(1, stored).equals(master.getPrivAsFieldElement());
+    }
+
+    /**
+     * Writes any changes to disk, and releases the file. Later calls to write are ignored.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        buffer.force();
+        try {
+            lock.release();
+        } finally {
+            file.close();
+        }
+    }
+
+    private static int slotOffset(int slot) {
+        return OFFSET_SLOTS + slot * SLOT_SIZE;
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Checks the file header, and picks the valid slot with the highest sequence number.
+     */
+    private static int readHeader(ByteBuffer buffer, File source) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException(String.format("%s is not a soft token state file", source));
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException(String.format("%s has unsupported format version: %d", source, buffer.getInt(4)));
+        }
+        int current = -1;
+        for (int slot = 0; slot < 2; slot++) {
+            int offset = slotOffset(slot);
+            if (buffer.getInt(offset) != checksum(buffer, offset + 4, SLOT_SIZE - 4)) {
+                continue;
+            }
+            if (current == -1 || buffer.getInt(offset + SLOT_SEQUENCE) - buffer.getInt(slotOffset(current) + SLOT_SEQUENCE) > 0) {
+                current = slot;
+            }
+        }
+        if (current == -1) {
+            throw new IOException(String.format("%s is corrupt", source));
+        }
+        return current;
+    }
+
+    private static void writeSlot(ByteBuffer buffer, int slot, int sequence, State state, int keyCount, int keysChecksum) {
+        int offset = slotOffset(slot);
+        buffer.putInt(offset + SLOT_SEQUENCE, sequence);
+        buffer.putInt(offset + SLOT_FLAGS, (state.master != null ? FLAG_KEY_LOADED : 0) | (state.allowExport ? FLAG_ALLOW_EXPORT : 0));
+        buffer.put(offset + SLOT_RETRIES, (byte) state.userRetries);
+        buffer.put(offset + SLOT_RETRIES + 1, (byte) state.userTries);
+        buffer.put(offset + SLOT_RETRIES + 2, (byte) state.adminRetries);
+        buffer.put(offset + SLOT_RETRIES + 3, (byte) state.adminTries);
+        putPin(buffer, offset + SLOT_USER_PIN, state.userPin);
+        putPin(buffer, offset + SLOT_ADMIN_PIN, state.adminPin);
+        ByteBuffer master = ByteBuffer.allocate(KEY_SIZE);
+        if (state.master != null) {
+            putKey(master, state.master);
+        }
+        for (int i = 0; i < KEY_SIZE; i++) {
+            buffer.put(offset + SLOT_MASTER + i, master.get(i));
+        }
+        buffer.putInt(offset + SLOT_KEY_COUNT, keyCount);
+        buffer.putInt(offset + SLOT_KEYS_CHECKSUM, keysChecksum);
+        //The checksum is written last, so that a partially written slot is never taken for a valid one.
+        buffer.putInt(offset, checksum(buffer, offset + 4, SLOT_SIZE - 4));
+    }
+
+    private static State readState(ByteBuffer buffer, int slot, File source) throws IOException {
+        int offset = slotOffset(slot);
+        State state = new State();
+        int flags = buffer.getInt(offset + SLOT_FLAGS);
+        state.allowExport = (flags & FLAG_ALLOW_EXPORT) != 0;
+        state.userRetries = buffer.get(offset + SLOT_RETRIES) & 0xff;
+        state.userTries = buffer.get(offset + SLOT_RETRIES + 1) & 0xff;
+        state.adminRetries = buffer.get(offset + SLOT_RETRIES + 2) & 0xff;
+        state.adminTries = buffer.get(offset + SLOT_RETRIES + 3) & 0xff;
+        state.userPin = getPin(buffer, offset + SLOT_USER_PIN);
+        state.adminPin = getPin(buffer, offset + SLOT_ADMIN_PIN);
+        if ((flags & FLAG_KEY_LOADED) == 0) {
+            return state;
+        }
+        ByteBuffer master = buffer.duplicate();
+        master.position(offset + SLOT_MASTER);
+        state.master = getMasterKey(master);
+
+        //The cached keys are only an optimization, if they are damaged they are skipped rather than failing.
+        int keyCount = buffer.getInt(offset + SLOT_KEY_COUNT);
+        ByteBuffer keys = buffer.duplicate();
+        keys.position(HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        byte[] record = new byte[1 + 4 * MAX_DEPTH + KEY_SIZE];
+        List<int[]> paths = new ArrayList<int[]>(keyCount);
+        List<byte[]> keyList = new ArrayList<byte[]>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            if (keys.remaining() < 1) {
+                return state;
+            }
+            int depth = keys.get(keys.position()) & 0xff;
+            int length = 1 + 4 * depth + KEY_SIZE;
+            if (keys.remaining() < length) {
+                return state;
+            }
+            keys.get(record, 0, length);
+            crc.update(record, 0, length);
+            int[] path = new int[depth];
+            ByteBuffer recordBuffer = ByteBuffer.wrap(record, 1, length - 1);
+            for (int j = 0; j < depth; j++) {
+                path[j] = recordBuffer.getInt();
+            }
+            byte[] key = getKey(recordBuffer);
+            if (depth == 0 || key == null) {
+                return state;
+            }
+            paths.add(path);
+            keyList.add(key);
+        }
+        if ((int) crc.getValue() != buffer.getInt(offset + SLOT_KEYS_CHECKSUM)) {
+            return state;
+        }
+        state.paths.addAll(paths);
+        state.keys.addAll(keyList);
+        return state;
+    }
+
+    private static void putPin(ByteBuffer buffer, int offset, String pin) {
+        checkPin(pin);
+        byte[] bytes = pin.getBytes(UTF8);
+        buffer.put(offset, (byte) bytes.length);
+        for (int i = 0; i < MAX_PIN_LENGTH; i++) {
+            buffer.put(offset + 1 + i, i < bytes.length ? bytes[i] : 0);
+        }
+    }
+
+    private static String getPin(ByteBuffer buffer, int offset) {
+        byte[] bytes = new byte[Math.min(buffer.get(offset) & 0xff, MAX_PIN_LENGTH)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(offset + 1 + i);
+        }
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Checks that a PIN fits in a state file.
+     */
+    static void checkPin(String pin) {
+        if (pin.getBytes(UTF8).length > MAX_PIN_LENGTH) {
+            throw new IllegalArgumentException(String.format("PIN must be at most %d bytes", MAX_PIN_LENGTH));
+        }
+    }
+
+    private static void putKey(ByteBuffer buffer, DeterministicKey key) {
+        putKey(buffer, BatchKeyDerivation.fromDeterministicKey(key));
+    }
+
+    private static void putKey(ByteBuffer buffer, byte[] key) {
+        ECPoint point = ECKey.CURVE.getCurve().decodePoint(Arrays.copyOfRange(key, BatchKeyDerivation.KEY_PUBLIC, BatchKeyDerivation.KEY_LENGTH));
+        buffer.put(key, 0, BatchKeyDerivation.KEY_PUBLIC);
+        buffer.put(Secp256k1Signer.toBytes32(point.getX().toBigInteger()));
+        buffer.put(Secp256k1Signer.toBytes32(point.getY().toBigInteger()));
+    }
+
+    /**
+     * Reads a stored derived key, as used by YkneoBitcoinSoft. The public key is taken from the stored point rather
+     * than computed, the records are covered by the keys checksum.
+     *
+     * @return The key, or null if the private key is out of range.
+     */
+    private static byte[] getKey(ByteBuffer buffer) {
+        byte[] key = new byte[BatchKeyDerivation.KEY_LENGTH];
+        byte[] y = new byte[32];
+        buffer.get(key, 0, BatchKeyDerivation.KEY_PUBLIC);
+        buffer.get(key, BatchKeyDerivation.KEY_PUBLIC + 1, 32);
+        buffer.get(y);
+        key[BatchKeyDerivation.KEY_PUBLIC] = (byte) ((y[31] & 1) == 0 ? 0x02 : 0x03);
+        BigInteger privateKey = BatchKeyDerivation.getPrivateKey(key);
+        if (privateKey.signum() == 0 || privateKey.compareTo(Secp256k1Signer.N) >= 0) {
+            return null;
+        }
+        return key;
+    }
+
+    private static DeterministicKey getMasterKey(ByteBuffer buffer) throws IOException {
+        byte[] chainCode = new byte[32];
+        byte[] privateKey = new byte[32];
+        buffer.mark();
+        buffer.get(chainCode);
+        buffer.get(privateKey);
+        buffer.reset();
+        DeterministicKey key;
+        try {
+            key = HDKeyDerivation.createMasterPrivKeyFromBytes(privateKey, chainCode);
+        } catch (HDDerivationException e) {
+            throw new IOException("Invalid master key in soft token state", e);
+        }
+        if (!matches(buffer, key)) {
+            throw new IOException("Invalid master key in soft token state");
+        }
+        return key;
+    }
+
+    /**
+     * Checks a key against a stored key, consuming the stored key.
+     */
+    private static boolean matches(ByteBuffer buffer, DeterministicKey key) {
+        byte[] chainCode = new byte[32];
+        byte[] privateKey = new byte[32];
+        byte[] x = new byte[32];
+        byte[] y = new byte[32];
+        buffer.get(chainCode);
+        buffer.get(privateKey);
+        buffer.get(x);
+        buffer.get(y);
+
+        byte[] publicKey = new byte[33];
+        publicKey[0] = (byte) ((y[31] & 1) == 0 ? 0x02 : 0x03);
+        System.arraycopy(x, 0, publicKey, 1, 32);
+        return Arrays.equals(chainCode, key.getChainCode())
+                && new BigInteger(1, privateKey).equals(key.getPrivAsFieldElement())
+                && Arrays.equals(publicKey, key.getPubKeyBytes());
+    }
+
+    /**
+     * The persistent state of a soft token.
+     */
+    static final class State {
+        boolean allowExport;
+        DeterministicKey master;
+        String userPin;
+        int userRetries;
+        int userTries;
+        String adminPin;
+        int adminRetries;
+        int adminTries;
+        final List<int[]> paths = new ArrayList<int[]>();
+        final List<byte[]> keys = new ArrayList<byte[]>();
+    }
+}
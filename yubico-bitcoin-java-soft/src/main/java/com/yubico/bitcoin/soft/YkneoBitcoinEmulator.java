@@ -0,0 +1,259 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.soft;
+
+import com.yubico.bitcoin.api.*;
+import com.yubico.bitcoin.transport.ApduTransport;
+import com.yubico.bitcoin.util.YkneoConstants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * ApduTransport which emulates the ykneo-bitcoin applet, for testing purposes only!
+ * <p/>
+ * It decodes the command APDUs of the applet and executes them on a YkneoBitcoin, by default a YkneoBitcoinSoft,
+ * returning the same responses and status words as the applet. Used with YkneoBitcoinClient, this exercises the full
+ * client code path, including encoding and status word handling, without a YubiKey NEO:
+ * YkneoBitcoin neo = new YkneoBitcoinClient(new YkneoBitcoinEmulator());
+ * <p/>
+ * As on the device, the PIN state is reset whenever the applet is selected.
+ */
+public class YkneoBitcoinEmulator implements ApduTransport, YkneoConstants {
+    public static final int SW_OK = 0x9000;
+    public static final int SW_WRONG_LENGTH = 0x6700;
+    public static final int SW_SECURITY_STATUS_NOT_SATISFIED = 0x6982;
+    public static final int SW_CONDITIONS_NOT_SATISFIED = 0x6986;
+    public static final int SW_WRONG_DATA = 0x6a80;
+    public static final int SW_FILE_NOT_FOUND = 0x6a82;
+    public static final int SW_INCORRECT_P1P2 = 0x6a86;
+    public static final int SW_INS_NOT_SUPPORTED = 0x6d00;
+    public static final int SW_CLA_NOT_SUPPORTED = 0x6e00;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final YkneoBitcoin neo;
+    private boolean selected = false;
+    private boolean userUnlocked = false;
+    private boolean adminUnlocked = false;
+
+    /**
+     * Emulates a device with the default PINs and no key loaded.
+     */
+    public YkneoBitcoinEmulator() {
+        this(new YkneoBitcoinSoft());
+    }
+
+    /**
+     * @param neo The implementation to execute the commands on.
+     */
+    public YkneoBitcoinEmulator(YkneoBitcoin neo) {
+        this.neo = neo;
+    }
+
+    public YkneoBitcoin getDevice() {
+        return neo;
+    }
+
+    /**
+     * Emulates the card being reset, which deselects the applet and clears the PIN state.
+     */
+    public synchronized void reset() {
+        selected = false;
+        userUnlocked = false;
+        adminUnlocked = false;
+    }
+
+    @Override
+    public synchronized void transmit(ByteBuffer command, ByteBuffer response) throws IOException {
+        int cla = command.get() & 0xff;
+        int ins = command.get() & 0xff;
+        int p1 = command.get() & 0xff;
+        int p2 = command.get() & 0xff;
+        byte[] data = new byte[0];
+        if (command.hasRemaining()) {
+            int length = command.get() & 0xff;
+            if (command.remaining() < length) {
+                response.putShort((short) SW_WRONG_LENGTH);
+                return;
+            }
+            data = new byte[length];
+            command.get(data);
+            //Skip Le, if present.
+            command.position(command.limit());
+        }
+
+        int status;
+        try {
+            status = execute(cla, ins, p1, p2, data, response);
+        } catch (IncorrectPINException e) {
+            status = 0x63c0 | e.getTriesRemaining();
+        } catch (PinModeLockedException e) {
+            status = SW_SECURITY_STATUS_NOT_SATISFIED;
+        } catch (UnusableIndexException e) {
+            status = SW_WRONG_DATA;
+        } catch (NoKeyLoadedException e) {
+            status = SW_FILE_NOT_FOUND;
+        } catch (OperationNotPermittedException e) {
+            status = SW_CONDITIONS_NOT_SATISFIED;
+        } catch (IllegalArgumentException e) {
+            status = SW_WRONG_DATA;
+        } catch (YkneoBitcoinException e) {
+            status = SW_WRONG_DATA;
+        }
+        response.putShort((short) status);
+    }
+
+    private int execute(int cla, int ins, int p1, int p2, byte[] data, ByteBuffer response) throws YkneoBitcoinException, IOException {
+        if (cla != 0x00) {
+            return SW_CLA_NOT_SUPPORTED;
+        }
+        if (ins == 0xa4) {
+            return select(p1, data, response);
+        }
+        if (!selected) {
+            return SW_INS_NOT_SUPPORTED;
+        }
+
+        switch (ins) {
+            case INS_VERIFY_PIN:
+                if (p2 == 0x00) {
+                    userUnlocked = false;
+                    neo.unlockUser(new String(data, ASCII));
+                    userUnlocked = true;
+                } else if (p2 == 0x01) {
+                    adminUnlocked = false;
+                    neo.unlockAdmin(new String(data, ASCII));
+                    adminUnlocked = true;
+                } else {
+                    return SW_INCORRECT_P1P2;
+                }
+                return SW_OK;
+            case INS_SET_PIN:
+                return setPin(p2, data);
+            case INS_RESET_USER_PIN:
+                requireAdmin();
+                neo.resetUserPin(new String(data, ASCII));
+                return SW_OK;
+            case INS_SET_RETRY_COUNT:
+                requireAdmin();
+                if (data.length != 1) {
+                    return SW_WRONG_LENGTH;
+                }
+                if (p2 == 0x00) {
+                    neo.setUserRetryCount(data[0]);
+                } else if (p2 == 0x01) {
+                    neo.setAdminRetryCount(data[0]);
+                } else {
+                    return SW_INCORRECT_P1P2;
+                }
+                return SW_OK;
+            case INS_GET_HEADER:
+                requireUser();
+                response.put(neo.getHeader());
+                return SW_OK;
+            case INS_GET_PUB:
+                requireUser();
+                if (data.length % 4 != 0) {
+                    return SW_WRONG_LENGTH;
+                }
+                response.put(neo.getPublicKey(false, toInts(data, data.length / 4)));
+                return SW_OK;
+            case INS_SIGN:
+                requireUser();
+                if (data.length < 32 || (data.length - 32) % 4 != 0) {
+                    return SW_WRONG_LENGTH;
+                }
+                int depth = (data.length - 32) / 4;
+                response.put(neo.sign(Arrays.copyOfRange(data, depth * 4, data.length), toInts(data, depth)));
+                return SW_OK;
+            case INS_GENERATE_KEY_PAIR:
+                requireAdmin();
+                response.put(neo.generateMasterKeyPair((p2 & FLAG_CAN_EXPORT) != 0, (p2 & FLAG_RETURN_PRIVATE) != 0, (p2 & FLAG_TESTNET) != 0));
+                return SW_OK;
+            case INS_IMPORT_KEY_PAIR:
+                requireAdmin();
+                neo.importExtendedKeyPair(data, (p2 & FLAG_CAN_EXPORT) != 0);
+                return SW_OK;
+            case INS_EXPORT_EXT_PUB_KEY:
+                requireAdmin();
+                response.put(neo.exportExtendedPublicKey());
+                return SW_OK;
+            default:
+                return SW_INS_NOT_SUPPORTED;
+        }
+    }
+
+    private int select(int p1, byte[] data, ByteBuffer response) {
+        if (p1 != 0x04 || !Arrays.equals(AID, data)) {
+            selected = false;
+            return SW_FILE_NOT_FOUND;
+        }
+        selected = true;
+        userUnlocked = false;
+        adminUnlocked = false;
+        for (String part : neo.getAppletVersion().split("\\.")) {
+            response.put((byte) Integer.parseInt(part));
+        }
+        response.put((byte) (neo.isKeyLoaded() ? 1 : 0));
+        return SW_OK;
+    }
+
+    private int setPin(int p2, byte[] data) throws IncorrectPINException, IOException {
+        int oldLength = data.length > 0 ? data[0] & 0xff : 0;
+        if (data.length < oldLength + 2 || data.length != oldLength + (data[oldLength + 1] & 0xff) + 2) {
+            return SW_WRONG_LENGTH;
+        }
+        String oldPin = new String(data, 1, oldLength, ASCII);
+        String newPin = new String(data, oldLength + 2, data[oldLength + 1] & 0xff, ASCII);
+        if (p2 == 0x00) {
+            userUnlocked = false;
+            neo.setUserPin(oldPin, newPin);
+            userUnlocked = true;
+        } else if (p2 == FLAG_ADMIN_PIN) {
+            adminUnlocked = false;
+            neo.setAdminPin(oldPin, newPin);
+            adminUnlocked = true;
+        } else {
+            return SW_INCORRECT_P1P2;
+        }
+        return SW_OK;
+    }
+
+    private void requireUser() throws PinModeLockedException {
+        if (!userUnlocked) {
+            throw new PinModeLockedException(PinMode.USER);
+        }
+    }
+
+    private void requireAdmin() throws PinModeLockedException {
+        if (!adminUnlocked) {
+            throw new PinModeLockedException(PinMode.ADMIN);
+        }
+    }
+
+    private static int[] toInts(byte[] data, int count) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        int[] ints = new int[count];
+        for (int i = 0; i < count; i++) {
+            ints[i] = buf.getInt();
+        }
+        return ints;
+    }
+}
@@ -16,60 +16,191 @@
 
 package com.yubico.bitcoin.soft;
 
-import com.google.bitcoin.core.ECKey;
-import com.google.bitcoin.core.Sha256Hash;
-import com.google.bitcoin.crypto.ChildNumber;
-import com.google.bitcoin.crypto.DeterministicHierarchy;
 import com.google.bitcoin.crypto.DeterministicKey;
 import com.google.bitcoin.crypto.HDKeyDerivation;
 import com.yubico.bitcoin.api.*;
-import org.spongycastle.asn1.sec.SECNamedCurves;
-import org.spongycastle.asn1.x9.X9ECParameters;
-import org.spongycastle.math.ec.ECPoint;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.math.BigInteger;
 import java.security.SecureRandom;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This is a software implementation of YkneoBitcoin which is meant to be used for testing purposed only!
  *
  * It will allow you to test interop with YkneoBitcoin without requiring a physical YubiKey NEO with the applet.
+ * <p/>
+ * This class is thread safe, and signing and deriving public keys can be done from any number of threads at once.
+ * The key material is immutable and replaced as a whole when a key pair is generated or imported, and the PIN state
+ * is updated atomically.
+ * <p/>
+ * By default all state is kept in memory. A token created by {@link #open(File)} instead keeps its key pair, PINs,
+ * retry counters and export flag in a file, so that it survives restarts. The state of any token, along with the
+ * keys it has derived so far, can be written to an image using {@link #snapshot(File)}, and any number of tokens can
+ * be started from that image using {@link #restore(File)}, without having to import and derive keys again.
  */
-public class YkneoBitcoinSoft implements YkneoBitcoin {
+public class YkneoBitcoinSoft implements YkneoBitcoin, Closeable {
     private static final String VERSION = "0.1.0";
     private static final int DEFAULT_PIN_TRIES = 6;
 
     private final SecureRandom random = new SecureRandom();
 
-    private DeterministicHierarchy master;
+    private final int keyCacheSize;
+    private final SoftTokenFile file;
+    private volatile KeyState keyState;
 
-    private String userPin = "000000";
-    private String adminPin = "00000000";
-    private boolean allowExport = false;
-
-    private int userMaxRetries = DEFAULT_PIN_TRIES;
-    private int adminMaxRetries = DEFAULT_PIN_TRIES;
-    private int userTries = userMaxRetries;
-    private int adminTries = adminMaxRetries;
-    private boolean userLocked = true;
-    private boolean adminLocked = true;
+    private final AtomicReference<PinState> userPin = new AtomicReference<PinState>(new PinState("000000", DEFAULT_PIN_TRIES));
+    private final AtomicReference<PinState> adminPin = new AtomicReference<PinState>(new PinState("00000000", DEFAULT_PIN_TRIES));
 
     public YkneoBitcoinSoft() {
+        this(DerivedKeyCache.DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param keyCacheSize The maximum number of derived keys to keep in memory.
+     */
+    public YkneoBitcoinSoft(int keyCacheSize) {
+        this(keyCacheSize, null);
+    }
+
+    private YkneoBitcoinSoft(int keyCacheSize, SoftTokenFile file) {
+        this.keyCacheSize = keyCacheSize;
+        this.file = file;
+        keyState = new KeyState(null, false, new DerivedKeyCache(keyCacheSize));
+    }
+
+    /**
+     * Opens a soft token which keeps its state in a file, creating a new token with no key loaded and the default PINs
+     * if the file doesn't exist. Changes are written to the file as they are made, and the file stays locked until
+     * the token is closed. PINs are limited to 63 bytes.
+     * <p/>
+     * The file may also be a copy of an image written by {@link #snapshot(File)}, in which case the keys derived
+     * before the snapshot was taken are available right away.
+     *
+     * @param stateFile The file to keep the state in.
+     * @return The token, with both PIN modes locked.
+     * @throws IOException If the file can't be opened, is in use by another process, or is not a valid state file.
+     */
+    public static YkneoBitcoinSoft open(File stateFile) throws IOException {
+        SoftTokenFile file = SoftTokenFile.open(stateFile);
+        YkneoBitcoinSoft neo = new YkneoBitcoinSoft(DerivedKeyCache.DEFAULT_MAX_SIZE, file);
+        try {
+            SoftTokenFile.State state = file.read();
+            if (state == null) {
+                neo.persist();
+            } else {
+                neo.load(state);
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        return neo;
+    }
+
+    /**
+     * Creates an in-memory soft token from an image written by {@link #snapshot(File)}. The image is only read, so
+     * any number of tokens may be restored from the same image at once.
+     *
+     * @param image The image to read.
+     * @return The token, with both PIN modes locked.
+     * @throws IOException If the image can't be read, or is not valid.
+     */
+    public static YkneoBitcoinSoft restore(File image) throws IOException {
+        YkneoBitcoinSoft neo = new YkneoBitcoinSoft();
+        neo.load(SoftTokenFile.readImage(image));
+        return neo;
+    }
+
+    /**
+     * Writes the state of this token to an image, which can be used with {@link #restore(File)} or {@link #open(File)}.
+     * Along with the key pair, PINs, retry counters and export flag, the image holds the paths of the derived keys
+     * that are currently cached, along with their key pairs, so that tokens started from it have them cached again
+     * without deriving them. Whether the PIN modes are unlocked is not part of the image.
+     * <p/>
+     * The image should not be the state file of an open token.
+     *
+     * @param image The file to write, which is replaced if it exists.
+     * @throws IOException If the image can't be written.
+     */
+    public void snapshot(File image) throws IOException {
+        //The key pair and its cached keys must come from the same key state.
+        KeyState keys = keyState;
+        SoftTokenFile.State state = toState(keys);
+        keys.cache.copyEntries(state.paths, state.keys);
+        SoftTokenFile.writeImage(image, state);
+    }
+
+    /**
+     * Writes any pending changes of a file backed token to disk, and releases the file. The token can still be used
+     * afterwards, but further changes are only kept in memory. Does nothing for a token that isn't file backed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            file.close();
+        }
+    }
+
+    private void load(SoftTokenFile.State state) {
+        DerivedKeyCache cache = new DerivedKeyCache(keyCacheSize);
+        for (int i = 0; i < state.paths.size(); i++) {
+            int[] path = state.paths.get(i);
+            cache.put(path, path.length, state.keys.get(i));
+        }
+        keyState = new KeyState(state.master, state.allowExport, cache);
+        userPin.set(new PinState(state.userPin, state.userRetries, state.userTries, true));
+        adminPin.set(new PinState(state.adminPin, state.adminRetries, state.adminTries, true));
+    }
+
+    private SoftTokenFile.State toState(KeyState keys) {
+        SoftTokenFile.State state = new SoftTokenFile.State();
+        state.master = keys.master;
+        state.allowExport = keys.allowExport;
+        PinState user = userPin.get();
+        state.userPin = user.pin;
+        state.userRetries = user.maxRetries;
+        state.userTries = user.tries;
+        PinState admin = adminPin.get();
+        state.adminPin = admin.pin;
+        state.adminRetries = admin.maxRetries;
+        state.adminTries = admin.tries;
+        return state;
+    }
+
+    /**
+     * Writes the current state to the backing file, if any. The state is read while holding the file lock, so the last
+     * write always holds the latest state, no matter in which order concurrent changes reach this point.
+     */
+    private void persist() {
+        if (file != null) {
+            synchronized (file) {
+                file.write(toState(keyState));
+            }
+        }
+    }
+
+    /**
+     * Gets the cache of derived keys of the currently loaded key, which can be used to inspect its hit and miss
+     * counters. A new cache is used for each key pair generated or imported.
+     */
+    public DerivedKeyCache getKeyCache() {
+        return keyState.cache;
     }
 
     @Override
     public byte[] exportExtendedPublicKey() throws PinModeLockedException, IOException, OperationNotPermittedException, NoKeyLoadedException {
         ensurePin(PinMode.ADMIN);
-        ensureKey();
-        if(!allowExport) {
+        KeyState state = ensureKey();
+        if(!state.allowExport) {
             throw new OperationNotPermittedException();
         }
-        return master.getRootKey().serializePublic();
+        return state.master.serializePublic();
     }
 
     @Override
@@ -79,55 +210,82 @@ public class YkneoBitcoinSoft implements YkneoBitcoin {
 
     @Override
     public boolean isKeyLoaded() {
-        return master != null;
+        return keyState.master != null;
     }
 
     @Override
     public void unlockUser(String pin) throws IncorrectPINException, IOException {
-        if (userPin.equals(pin)) {
-            userLocked = false;
-            userTries = userMaxRetries;
-            return;
-        } else if (userTries > 0) {
-            userTries--;
+        try {
+            verify(userPin, PinMode.USER, pin, null);
+        } finally {
+            persist();
         }
-        userLocked = true;
-        throw new IncorrectPINException(PinMode.USER, userTries);
     }
 
     @Override
     public void unlockAdmin(String pin) throws IncorrectPINException, IOException {
-        if (adminPin.equals(pin)) {
-            adminLocked = false;
-            adminTries = adminMaxRetries;
-            return;
-        } else if (adminTries > 0) {
-            adminTries--;
+        try {
+            verify(adminPin, PinMode.ADMIN, pin, null);
+        } finally {
+            persist();
+        }
+    }
+
+    /**
+     * Verifies a PIN, and if it's correct unlocks the mode and optionally changes the PIN, all as one atomic update.
+     */
+    private static void verify(AtomicReference<PinState> ref, PinMode mode, String pin, String newPin) throws IncorrectPINException {
+        while (true) {
+            PinState state = ref.get();
+            PinState next;
+            if (state.pin.equals(pin)) {
+                next = new PinState(newPin != null ? newPin : state.pin, state.maxRetries, state.maxRetries, false);
+            } else {
+                next = new PinState(state.pin, state.maxRetries, Math.max(state.tries - 1, 0), true);
+            }
+            if (ref.compareAndSet(state, next)) {
+                if (next.locked) {
+                    throw new IncorrectPINException(mode, next.tries);
+                }
+                return;
+            }
         }
-        adminLocked = true;
-        throw new IncorrectPINException(PinMode.ADMIN, adminTries);
     }
 
     @Override
     public boolean isUserUnlocked() {
-        return !userLocked;
+        return !userPin.get().locked;
     }
 
     @Override
     public boolean isAdminUnlocked() {
-        return !adminLocked;
+        return !adminPin.get().locked;
     }
 
     @Override
     public void setUserPin(String oldPin, String newPin) throws IncorrectPINException, IOException {
-        unlockUser(oldPin);
-        userPin = newPin;
+        checkPin(newPin);
+        try {
+            verify(userPin, PinMode.USER, oldPin, newPin);
+        } finally {
+            persist();
+        }
     }
 
     @Override
     public void setAdminPin(String oldPin, String newPin) throws IncorrectPINException, IOException {
-        unlockAdmin(oldPin);
-        adminPin = newPin;
+        checkPin(newPin);
+        try {
+            verify(adminPin, PinMode.ADMIN, oldPin, newPin);
+        } finally {
+            persist();
+        }
+    }
+
+    private void checkPin(String pin) {
+        if (file != null) {
+            SoftTokenFile.checkPin(pin);
+        }
     }
 
     private void ensurePin(PinMode mode) throws PinModeLockedException {
@@ -149,76 +307,151 @@ public class YkneoBitcoinSoft implements YkneoBitcoin {
     @Override
     public void resetUserPin(String newPin) throws PinModeLockedException, IOException {
         ensurePin(PinMode.ADMIN);
-        userPin = newPin;
-        userTries = userMaxRetries;
+        checkPin(newPin);
+        while (true) {
+            PinState state = userPin.get();
+            if (userPin.compareAndSet(state, new PinState(newPin, state.maxRetries, state.maxRetries, state.locked))) {
+                break;
+            }
+        }
+        persist();
     }
 
-    private void ensureKey() throws NoKeyLoadedException {
-        if (master == null) {
+    private KeyState ensureKey() throws NoKeyLoadedException {
+        KeyState state = keyState;
+        if (state.master == null) {
             throw new NoKeyLoadedException();
         }
+        return state;
     }
 
     @Override
     public byte[] getHeader() throws PinModeLockedException, IOException, NoKeyLoadedException {
         ensurePin(PinMode.USER);
-        ensureKey();
+        KeyState state = ensureKey();
         byte[] header = new byte[13];
-        System.arraycopy(master.getRootKey().serializePrivate(), 0, header, 0, 13);
+        System.arraycopy(state.master.serializePrivate(), 0, header, 0, 13);
         return header;
     }
 
-    private DeterministicKey getKey(int... index) throws PinModeLockedException, NoKeyLoadedException {
+    private byte[] getKey(int... index) throws PinModeLockedException, NoKeyLoadedException, UnusableIndexException {
         ensurePin(PinMode.USER);
-        ensureKey();
-        List<ChildNumber> path = new ArrayList<ChildNumber>();
-        for(int i : index) {
-            if((i & 0x80000000) != 0) {
-                path.add(new ChildNumber(i & 0x7fffffff, true));
-            } else {
-                path.add(new ChildNumber(i, false));
-            }
+        KeyState state = ensureKey();
+        if (index.length == 0) {
+            return state.root;
         }
 
-        return master.get(path, true, true);
+        //All derivation is done from, and cached for, the key loaded when the request started.
+        DerivedKeyCache keyCache = state.cache;
+        byte[] key = keyCache.get(index, index.length);
+        if (key != null) {
+            keyCache.recordHit();
+            return key;
+        }
+        keyCache.recordMiss();
+
+        //Start from the deepest ancestor that is already known.
+        int depth = index.length - 1;
+        key = null;
+        while (depth > 0 && (key = keyCache.get(index, depth)) == null) {
+            depth--;
+        }
+        if (key == null) {
+            key = state.root;
+        }
+
+        for (; depth < index.length; depth++) {
+            key = keyCache.put(index, depth + 1, deriveChild(key, index[depth]));
+        }
+
+        return key;
     }
 
     @Override
     public void setAdminRetryCount(int attempts) throws PinModeLockedException, IOException {
         ensurePin(PinMode.ADMIN);
-        adminMaxRetries = attempts;
-        adminTries = adminMaxRetries;
+        setRetryCount(adminPin, attempts);
+        persist();
     }
 
     @Override
     public void setUserRetryCount(int attempts) throws PinModeLockedException, IOException {
         ensurePin(PinMode.USER);
-        userMaxRetries = attempts;
-        userTries = userMaxRetries;
+        setRetryCount(userPin, attempts);
+        persist();
+    }
+
+    private static void setRetryCount(AtomicReference<PinState> ref, int attempts) {
+        while (true) {
+            PinState state = ref.get();
+            if (ref.compareAndSet(state, new PinState(state.pin, attempts, attempts, state.locked))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Derives a child key, with its public key. Cached keys are shared, so the parent is left untouched.
+     */
+    private static byte[] deriveChild(byte[] parent, int i) throws UnusableIndexException {
+        byte[] key = parent.clone();
+        BatchKeyDerivation.deriveChild(key, i);
+        BatchKeyDerivation.computePublicKey(key);
+        return key;
+    }
+
+    /**
+     * DeterministicKey computes its public key lazily, without synchronization. Computing it before the key is
+     * published to other threads (through the key state) makes the key effectively immutable.
+     */
+    private static DeterministicKey shareable(DeterministicKey key) {
+        key.getPubKeyBytes();
+        return key;
     }
 
     @Override
     public byte[] getPublicKey(boolean compress, int... index) throws PinModeLockedException, UnusableIndexException, IOException, NoKeyLoadedException {
-        DeterministicKey key = getKey(index);
-        X9ECParameters params = SECNamedCurves.getByName("secp256k1");
-        ECPoint point = params.getCurve().decodePoint(key.toECKey().getPubKey());
-        point = new ECPoint.Fp(point.getCurve(), point.getX(), point.getY(), compress);
-        return point.getEncoded();
+        return BatchKeyDerivation.getPublicKey(getKey(index), compress);
+    }
+
+    @Override
+    public byte[] getPublicKeys(boolean compress, int[] parentPath, int fromChild, int count) throws PinModeLockedException, UnusableIndexException, IOException, NoKeyLoadedException {
+        if (count < 0) {
+            throw new IllegalArgumentException(String.format("Count must not be negative, was: %d", count));
+        }
+        if (count > 0 && (fromChild & 0x80000000) != ((fromChild + count - 1) & 0x80000000)) {
+            throw new IllegalArgumentException("Child range must not mix hardened and non-hardened children");
+        }
+
+        //The parent is derived (or found in the cache) once, the children are derived in bulk straight into the result,
+        //and are not cached, so that generating a large range doesn't flush out the keys that are actually in use.
+        byte[] parent = getKey(parentPath);
+        return BatchKeyDerivation.derivePublicKeys(parent, fromChild, count, compress);
     }
 
     @Override
     public byte[] sign(byte[] hash, int... index) throws PinModeLockedException, UnusableIndexException, IOException, NoKeyLoadedException {
-        DeterministicKey key = getKey(index);
-        ECKey.ECDSASignature signature = key.toECKey().sign(new Sha256Hash(hash));
-        return signature.encodeToDER();
+        return Secp256k1Signer.sign(BatchKeyDerivation.getPrivateKey(getKey(index)), hash);
+    }
+
+    @Override
+    public List<SignResult> signBatch(List<SignRequest> requests) throws PinModeLockedException, IOException {
+        ensurePin(PinMode.USER);
+        return BatchSigner.signBatch(requests, new BatchSigner.KeySource() {
+            @Override
+            public BigInteger getPrivateKey(int[] index) throws PinModeLockedException, NoKeyLoadedException, UnusableIndexException {
+                return BatchKeyDerivation.getPrivateKey(getKey(index));
+            }
+        });
     }
 
     @Override
     public byte[] generateMasterKeyPair(boolean allowExport, boolean returnPrivateKey, boolean testnetKey) throws PinModeLockedException, IOException {
         ensurePin(PinMode.ADMIN);
-        master = new DeterministicHierarchy(HDKeyDerivation.createMasterPrivateKey(random.generateSeed(32)));
-        this.allowExport = allowExport;
-        return returnPrivateKey ? master.getRootKey().serializePrivate() : new byte[0];
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey(random.generateSeed(32));
+        keyState = new KeyState(shareable(master), allowExport, new DerivedKeyCache(keyCacheSize));
+        persist();
+        return returnPrivateKey ? master.serializePrivate() : new byte[0];
     }
 
     @Override
@@ -229,7 +462,44 @@ public class YkneoBitcoinSoft implements YkneoBitcoin {
         System.arraycopy(extendedPrivateKey, 13, chaincode, 0, 32);
         System.arraycopy(extendedPrivateKey, 45, privkey, 0, 33);
 
-        master = new DeterministicHierarchy(HDKeyDerivation.createMasterPrivKeyFromBytes(privkey, chaincode));
-        this.allowExport = allowExport;
+        DeterministicKey master = HDKeyDerivation.createMasterPrivKeyFromBytes(privkey, chaincode);
+        keyState = new KeyState(shareable(master), allowExport, new DerivedKeyCache(keyCacheSize));
+        persist();
+    }
+
+    /**
+     * The loaded key pair, together with the cache of keys derived from it. Keys are derived from root, which holds
+     * the master key in the form used by BatchKeyDerivation.
+     */
+    private static class KeyState {
+        private final DeterministicKey master;
+        private final byte[] root;
+        private final boolean allowExport;
+        private final DerivedKeyCache cache;
+
+        private KeyState(DeterministicKey master, boolean allowExport, DerivedKeyCache cache) {
+            this.master = master;
+            this.root = master != null ? BatchKeyDerivation.fromDeterministicKey(master) : null;
+            this.allowExport = allowExport;
+            this.cache = cache;
+        }
+    }
+
+    private static class PinState {
+        private final String pin;
+        private final int maxRetries;
+        private final int tries;
+        private final boolean locked;
+
+        private PinState(String pin, int maxRetries) {
+            this(pin, maxRetries, maxRetries, true);
+        }
+
+        private PinState(String pin, int maxRetries, int tries, boolean locked) {
+            this.pin = pin;
+            this.maxRetries = maxRetries;
+            this.tries = tries;
+            this.locked = locked;
+        }
     }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.soft;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.common.io.BaseEncoding;
+import com.yubico.bitcoin.api.IncorrectPINException;
+import com.yubico.bitcoin.api.SignRequest;
+import com.yubico.bitcoin.api.SignResult;
+import com.yubico.bitcoin.api.YkneoBitcoin;
+import com.yubico.bitcoin.util.AsyncYkneoBitcoin;
+import com.yubico.bitcoin.util.DeviceState;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class AsyncYkneoBitcoinTest {
+    private static final String userPin = "000000";
+    private static final String adminPin = "00000000";
+
+    private AsyncYkneoBitcoin neo;
+
+    @Before
+    public void setup() throws Exception {
+        YkneoBitcoin soft = new YkneoBitcoinSoft();
+        soft.unlockAdmin(adminPin);
+        soft.generateMasterKeyPair(false, false, false);
+        neo = new AsyncYkneoBitcoin(soft);
+    }
+
+    @After
+    public void teardown() {
+        neo.close();
+    }
+
+    @Test
+    public void testState() throws Exception {
+        DeviceState state = neo.getState();
+        assertEquals("0.1.0", state.getAppletVersion());
+        assertTrue(state.isKeyLoaded());
+        assertFalse(state.isUserUnlocked());
+
+        neo.unlockUser(userPin).get();
+        assertTrue(neo.getState().isUserUnlocked());
+    }
+
+    @Test
+    public void testExceptionIsCause() throws Exception {
+        try {
+            neo.unlockUser("wrong pin").get();
+            fail("Unlocked with wrong PIN!");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IncorrectPINException);
+        }
+        assertFalse(neo.getState().isUserUnlocked());
+    }
+
+    @Test
+    public void testQueuedSign() throws Exception {
+        byte[] hash = new byte[32];
+        neo.unlockUser(userPin);
+        List<Future<byte[]>> signatures = new ArrayList<Future<byte[]>>();
+        for (int i = 0; i < 10; i++) {
+            signatures.add(neo.sign(hash, 0, i));
+        }
+        hash[0] = 1; //Changing the hash after submitting must not affect the queued operations.
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(ECKey.verify(new byte[32], signatures.get(i).get(), neo.getPublicKey(false, 0, i).get()));
+        }
+    }
+
+    /**
+     * Keeps the device busy until the returned latch is released, so that further operations stay queued.
+     */
+    private CountDownLatch block() {
+        final CountDownLatch latch = new CountDownLatch(1);
+        neo.submit(new AsyncYkneoBitcoin.DeviceTask<Void>() {
+            @Override
+            public Void run(YkneoBitcoin neo) throws Exception {
+                latch.await();
+                return null;
+            }
+        });
+        return latch;
+    }
+
+    @Test
+    public void testQueuedSignBatch() throws Exception {
+        byte[] hash = new byte[32];
+        neo.unlockUser(userPin);
+        List<SignRequest> requests = new ArrayList<SignRequest>();
+        requests.add(new SignRequest(hash, 0, 1));
+        CountDownLatch latch = block();
+        Future<List<SignResult>> results = neo.signBatch(requests);
+        //Changing the requests after submitting must not affect the queued operation.
+        hash[0] = 1;
+        requests.add(new SignRequest(hash, 0, 2));
+        latch.countDown();
+
+        assertEquals(1, results.get().size());
+        assertTrue(ECKey.verify(new byte[32], results.get().get(0).getSignature(), neo.getPublicKey(false, 0, 1).get()));
+    }
+
+    @Test
+    public void testQueuedImport() throws Exception {
+        byte[] extendedPrivateKey = BaseEncoding.base16().lowerCase().decode("0488ade4000000000000000000873dff81c02f525623fd1fe5167eac3a55a049de3d314bb42ee227ffed37d50800e8f32e723decf4051aefac8e2c93c9c5b214313817cdb01a1494b917c8436b35");
+        YkneoBitcoinSoft expected = new YkneoBitcoinSoft();
+        expected.unlockAdmin(adminPin);
+        expected.importExtendedKeyPair(extendedPrivateKey, false);
+        expected.unlockUser(userPin);
+
+        neo.unlockAdmin(adminPin);
+        neo.unlockUser(userPin);
+        CountDownLatch latch = block();
+        Future<Void> imported = neo.importExtendedKeyPair(extendedPrivateKey, false);
+        Arrays.fill(extendedPrivateKey, (byte) 0);
+        latch.countDown();
+
+        imported.get();
+        assertArrayEquals(expected.getPublicKey(true, 0), neo.getPublicKey(true, 0).get());
+    }
+
+    @Test
+    public void testSubmit() throws Exception {
+        byte[] pubKey = neo.submit(new AsyncYkneoBitcoin.DeviceTask<byte[]>() {
+            @Override
+            public byte[] run(YkneoBitcoin neo) throws Exception {
+                neo.unlockUser(userPin);
+                return neo.getPublicKey(false, 1);
+            }
+        }).get();
+        assertEquals(65, pubKey.length);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.soft;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.crypto.ChildNumber;
+import com.google.bitcoin.crypto.DeterministicKey;
+import com.google.bitcoin.crypto.HDKeyDerivation;
+import com.google.common.io.BaseEncoding;
+import org.spongycastle.math.ec.ECPoint;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BatchKeyDerivationTest {
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+
+    private DeterministicKey parent;
+
+    @Before
+    public void setup() {
+        byte[] key = HEX.decode("0488ade4000000000000000000873dff81c02f525623fd1fe5167eac3a55a049de3d314bb42ee227ffed37d50800e8f32e723decf4051aefac8e2c93c9c5b214313817cdb01a1494b917c8436b35");
+        DeterministicKey master = HDKeyDerivation.createMasterPrivKeyFromBytes(Arrays.copyOfRange(key, 45, 78), Arrays.copyOfRange(key, 13, 45));
+        parent = HDKeyDerivation.deriveChildKey(master, new ChildNumber(0, true));
+    }
+
+    private byte[] expected(int index, boolean compress) {
+        ChildNumber child = (index & 0x80000000) != 0 ? new ChildNumber(index & 0x7fffffff, true) : new ChildNumber(index, false);
+        byte[] pub = HDKeyDerivation.deriveChildKey(parent, child).getPubKeyBytes();
+        ECPoint point = ECKey.CURVE.getCurve().decodePoint(pub);
+        return new ECPoint.Fp(point.getCurve(), point.getX(), point.getY(), compress).getEncoded();
+    }
+
+    private void assertKeys(byte[] keys, int fromChild, int keyLength, int... children) {
+        for (int i : children) {
+            byte[] key = Arrays.copyOfRange(keys, i * keyLength, (i + 1) * keyLength);
+            assertArrayEquals(expected(fromChild + i, keyLength == 33), key);
+        }
+    }
+
+    @Test
+    public void testNonHardened() throws Exception {
+        byte[] keys = BatchKeyDerivation.derivePublicKeys(parent, 5, 10, true);
+        assertEquals(10 * 33, keys.length);
+        assertKeys(keys, 5, 33, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
+    }
+
+    @Test
+    public void testHardenedUncompressed() throws Exception {
+        byte[] keys = BatchKeyDerivation.derivePublicKeys(parent, 0x80000000, 4, false);
+        assertEquals(4 * 65, keys.length);
+        assertKeys(keys, 0x80000000, 65, 0, 1, 2, 3);
+    }
+
+    @Test
+    public void testAcrossChunks() throws Exception {
+        int count = BatchKeyDerivation.CHUNK_SIZE + 3;
+        byte[] keys = BatchKeyDerivation.derivePublicKeys(parent, 0, count, true);
+        assertEquals(count * 33, keys.length);
+        assertKeys(keys, 0, 33, 0, 1, BatchKeyDerivation.CHUNK_SIZE - 1, BatchKeyDerivation.CHUNK_SIZE, count - 1);
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        assertEquals(0, BatchKeyDerivation.derivePublicKeys(parent, 0, 0, true).length);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.soft;
+
+import com.google.common.io.BaseEncoding;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DerivedKeyCacheTest {
+    private static final String userPin = "000000";
+    private static final String adminPin = "00000000";
+
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+
+    private byte[] key;
+
+    @Before
+    public void setup() {
+        key = BatchKeyDerivation.masterKey(new byte[32]);
+    }
+
+    @Test
+    public void testGetPrefix() {
+        DerivedKeyCache cache = new DerivedKeyCache(16);
+        int[] path = new int[]{0x80000000, 1, 2};
+        cache.put(path, 2, key);
+
+        assertSame(key, cache.get(path, 2));
+        assertNull(cache.get(path, 1));
+        assertNull(cache.get(path, 3));
+        assertSame(key, cache.get(new int[]{0x80000000, 1}, 2));
+    }
+
+    @Test
+    public void testEviction() {
+        DerivedKeyCache cache = new DerivedKeyCache(8);
+        for (int i = 0; i < 100; i++) {
+            cache.put(new int[]{0, i}, 2, key);
+            assertSame(key, cache.get(new int[]{0, i}, 2));
+        }
+        assertEquals(8, cache.size());
+
+        int found = 0;
+        for (int i = 0; i < 100; i++) {
+            if (cache.get(new int[]{0, i}, 2) != null) {
+                found++;
+            }
+        }
+        assertEquals(8, found);
+        assertSame(key, cache.get(new int[]{0, 99}, 2));
+    }
+
+    @Test
+    public void testHardenedPinned() {
+        DerivedKeyCache cache = new DerivedKeyCache(4);
+        int[] account = new int[]{0x80000000, 0x80000001};
+        cache.put(account, 2, key);
+        for (int i = 0; i < 100; i++) {
+            cache.put(new int[]{0x80000000, 0x80000001, i}, 3, key);
+        }
+        assertSame(key, cache.get(account, 2));
+    }
+
+    @Test
+    public void testSegments() {
+        DerivedKeyCache cache = new DerivedKeyCache(1000);
+        for (int i = 0; i < 5000; i++) {
+            int[] path = new int[]{0, i};
+            assertSame(key, cache.put(path, 2, key));
+            assertSame(key, cache.get(path, 2));
+        }
+        assertEquals(1000, cache.size());
+
+        //A key which is already cached is kept.
+        byte[] other = BatchKeyDerivation.masterKey(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+        int[] path = new int[]{0, 4999};
+        assertSame(key, cache.put(path, 2, other));
+        assertSame(key, cache.get(path, 2));
+        assertEquals(1000, cache.size());
+    }
+
+    @Test
+    public void testSoftTokenCounters() throws Exception {
+        YkneoBitcoinSoft neo = new YkneoBitcoinSoft(4);
+        neo.unlockAdmin(adminPin);
+        neo.importExtendedKeyPair(HEX.decode("0488ade4000000000000000000873dff81c02f525623fd1fe5167eac3a55a049de3d314bb42ee227ffed37d50800e8f32e723decf4051aefac8e2c93c9c5b214313817cdb01a1494b917c8436b35"), true);
+        neo.unlockUser(userPin);
+
+        String expectedPubKey = "0357bfe1e341d01c69fe5654309956cbea516822fba8a601743a012a7896ee8dc2";
+        assertEquals(expectedPubKey, HEX.encode(neo.getPublicKey(true, 0x80000000, 1, 0x80000002)));
+        assertEquals(expectedPubKey, HEX.encode(neo.getPublicKey(true, 0x80000000, 1, 0x80000002)));
+        assertEquals(1, neo.getKeyCache().getMisses());
+        assertEquals(1, neo.getKeyCache().getHits());
+
+        for (int i = 0; i < 10; i++) {
+            neo.getPublicKey(true, 0x80000000, 1, i);
+        }
+        assertEquals(4, neo.getKeyCache().size());
+        assertEquals(expectedPubKey, HEX.encode(neo.getPublicKey(true, 0x80000000, 1, 0x80000002)));
+    }
+}
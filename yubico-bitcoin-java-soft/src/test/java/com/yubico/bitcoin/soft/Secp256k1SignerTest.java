@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.soft;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.common.io.BaseEncoding;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Secp256k1SignerTest {
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+    private static final BigInteger P = new BigInteger("fffffffffffffffffffffffffffffffffffffffffffffffffffffffefffffc2f", 16);
+
+    private final Random random = new Random(42);
+
+    private BigInteger randomBelow(BigInteger limit) {
+        BigInteger value;
+        do {
+            value = new BigInteger(256, random);
+        } while (value.signum() == 0 || value.compareTo(limit) >= 0);
+        return value;
+    }
+
+    private static int[] element(BigInteger value) {
+        int[] r = Secp256k1Field.create();
+        Secp256k1Field.fromBytes(r, toBytes32(value), 0);
+        return r;
+    }
+
+    private static BigInteger value(int[] element) {
+        byte[] bytes = new byte[32];
+        Secp256k1Field.toBytes(element, bytes, 0);
+        return new BigInteger(1, bytes);
+    }
+
+    private static byte[] toBytes32(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        byte[] fixed = new byte[32];
+        int length = Math.min(bytes.length, 32);
+        System.arraycopy(bytes, bytes.length - length, fixed, 32 - length, length);
+        return fixed;
+    }
+
+    @Test
+    public void testFieldArithmetic() {
+        for (int i = 0; i < 200; i++) {
+            BigInteger a = randomBelow(P);
+            BigInteger b = i == 0 ? P.subtract(BigInteger.ONE) : randomBelow(P);
+            int[] r = Secp256k1Field.create();
+
+            Secp256k1Field.mul(r, element(a), element(b));
+            assertEquals(a.multiply(b).mod(P), value(r));
+            Secp256k1Field.add(r, element(a), element(b));
+            assertEquals(a.add(b).mod(P), value(r));
+            Secp256k1Field.sub(r, element(a), element(b));
+            assertEquals(a.subtract(b).mod(P), value(r));
+            Secp256k1Field.inv(r, element(a));
+            assertEquals(a.modInverse(P), value(r));
+        }
+    }
+
+    @Test
+    public void testMultiplyG() {
+        int[] x = Secp256k1Field.create();
+        int[] y = Secp256k1Field.create();
+        int[] z = Secp256k1Field.create();
+        for (int i = 0; i < 20; i++) {
+            BigInteger k = i == 0 ? Secp256k1Signer.N.subtract(BigInteger.ONE) : randomBelow(Secp256k1Signer.N);
+            assertTrue(Secp256k1Signer.multiplyG(toBytes32(k), x, y, z, Secp256k1Signer.scratch()));
+            Secp256k1Field.inv(z, z);
+            Secp256k1Signer.toAffine(x, y, z);
+            byte[] encoded = new byte[65];
+            encoded[0] = 0x04;
+            Secp256k1Field.toBytes(x, encoded, 1);
+            Secp256k1Field.toBytes(y, encoded, 33);
+            assertArrayEquals(new ECKey(k, null).getPubKey(), encoded);
+        }
+        assertFalse(Secp256k1Signer.multiplyG(new byte[32], x, y, z, Secp256k1Signer.scratch()));
+    }
+
+    @Test
+    public void testSign() {
+        for (int i = 0; i < 20; i++) {
+            BigInteger key = randomBelow(Secp256k1Signer.N);
+            byte[] hash = toBytes32(new BigInteger(256, random));
+            byte[] signature = Secp256k1Signer.sign(key, hash);
+            assertTrue(ECKey.verify(hash, signature, new ECKey(key, null).getPubKey()));
+            assertTrue(ECKey.ECDSASignature.decodeFromDER(signature).s.compareTo(Secp256k1Signer.N.shiftRight(1)) <= 0);
+            assertArrayEquals(signature, Secp256k1Signer.sign(key, hash));
+        }
+    }
+
+    @Test
+    public void testRfc6979() throws Exception {
+        byte[] hash = Sha256Hash.create("Satoshi Nakamoto".getBytes("US-ASCII")).getBytes();
+        assertEquals("3045022100934b1ea10a4b3c1757e2b0c017d0b6143ce3c9a7e6a4a49860d7a6ab210ee3d802202442ce9d2b916064108014783e923ec36b49743e2ffa1c4496f01a512aafd9e5",
+                HEX.encode(Secp256k1Signer.sign(BigInteger.ONE, hash)));
+    }
+}
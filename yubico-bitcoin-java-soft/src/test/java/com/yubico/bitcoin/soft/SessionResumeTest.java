@@ -0,0 +1,166 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.soft;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.common.io.BaseEncoding;
+import com.yubico.bitcoin.api.SignRequest;
+import com.yubico.bitcoin.api.SignResult;
+import com.yubico.bitcoin.api.YkneoBitcoin;
+import com.yubico.bitcoin.transport.ForwardingApduTransport;
+import com.yubico.bitcoin.util.PinProvider;
+import com.yubico.bitcoin.util.YkneoBitcoinClient;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SessionResumeTest {
+    private static final String userPin = "000000";
+    private static final String adminPin = "00000000";
+
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+
+    private YkneoBitcoinEmulator emulator;
+    private YkneoBitcoinClient neo;
+    private String pin = userPin;
+    private int pinRequests = 0;
+    private int reconnects = 0;
+    private boolean dropConnection = false;
+
+    @Before
+    public void setup() throws Exception {
+        emulator = new YkneoBitcoinEmulator();
+        neo = new YkneoBitcoinClient(new ForwardingApduTransport(emulator) {
+            @Override
+            public void transmit(ByteBuffer command, ByteBuffer response) throws IOException {
+                if (dropConnection) {
+                    dropConnection = false;
+                    emulator.reset();
+                    throw new IOException("Connection dropped");
+                }
+                super.transmit(command, response);
+            }
+        }) {
+            @Override
+            protected void reconnect() throws IOException {
+                reconnects++;
+            }
+        };
+        neo.unlockAdmin(adminPin);
+        neo.importExtendedKeyPair(HEX.decode("0488ade4000000000000000000873dff81c02f525623fd1fe5167eac3a55a049de3d314bb42ee227ffed37d50800e8f32e723decf4051aefac8e2c93c9c5b214313817cdb01a1494b917c8436b35"), true);
+        neo.unlockUser(userPin);
+        neo.setPinProvider(new PinProvider() {
+            @Override
+            public String getUserPin() {
+                pinRequests++;
+                return pin;
+            }
+        });
+    }
+
+    @Test
+    public void testResumeAfterReset() throws Exception {
+        byte[] pub = neo.getPublicKey(false, 0x80000000, 1);
+        emulator.reset();
+        byte[] hash = new byte[32];
+        assertTrue(ECKey.verify(hash, neo.sign(hash, 0x80000000, 1), pub));
+        assertEquals(1, pinRequests);
+        assertEquals(0, reconnects);
+        assertTrue(neo.isUserUnlocked());
+        assertFalse(neo.isAdminUnlocked());
+
+        //The session is intact, so nothing more needs to be done.
+        assertArrayEquals(pub, neo.getPublicKey(false, 0x80000000, 1));
+        assertEquals(1, pinRequests);
+    }
+
+    @Test
+    public void testResumeAfterConnectionLost() throws Exception {
+        byte[] expected = neo.getPublicKeys(true, new int[]{0}, 0, 4);
+        dropConnection = true;
+        assertArrayEquals(expected, neo.getPublicKeys(true, new int[]{0}, 0, 4));
+        assertEquals(1, pinRequests);
+        assertEquals(1, reconnects);
+
+        byte[] hash = new byte[32];
+        hash[0] = 1;
+        dropConnection = true;
+        List<SignResult> results = neo.signBatch(Arrays.asList(new SignRequest(hash, 0), new SignRequest(hash, 1)));
+        assertTrue(ECKey.verify(hash, results.get(0).getSignature(), neo.getPublicKey(false, 0)));
+        assertTrue(ECKey.verify(hash, results.get(1).getSignature(), neo.getPublicKey(false, 1)));
+        assertEquals(2, reconnects);
+    }
+
+    @Test
+    public void testKeyReplacedWhileDisconnected() throws Exception {
+        neo.enableHostDerivation();
+        byte[] hash = new byte[32];
+        dropConnection = true;
+        assertTrue(ECKey.verify(hash, neo.sign(hash, 0), neo.getPublicKey(false, 0)));
+        assertTrue(neo.isHostDerivationEnabled());
+
+        YkneoBitcoin device = emulator.getDevice();
+        device.unlockAdmin(adminPin);
+        device.generateMasterKeyPair(false, false, false);
+        dropConnection = true;
+        try {
+            neo.sign(hash, 0);
+            fail("Resumed the session with a different key!");
+        } catch (IOException e) {
+            assertFalse(neo.isHostDerivationEnabled());
+        }
+        device.unlockUser(userPin);
+        assertArrayEquals(device.getPublicKey(false, 0), neo.getPublicKey(false, 0));
+    }
+
+    @Test
+    public void testPinRejected() throws Exception {
+        pin = "foobar";
+        emulator.reset();
+        try {
+            neo.getHeader();
+            fail("Resumed with the wrong PIN!");
+        } catch (IOException e) {
+            assertFalse(neo.isUserUnlocked());
+        }
+    }
+
+    @Test
+    public void testOnlyResumableCommands() throws Exception {
+        emulator.reset();
+        try {
+            neo.exportExtendedPublicKey();
+            fail("Command sent without the applet selected!");
+        } catch (RuntimeException e) {
+            assertEquals(0, pinRequests);
+        }
+
+        neo.setPinProvider(null);
+        try {
+            neo.getHeader();
+            fail("Session resumed without a PinProvider!");
+        } catch (RuntimeException e) {
+            assertEquals(0, pinRequests);
+        }
+    }
+}
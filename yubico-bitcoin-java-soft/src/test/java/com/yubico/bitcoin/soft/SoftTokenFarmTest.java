@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.soft;
+
+import com.google.bitcoin.crypto.ChildNumber;
+import com.google.bitcoin.crypto.DeterministicKey;
+import com.google.bitcoin.crypto.HDKeyDerivation;
+import com.google.common.io.BaseEncoding;
+import com.yubico.bitcoin.api.YkneoBitcoin;
+import com.yubico.bitcoin.transport.SimulatedApduTransport;
+import com.yubico.bitcoin.util.SignatureVerifier;
+import com.yubico.bitcoin.util.YkneoBitcoinClient;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs all YkneoBitcoinSoftTest tests against a token in a farm, and checks that the tokens are independent.
+ */
+public class SoftTokenFarmTest extends YkneoBitcoinSoftTest {
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+    private static final byte[] SEED = "farm seed".getBytes();
+
+    private SoftTokenFarm farm;
+
+    @Before
+    @Override
+    public void setup() throws Exception {
+        farm = new SoftTokenFarm(4);
+        neo = farm.get(2);
+    }
+
+    @Test
+    public void testTokensAreIndependent() throws Exception {
+        YkneoBitcoin other = farm.get(1);
+        neo.setUserPin("000000", "hello world");
+        neo.unlockAdmin("00000000");
+        neo.generateMasterKeyPair(false, false, false);
+
+        assertFalse(other.isAdminUnlocked());
+        assertFalse(other.isKeyLoaded());
+        other.unlockUser("000000");
+        assertTrue(other.isUserUnlocked());
+    }
+
+    @Test
+    public void testViewsShareState() throws Exception {
+        neo.unlockAdmin("00000000");
+        assertTrue(farm.get(2).isAdminUnlocked());
+        neo.generateMasterKeyPair(false, false, false);
+        neo.unlockUser("000000");
+        assertArrayEquals(neo.getPublicKey(true, 0), farm.get(2).getPublicKey(true, 0));
+    }
+
+    @Test
+    public void testGenerateMasterKeys() throws Exception {
+        farm.generateMasterKeys(SEED, true);
+        SoftTokenFarm copy = new SoftTokenFarm(4);
+        copy.generateMasterKeys(SEED, true);
+
+        for (int i = 0; i < farm.size(); i++) {
+            YkneoBitcoin token = farm.get(i);
+            token.unlockAdmin("00000000");
+            YkneoBitcoin same = copy.get(i);
+            same.unlockAdmin("00000000");
+            assertEquals(HEX.encode(token.exportExtendedPublicKey()), HEX.encode(same.exportExtendedPublicKey()));
+        }
+        farm.get(0).unlockUser("000000");
+        farm.get(1).unlockUser("000000");
+        assertFalse(HEX.encode(farm.get(0).getPublicKey(true, 0)).equals(HEX.encode(farm.get(1).getPublicKey(true, 0))));
+    }
+
+    @Test
+    public void testEmulator() throws Exception {
+        farm.generateMasterKeys(SEED, false);
+        YkneoBitcoin client = new YkneoBitcoinClient(SimulatedApduTransport.usb(farm.getEmulator(3), 3));
+        client.unlockUser("000000");
+
+        byte[] hash = new byte[32];
+        byte[] signature = client.sign(hash, 0, 1);
+        assertTrue(SignatureVerifier.verify(hash, signature, farm.get(3).getPublicKey(true, 0, 1)));
+    }
+
+    @Test
+    public void testImportInvalidKey() throws Exception {
+        neo.unlockAdmin("00000000");
+        byte[] extendedPrivateKey = new byte[78];
+        System.arraycopy(HEX.decode("0488ade4"), 0, extendedPrivateKey, 0, 4);
+        for (byte[] privateKey : new byte[][]{new byte[32], Secp256k1Signer.toBytes32(Secp256k1Signer.N)}) {
+            System.arraycopy(privateKey, 0, extendedPrivateKey, 46, 32);
+            try {
+                neo.importExtendedKeyPair(extendedPrivateKey, false);
+                fail("Imported an invalid key!");
+            } catch (IllegalArgumentException e) {
+                assertFalse(neo.isKeyLoaded());
+            }
+        }
+    }
+
+    @Test
+    public void testImportInvalidFormat() throws Exception {
+        neo.unlockAdmin("00000000");
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey(SEED);
+        byte[] extendedPublicKey = master.serializePublic();
+        byte[] extendedPrivateKey = master.serializePrivate();
+        for (byte[] invalid : new byte[][]{extendedPublicKey, Arrays.copyOf(extendedPrivateKey, 77), Arrays.copyOf(extendedPrivateKey, 79)}) {
+            try {
+                neo.importExtendedKeyPair(invalid, false);
+                fail("Imported an invalid extended private key!");
+            } catch (IllegalArgumentException e) {
+                assertFalse(neo.isKeyLoaded());
+            }
+        }
+    }
+
+    @Test
+    public void testImportKeepsHeader() throws Exception {
+        DeterministicKey child = HDKeyDerivation.deriveChildKey(HDKeyDerivation.createMasterPrivateKey(SEED), new ChildNumber(0, true));
+        byte[] extendedPrivateKey = child.serializePrivate();
+        neo.unlockAdmin("00000000");
+        neo.importExtendedKeyPair(extendedPrivateKey, true);
+        neo.unlockUser("000000");
+
+        assertEquals(HEX.encode(Arrays.copyOf(extendedPrivateKey, 13)), HEX.encode(neo.getHeader()));
+        assertEquals(HEX.encode(child.serializePublic()), HEX.encode(neo.exportExtendedPublicKey()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidIndex() {
+        farm.get(4);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.soft;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Files;
+import com.yubico.bitcoin.api.IncorrectPINException;
+import com.yubico.bitcoin.api.OperationNotPermittedException;
+import com.yubico.bitcoin.util.SignatureVerifier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class SoftTokenFileTest {
+    private static final String userPin = "000000";
+    private static final String adminPin = "00000000";
+
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+    private static final byte[] importKey = HEX.decode("0488ade4000000000000000000873dff81c02f525623fd1fe5167eac3a55a049de3d314bb42ee227ffed37d50800e8f32e723decf4051aefac8e2c93c9c5b214313817cdb01a1494b917c8436b35");
+
+    private File file;
+    private File image;
+
+    @Before
+    public void setup() throws Exception {
+        file = File.createTempFile("softtoken", ".state");
+        image = File.createTempFile("softtoken", ".image");
+    }
+
+    @After
+    public void teardown() {
+        file.delete();
+        image.delete();
+    }
+
+    private static int triesRemaining(YkneoBitcoinSoft neo, String wrongPin) throws IOException {
+        try {
+            neo.unlockUser(wrongPin);
+            fail("Unlocked with wrong PIN!");
+        } catch (IncorrectPINException e) {
+            return e.getTriesRemaining();
+        }
+        return -1;
+    }
+
+    @Test
+    public void testPersist() throws Exception {
+        YkneoBitcoinSoft neo = YkneoBitcoinSoft.open(file);
+        assertFalse(neo.isKeyLoaded());
+        neo.unlockAdmin(adminPin);
+        neo.importExtendedKeyPair(importKey, false);
+        neo.unlockUser(userPin);
+        neo.setUserPin(userPin, "hello world");
+        byte[] pubKey = neo.getPublicKey(true, 0x80000000, 1);
+        assertEquals(5, triesRemaining(neo, "foobar"));
+        neo.close();
+
+        neo = YkneoBitcoinSoft.open(file);
+        try {
+            assertTrue(neo.isKeyLoaded());
+            assertFalse(neo.isUserUnlocked());
+            assertFalse(neo.isAdminUnlocked());
+            assertEquals(4, triesRemaining(neo, "foobar"));
+            neo.unlockUser("hello world");
+            assertArrayEquals(pubKey, neo.getPublicKey(true, 0x80000000, 1));
+
+            neo.unlockAdmin(adminPin);
+            try {
+                neo.exportExtendedPublicKey();
+                fail("Export should not be allowed!");
+            } catch (OperationNotPermittedException e) {
+                //Expected
+            }
+        } finally {
+            neo.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testLocked() throws Exception {
+        YkneoBitcoinSoft neo = YkneoBitcoinSoft.open(file);
+        try {
+            YkneoBitcoinSoft.open(file);
+        } finally {
+            neo.close();
+        }
+    }
+
+    @Test
+    public void testSnapshotRestore() throws Exception {
+        YkneoBitcoinSoft neo = new YkneoBitcoinSoft();
+        neo.unlockAdmin(adminPin);
+        neo.importExtendedKeyPair(importKey, true);
+        neo.unlockUser(userPin);
+        byte[][] pubKeys = new byte[10][];
+        for (int i = 0; i < pubKeys.length; i++) {
+            pubKeys[i] = neo.getPublicKey(false, 0x80000000, 1, i);
+        }
+        neo.snapshot(image);
+
+        YkneoBitcoinSoft restored = YkneoBitcoinSoft.restore(image);
+        assertFalse(restored.isUserUnlocked());
+        restored.unlockUser(userPin);
+        restored.unlockAdmin(adminPin);
+        assertEquals(neo.getKeyCache().size(), restored.getKeyCache().size());
+        assertArrayEquals(neo.getHeader(), restored.getHeader());
+        assertArrayEquals(neo.exportExtendedPublicKey(), restored.exportExtendedPublicKey());
+        for (int i = 0; i < pubKeys.length; i++) {
+            assertArrayEquals(pubKeys[i], restored.getPublicKey(false, 0x80000000, 1, i));
+        }
+        assertEquals(0, restored.getKeyCache().getMisses());
+
+        byte[] hash = new byte[32];
+        assertTrue(SignatureVerifier.verify(hash, restored.sign(hash, 0x80000000, 1, 3), pubKeys[3]));
+        assertArrayEquals(neo.getPublicKey(true, 0x80000000, 2), restored.getPublicKey(true, 0x80000000, 2));
+    }
+
+    @Test
+    public void testRestoredKeys() throws Exception {
+        YkneoBitcoinSoft neo = new YkneoBitcoinSoft();
+        neo.unlockAdmin(adminPin);
+        neo.importExtendedKeyPair(importKey, true);
+        neo.unlockUser(userPin);
+        neo.getPublicKey(true, 0x80000000, 1, 7);
+        neo.snapshot(image);
+
+        SoftTokenFile.State state = SoftTokenFile.readImage(image);
+        assertEquals(3, state.keys.size());
+        for (int i = 0; i < state.keys.size(); i++) {
+            byte[] key = state.keys.get(i);
+            assertArrayEquals(neo.getPublicKey(true, state.paths.get(i)), BatchKeyDerivation.getPublicKey(key, true));
+            byte[] hash = new byte[32];
+            byte[] signature = Secp256k1Signer.sign(BatchKeyDerivation.getPrivateKey(key), hash);
+            assertTrue(SignatureVerifier.verify(hash, signature, neo.getPublicKey(false, state.paths.get(i))));
+        }
+    }
+
+    @Test
+    public void testOpenImage() throws Exception {
+        YkneoBitcoinSoft neo = new YkneoBitcoinSoft();
+        neo.unlockAdmin(adminPin);
+        neo.importExtendedKeyPair(importKey, true);
+        neo.unlockUser(userPin);
+        neo.getPublicKey(true, 0x80000000, 1, 7);
+        neo.snapshot(image);
+        Files.copy(image, file);
+
+        YkneoBitcoinSoft opened = YkneoBitcoinSoft.open(file);
+        opened.unlockUser(userPin);
+        assertEquals(neo.getKeyCache().size(), opened.getKeyCache().size());
+        opened.unlockAdmin(adminPin);
+        opened.generateMasterKeyPair(false, false, false);
+        opened.close();
+
+        //The cached keys belong to the old key pair.
+        opened = YkneoBitcoinSoft.open(file);
+        opened.close();
+        assertEquals(0, opened.getKeyCache().size());
+        assertTrue(opened.isKeyLoaded());
+    }
+
+    @Test
+    public void testDamagedSlot() throws Exception {
+        YkneoBitcoinSoft neo = YkneoBitcoinSoft.open(file);
+        neo.unlockAdmin(adminPin);
+        neo.importExtendedKeyPair(importKey, true);
+        neo.close();
+
+        //Corrupt the most recently written slot, the previous one should be used.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            int slot = readSequence(raf, 0) > readSequence(raf, 1) ? 0 : 1;
+            raf.seek(8 + slot * 288 + 20);
+            raf.write(0xff);
+        } finally {
+            raf.close();
+        }
+
+        neo = YkneoBitcoinSoft.open(file);
+        neo.close();
+        assertFalse(neo.isKeyLoaded());
+    }
+
+    private static int readSequence(RandomAccessFile raf, int slot) throws IOException {
+        raf.seek(8 + slot * 288 + 4);
+        return raf.readInt();
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidFile() throws Exception {
+        Files.write("not a soft token".getBytes(), file);
+        YkneoBitcoinSoft.open(file);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPinTooLong() throws Exception {
+        YkneoBitcoinSoft neo = YkneoBitcoinSoft.open(file);
+        try {
+            neo.setUserPin(userPin, "0123456789012345678901234567890123456789012345678901234567890123456789");
+        } finally {
+            neo.close();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.soft;
+
+import com.google.common.io.BaseEncoding;
+import com.yubico.bitcoin.transport.ForwardingApduTransport;
+import com.yubico.bitcoin.util.DeviceFingerprint;
+import com.yubico.bitcoin.util.PublicKeyCache;
+import com.yubico.bitcoin.util.YkneoBitcoinClient;
+import com.yubico.bitcoin.util.YkneoConstants;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs all YkneoBitcoinSoftTest tests through YkneoBitcoinClient and the emulator, exercising the APDU encoding and
+ * status word handling of AbstractYkneoBitcoin.
+ */
+public class YkneoBitcoinEmulatorTest extends YkneoBitcoinSoftTest {
+    @Before
+    @Override
+    public void setup() throws Exception {
+        neo = new YkneoBitcoinClient(new YkneoBitcoinEmulator());
+    }
+
+    @Test
+    public void testGetPublicKeysCached() throws Exception {
+        YkneoBitcoinEmulator emulator = new YkneoBitcoinEmulator();
+        emulator.getDevice().unlockAdmin("00000000");
+        emulator.getDevice().importExtendedKeyPair(BaseEncoding.base16().lowerCase().decode("0488ade4000000000000000000873dff81c02f525623fd1fe5167eac3a55a049de3d314bb42ee227ffed37d50800e8f32e723decf4051aefac8e2c93c9c5b214313817cdb01a1494b917c8436b35"), false);
+        final int[] getPubCommands = new int[1];
+        ForwardingApduTransport transport = new ForwardingApduTransport(emulator) {
+            @Override
+            public void transmit(ByteBuffer command, ByteBuffer response) throws IOException {
+                if (command.get(1) == YkneoConstants.INS_GET_PUB) {
+                    getPubCommands[0]++;
+                }
+                super.transmit(command, response);
+            }
+        };
+        int[] parent = new int[]{0x80000000, 1};
+        File file = File.createTempFile("pubkeys", ".cache");
+        try {
+            YkneoBitcoinClient client = new YkneoBitcoinClient(transport);
+            client.unlockUser("000000");
+            byte[] fingerprint = DeviceFingerprint.of(client);
+            PublicKeyCache cache = PublicKeyCache.open(file, fingerprint, 100);
+            client.setPublicKeyCache(cache);
+            client.getPublicKey(true, 0x80000000, 1, 7);
+            getPubCommands[0] = 0;
+            byte[] uncompressed = client.getPublicKeys(false, parent, 5, 5);
+            assertEquals(4, getPubCommands[0]);
+            cache.close();
+
+            //After a restart, the whole range is read from the cache.
+            client = new YkneoBitcoinClient(transport);
+            client.unlockUser("000000");
+            cache = PublicKeyCache.open(file, fingerprint, 100);
+            client.setPublicKeyCache(cache);
+            getPubCommands[0] = 0;
+            byte[] compressed = client.getPublicKeys(true, parent, 5, 5);
+            assertArrayEquals(uncompressed, client.getPublicKeys(false, parent, 5, 5));
+            assertEquals(0, getPubCommands[0]);
+            cache.close();
+
+            for (int i = 0; i < 5; i++) {
+                assertArrayEquals(emulator.getDevice().getPublicKey(true, 0x80000000, 1, 5 + i), Arrays.copyOfRange(compressed, i * 33, (i + 1) * 33));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
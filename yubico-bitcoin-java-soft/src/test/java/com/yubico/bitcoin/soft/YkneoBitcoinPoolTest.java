@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.soft;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.common.io.BaseEncoding;
+import com.yubico.bitcoin.api.*;
+import com.yubico.bitcoin.util.DeviceFingerprint;
+import com.yubico.bitcoin.util.YkneoBitcoinPool;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class YkneoBitcoinPoolTest {
+    private static final String userPin = "000000";
+    private static final String adminPin = "00000000";
+
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+    private static final byte[] importKey = HEX.decode("0488ade4000000000000000000873dff81c02f525623fd1fe5167eac3a55a049de3d314bb42ee227ffed37d50800e8f32e723decf4051aefac8e2c93c9c5b214313817cdb01a1494b917c8436b35");
+
+    private static FlakySoft device() throws Exception {
+        FlakySoft neo = new FlakySoft();
+        neo.unlockAdmin(adminPin);
+        neo.importExtendedKeyPair(importKey, false);
+        return neo;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMismatchedKeys() throws Exception {
+        YkneoBitcoin other = new YkneoBitcoinSoft();
+        other.unlockAdmin(adminPin);
+        other.generateMasterKeyPair(false, false, false);
+        new YkneoBitcoinPool(Arrays.asList(device(), other), userPin);
+    }
+
+    @Test
+    public void testSign() throws Exception {
+        YkneoBitcoinPool pool = new YkneoBitcoinPool(Arrays.asList(device(), device()), userPin);
+        assertEquals(2, pool.getAvailableCount());
+        assertTrue(pool.isUserUnlocked());
+
+        byte[] hash = new byte[32];
+        byte[] pubKey = pool.getPublicKey(false, 0, 7);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(ECKey.verify(hash, pool.sign(hash, 0, 7), pubKey));
+        }
+    }
+
+    @Test
+    public void testImportExtendedKeyPair() throws Exception {
+        YkneoBitcoinSoft other = new YkneoBitcoinSoft();
+        other.unlockAdmin(adminPin);
+        byte[] otherKey = other.generateMasterKeyPair(false, true, false);
+        other.unlockUser(userPin);
+
+        YkneoBitcoinPool pool = new YkneoBitcoinPool(Arrays.asList(device(), device()), userPin);
+        pool.unlockAdmin(adminPin);
+        try {
+            pool.generateMasterKeyPair(false, false, false);
+            fail("Generated a key pair for the pool!");
+        } catch (OperationNotPermittedException e) {
+            //Expected
+        }
+
+        pool.importExtendedKeyPair(otherKey, false);
+        assertArrayEquals(DeviceFingerprint.of(other), pool.getFingerprint());
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals(other.getPublicKey(true, 0, i), pool.getPublicKey(true, 0, i));
+        }
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        FlakySoft flaky = device();
+        YkneoBitcoinPool pool = new YkneoBitcoinPool(Arrays.asList(flaky, device()), userPin, 2, 60000);
+        byte[] hash = new byte[32];
+        byte[] pubKey = pool.getPublicKey(false, 0);
+
+        flaky.broken = true;
+        //Even if latency steers requests away from the flaky device, it is probed at least every 17 requests.
+        for (int i = 0; i < 40; i++) {
+            assertTrue(ECKey.verify(hash, pool.sign(hash, 0), pubKey));
+        }
+        assertEquals(1, pool.getAvailableCount());
+    }
+
+    @Test
+    public void testRejoin() throws Exception {
+        FlakySoft flaky = device();
+        YkneoBitcoinPool pool = new YkneoBitcoinPool(Arrays.asList(flaky), userPin, 1, 0);
+        byte[] hash = new byte[32];
+
+        flaky.broken = true;
+        try {
+            pool.sign(hash, 0);
+            fail("Signed with broken device!");
+        } catch (IOException e) {
+            assertEquals(0, pool.getAvailableCount());
+        }
+
+        flaky.broken = false;
+        assertTrue(ECKey.verify(hash, pool.sign(hash, 0), pool.getPublicKey(false, 0)));
+        assertEquals(1, pool.getAvailableCount());
+    }
+
+    private static class FlakySoft extends YkneoBitcoinSoft {
+        private volatile boolean broken;
+
+        @Override
+        public byte[] sign(byte[] hash, int... index) throws PinModeLockedException, UnusableIndexException, IOException, NoKeyLoadedException {
+            if (broken) {
+                throw new IOException("Device removed");
+            }
+            return super.sign(hash, index);
+        }
+    }
+}
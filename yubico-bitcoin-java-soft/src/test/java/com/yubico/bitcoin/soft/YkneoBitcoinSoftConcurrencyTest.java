@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013 Yubico AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yubico.bitcoin.soft;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.common.io.BaseEncoding;
+import com.yubico.bitcoin.api.IncorrectPINException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class YkneoBitcoinSoftConcurrencyTest {
+    private static final String userPin = "000000";
+    private static final String adminPin = "00000000";
+    private static final int THREADS = 8;
+
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+
+    private YkneoBitcoinSoft neo;
+
+    @Before
+    public void setup() throws Exception {
+        neo = new YkneoBitcoinSoft(16);
+        neo.unlockAdmin(adminPin);
+        neo.importExtendedKeyPair(HEX.decode("0488ade4000000000000000000873dff81c02f525623fd1fe5167eac3a55a049de3d314bb42ee227ffed37d50800e8f32e723decf4051aefac8e2c93c9c5b214313817cdb01a1494b917c8436b35"), true);
+        neo.unlockUser(userPin);
+    }
+
+    private <T> List<T> runConcurrently(Callable<T> task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<T>> futures = new ArrayList<Future<T>>();
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executor.submit(task));
+            }
+            List<T> results = new ArrayList<T>();
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentSigning() throws Exception {
+        final byte[][] expected = new byte[64][];
+        //Derive the expected public keys up front using a separate token, so that the cache under test starts empty.
+        YkneoBitcoinSoft reference = new YkneoBitcoinSoft();
+        reference.unlockAdmin(adminPin);
+        reference.importExtendedKeyPair(HEX.decode("0488ade4000000000000000000873dff81c02f525623fd1fe5167eac3a55a049de3d314bb42ee227ffed37d50800e8f32e723decf4051aefac8e2c93c9c5b214313817cdb01a1494b917c8436b35"), true);
+        reference.unlockUser(userPin);
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = reference.getPublicKey(false, 0x80000000, 1, i);
+        }
+
+        final AtomicInteger counter = new AtomicInteger();
+        List<Integer> verified = runConcurrently(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                int count = 0;
+                for (int i = 0; i < 50; i++) {
+                    int n = counter.getAndIncrement();
+                    int child = n % expected.length;
+                    byte[] hash = new byte[32];
+                    hash[0] = (byte) n;
+                    hash[1] = (byte) (n >> 8);
+                    assertArrayEquals(expected[child], neo.getPublicKey(false, 0x80000000, 1, child));
+                    if (ECKey.verify(hash, neo.sign(hash, 0x80000000, 1, child), expected[child])) {
+                        count++;
+                    }
+                }
+                return count;
+            }
+        });
+        for (int count : verified) {
+            assertEquals(50, count);
+        }
+        assertEquals(THREADS * 100, neo.getKeyCache().getHits() + neo.getKeyCache().getMisses());
+        assertTrue(neo.getKeyCache().size() <= 16);
+    }
+
+    @Test
+    public void testConcurrentPinAttempts() throws Exception {
+        neo.setUserRetryCount(15);
+        List<Integer> failures = runConcurrently(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                try {
+                    neo.unlockUser("foobar");
+                    return 0;
+                } catch (IncorrectPINException e) {
+                    return 1;
+                }
+            }
+        });
+        for (int failure : failures) {
+            assertEquals(1, failure);
+        }
+        assertFalse(neo.isUserUnlocked());
+        try {
+            neo.unlockUser("foobar");
+            fail("Unlocked with wrong PIN!");
+        } catch (IncorrectPINException e) {
+            //Every attempt has been counted.
+            assertEquals(15 - THREADS - 1, e.getTriesRemaining());
+        }
+    }
+}
@@ -16,13 +16,17 @@
 
 package com.yubico.bitcoin.soft;
 
+import com.google.bitcoin.core.ECKey;
 import com.google.common.io.BaseEncoding;
 import com.yubico.bitcoin.api.*;
+import com.yubico.bitcoin.util.SignatureVerifier;
 import org.hamcrest.Matchers;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -41,7 +45,7 @@ public class YkneoBitcoinSoftTest {
 
     private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
 
-    private YkneoBitcoin neo;
+    protected YkneoBitcoin neo;
 
     @Before
     public void setup() throws Exception {
@@ -162,7 +166,64 @@ public class YkneoBitcoinSoftTest {
         neo.unlockUser(userPin);
         byte[] hash = new byte[32];
         byte[] signature = neo.sign(hash, 0);
-        //TODO: Verify signature.
         assertThat(signature.length, Matchers.lessThanOrEqualTo(72));
+        assertTrue(SignatureVerifier.verify(hash, signature, neo.getPublicKey(true, 0)));
+    }
+
+    @Test
+    public void testSignBatch() throws Exception {
+        testImportExtended();
+        neo.unlockUser(userPin);
+        byte[] hash1 = new byte[32];
+        byte[] hash2 = new byte[32];
+        hash2[0] = 1;
+        List<SignResult> results = neo.signBatch(Arrays.asList(
+                new SignRequest(hash1, 0),
+                new SignRequest(hash2, 0x80000000, 1),
+                new SignRequest(hash2, 0)
+        ));
+        assertEquals(3, results.size());
+
+        assertTrue(results.get(0).isSuccess());
+        assertTrue(ECKey.verify(hash1, results.get(0).getSignature(), neo.getPublicKey(false, 0)));
+        assertTrue(results.get(1).isSuccess());
+        assertTrue(ECKey.verify(hash2, results.get(1).getSignature(), neo.getPublicKey(false, 0x80000000, 1)));
+        assertTrue(results.get(2).isSuccess());
+        assertTrue(ECKey.verify(hash2, results.get(2).getSignature(), neo.getPublicKey(false, 0)));
+    }
+
+    @Test
+    public void testGetPublicKeys() throws Exception {
+        testImportExtended();
+        neo.unlockUser(userPin);
+        int[] parent = new int[]{0x80000000, 1};
+        byte[] compressed = neo.getPublicKeys(true, parent, 5, 3);
+        byte[] uncompressed = neo.getPublicKeys(false, parent, 5, 3);
+        assertEquals(3 * 33, compressed.length);
+        assertEquals(3 * 65, uncompressed.length);
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(neo.getPublicKey(true, 0x80000000, 1, 5 + i), Arrays.copyOfRange(compressed, i * 33, (i + 1) * 33));
+            assertArrayEquals(neo.getPublicKey(false, 0x80000000, 1, 5 + i), Arrays.copyOfRange(uncompressed, i * 65, (i + 1) * 65));
+        }
+    }
+
+    @Test
+    public void testGetPublicKeysInvalidRange() throws Exception {
+        testImportExtended();
+        neo.unlockUser(userPin);
+        int[][] ranges = new int[][]{
+                {0, -1},
+                {0, Integer.MAX_VALUE / 33 + 1}, //The size of the result would overflow.
+                {0xffffffff, 2}, //The range would wrap around.
+                {0x7fffffff, 2} //The range would mix non-hardened and hardened children.
+        };
+        for (int[] range : ranges) {
+            try {
+                neo.getPublicKeys(true, new int[0], range[0], range[1]);
+                fail(String.format("Got public keys for count %d from 0x%08x!", range[1], range[0]));
+            } catch (IllegalArgumentException e) {
+                //Expected
+            }
+        }
     }
 }